@@ -1,6 +1,7 @@
 -- 创建ai_chat_memory表（每条消息作为一行记录）
+-- 按月范围分区，过期分区由 ChatMemoryPartitionManager 归档后整体删除（见 migration/V3__ai_chat_memory_partitioning.sql）
 CREATE TABLE `ai_chat_memory` (
-  `id` BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY COMMENT 'ID',
+  `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT 'ID',
   `chat_id` VARCHAR(100) NOT NULL COMMENT '会话ID',
   `type` VARCHAR(10) NOT NULL DEFAULT 'user' COMMENT '消息类型(user/assistant/system)',
   `content` TEXT NOT NULL COMMENT '消息内容',
@@ -8,6 +9,27 @@ CREATE TABLE `ai_chat_memory` (
   `update_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   `is_del` TINYINT(1) NOT NULL DEFAULT 0 COMMENT '删除标记,0-未删除;1-已删除',
 
-  INDEX idx_chat_id (chat_id),
-  INDEX idx_create_time (create_time)
-) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='AI对话记忆表';
\ No newline at end of file
+  PRIMARY KEY (id, create_time),
+  INDEX idx_chat_del_id (chat_id, is_del, id)
+) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='AI对话记忆表'
+  PARTITION BY RANGE (UNIX_TIMESTAMP(create_time)) (
+    PARTITION pmax VALUES LESS THAN MAXVALUE
+  );
+
+-- 创建ai_chat_memory_archive表（冷数据归档，压缩存储）
+CREATE TABLE `ai_chat_memory_archive` (
+  `id` BIGINT NOT NULL COMMENT 'ID（沿用原表ID）',
+  `chat_id` VARCHAR(100) NOT NULL COMMENT '会话ID',
+  `type` VARCHAR(10) NOT NULL DEFAULT 'user' COMMENT '消息类型(user/assistant/system)',
+  `content` TEXT NOT NULL COMMENT '消息内容',
+  `create_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `update_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `is_del` TINYINT(1) NOT NULL DEFAULT 0 COMMENT '删除标记,0-未删除;1-已删除',
+
+  PRIMARY KEY (id, create_time),
+  INDEX idx_chat_del_id (chat_id, is_del, id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8
+  COMMENT='AI对话记忆归档表'
+  PARTITION BY RANGE (UNIX_TIMESTAMP(create_time)) (
+    PARTITION pmax VALUES LESS THAN MAXVALUE
+  );
\ No newline at end of file
@@ -0,0 +1,13 @@
+-- ai_chat_memory：为按会话读取最近N条消息增加复合索引
+-- 查询形如：WHERE chat_id = ? AND is_del = 0 ORDER BY id DESC LIMIT N
+-- (chat_id, is_del, id) 可直接倒序扫描索引取前N行，无需filesort；
+-- 原 idx_chat_id 是新索引的前缀，一并删除
+-- ALGORITHM=INPLACE, LOCK=NONE：在线加索引，不阻塞读写
+
+ALTER TABLE `ai_chat_memory`
+  ADD INDEX idx_chat_del_id (chat_id, is_del, id),
+  ALGORITHM=INPLACE, LOCK=NONE;
+
+ALTER TABLE `ai_chat_memory`
+  DROP INDEX idx_chat_id,
+  ALGORITHM=INPLACE, LOCK=NONE;
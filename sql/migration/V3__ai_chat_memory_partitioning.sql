@@ -0,0 +1,42 @@
+-- ai_chat_memory 按月范围分区 + 冷数据归档表
+--
+-- 1. 分区键必须包含在主键中：主键改为 (id, create_time)，id 仍为自增列
+-- 2. 按 UNIX_TIMESTAMP(create_time) 每月一个分区，分区名 pYYYYMM，上界为下月1日0点（Asia/Shanghai）
+--    迁移前的历史数据全部落在 p202608 中，之后的分区由 ChatMemoryPartitionManager 每天预建
+-- 3. 超过热数据保留期的分区整体复制到压缩归档表后 DROP PARTITION，不再逐行删除
+-- 4. 归档表同样按月分区，超过归档保留期的分区直接 DROP
+-- 5. 按时间的过滤由分区裁剪完成，idx_create_time 不再需要
+--
+-- 注意：第1、2步会重建整张表，请在低峰期执行
+
+ALTER TABLE `ai_chat_memory`
+  DROP PRIMARY KEY,
+  ADD PRIMARY KEY (id, create_time),
+  DROP INDEX idx_create_time;
+
+ALTER TABLE `ai_chat_memory`
+  PARTITION BY RANGE (UNIX_TIMESTAMP(create_time)) (
+    PARTITION p202608 VALUES LESS THAN (UNIX_TIMESTAMP('2026-09-01 00:00:00')),
+    PARTITION p202609 VALUES LESS THAN (UNIX_TIMESTAMP('2026-10-01 00:00:00')),
+    PARTITION p202610 VALUES LESS THAN (UNIX_TIMESTAMP('2026-11-01 00:00:00')),
+    PARTITION p202611 VALUES LESS THAN (UNIX_TIMESTAMP('2026-12-01 00:00:00')),
+    PARTITION pmax VALUES LESS THAN MAXVALUE
+  );
+
+-- 冷数据归档表：结构与 ai_chat_memory 相同，压缩存储
+CREATE TABLE IF NOT EXISTS `ai_chat_memory_archive` (
+  `id` BIGINT NOT NULL COMMENT 'ID（沿用原表ID）',
+  `chat_id` VARCHAR(100) NOT NULL COMMENT '会话ID',
+  `type` VARCHAR(10) NOT NULL DEFAULT 'user' COMMENT '消息类型(user/assistant/system)',
+  `content` TEXT NOT NULL COMMENT '消息内容',
+  `create_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `update_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `is_del` TINYINT(1) NOT NULL DEFAULT 0 COMMENT '删除标记,0-未删除;1-已删除',
+
+  PRIMARY KEY (id, create_time),
+  INDEX idx_chat_del_id (chat_id, is_del, id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci ROW_FORMAT=COMPRESSED KEY_BLOCK_SIZE=8
+  COMMENT='AI对话记忆归档表'
+  PARTITION BY RANGE (UNIX_TIMESTAMP(create_time)) (
+    PARTITION pmax VALUES LESS THAN MAXVALUE
+  );
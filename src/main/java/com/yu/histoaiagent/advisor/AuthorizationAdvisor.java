@@ -8,9 +8,15 @@ import org.springframework.ai.chat.client.ChatClientRequest;
 import org.springframework.ai.chat.client.ChatClientResponse;
 import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
 import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
 import org.springframework.ai.chat.memory.ChatMemory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 权限校验Advisor
@@ -19,15 +25,22 @@ import java.util.Map;
  * 1. 校验用户是否存在
  * 2. 校验用户是否启用
  * 3. 校验用户角色权限
- * 4. 校验每日配额
- * 5. 校验会话消息数限制
- * 6. 记录使用情况
+ * 4. 校验会话消息数限制
+ * 5. 按角色限流并消耗每日配额（令牌桶与配额在Redis中原子完成，并发请求不会超出配额和突发上限）
+ *
+ * 4、5 所需的Redis读写合并在一个pipeline中，鉴权只需一次Redis往返，见 {@link UserPermissionService#tryConsumeQuota(UserInfo, String)}
+ *
+ * 同时支持同步调用和流式调用（ChatClient.stream() 只经过 StreamAdvisor，不实现时流式请求会绕过权限校验）。
+ * 流式调用在开始时校验并消耗配额，流结束时结算：
+ * - 正常完成：会话消息数 +2（用户消息 + AI响应消息）
+ * - 客户端取消或中途出错：会话消息数 +1（记忆中只写入了用户消息），配额照常消耗
+ * - 模型没有输出任何内容就出错：会话消息数 +1，归还本次配额
  *
  * 使用方式：
  * advisorSpec.param(AuthorizationAdvisor.USER_ID_PARAM, userId)
  */
 @Slf4j
-public class AuthorizationAdvisor implements CallAdvisor {
+public class AuthorizationAdvisor implements CallAdvisor, StreamAdvisor {
 
     /**
      * 用户ID参数名
@@ -39,6 +52,11 @@ public class AuthorizationAdvisor implements CallAdvisor {
      */
     public static final String SKIP_AUTH_CHECK = "skipAuthCheck";
 
+    /**
+     * 校验通过后放入请求上下文的用户角色（UserRole），供后续Advisor使用
+     */
+    public static final String USER_ROLE_PARAM = "userRole";
+
     private final UserPermissionService userPermissionService;
 
     /**
@@ -76,6 +94,47 @@ public class AuthorizationAdvisor implements CallAdvisor {
             return chain.nextCall(request);
         }
 
+        // 2~7. 校验并消耗配额
+        Authorization authorization = authorize(request);
+
+        // 8. 继续执行后续Advisor和AI调用
+        ChatClientResponse response = chain.nextCall(authorization.request());
+
+        // 9. 记录会话消息数
+        if (authorization.conversationId() != null) {
+            // 用户消息 + AI响应消息 = 2条
+            userPermissionService.incrementConversationMessageCount(
+                    authorization.userInfo().getUserId(), authorization.conversationId(), 2);
+        }
+
+        log.debug("=== AuthorizationAdvisor - 权限校验完成 ===");
+        return response;
+    }
+
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest request, StreamAdvisorChain chain) {
+        // 订阅时才校验，校验失败作为流的错误信号返回
+        return Flux.defer(() -> {
+            if (shouldSkipAuthCheck(request)) {
+                log.debug("跳过权限检查");
+                return chain.nextStream(request);
+            }
+
+            Authorization authorization = authorize(request);
+            AtomicBoolean started = new AtomicBoolean();
+            // 后续Advisor同步抛出的异常也要经过结算
+            return Flux.defer(() -> chain.nextStream(authorization.request()))
+                    .doOnNext(response -> started.set(true))
+                    // 结束信号可能在模型客户端的IO线程上发出，结算涉及Redis读写，切换到弹性线程池执行
+                    .doFinally(signal -> Schedulers.boundedElastic()
+                            .schedule(() -> settleStream(authorization, signal, started.get())));
+        });
+    }
+
+    /**
+     * 校验用户并消耗配额，返回带有用户角色的请求
+     */
+    private Authorization authorize(ChatClientRequest request) {
         // 2. 获取用户ID
         String userId = getUserId(request);
         if (userId == null || userId.isEmpty()) {
@@ -84,8 +143,8 @@ public class AuthorizationAdvisor implements CallAdvisor {
 
         log.info("权限校验 - 用户ID: {}", userId);
 
-        // 3. 获取用户信息
-        UserInfo userInfo = userPermissionService.getUserInfo(userId);
+        // 3. 获取用户信息（今日使用次数在消耗配额时一并得到，这里不单独读取）
+        UserInfo userInfo = userPermissionService.getUserInfo(userId, false);
         if (userInfo == null) {
             throw AuthorizationException.userNotFound(userId);
         }
@@ -104,46 +163,59 @@ public class AuthorizationAdvisor implements CallAdvisor {
             }
         }
 
-        // 6. 检查每日配额
-        if (!userInfo.hasQuota()) {
-            throw AuthorizationException.quotaExceeded(
+        // 6. 检查会话消息数限制（如果有conversationId），限流并消耗每日配额
+        //    消息数读取与配额脚本合并为一次Redis往返
+        String conversationId = getConversationId(request);
+        UserPermissionService.QuotaDecision decision = userPermissionService.tryConsumeQuota(userInfo, conversationId);
+        if (decision.messageLimitExceeded()) {
+            throw AuthorizationException.messageLimitExceeded(
                 userId,
-                userInfo.getRemainingQuota()
+                userInfo.getRole().getMessageLimit()
             );
         }
-
-        // 7. 检查会话消息数限制（如果有conversationId）
-        String conversationId = getConversationId(request);
-        if (conversationId != null) {
-            int messageCount = userPermissionService.getConversationMessageCount(conversationId);
-            if (messageCount >= userInfo.getRole().getMessageLimit()) {
-                throw AuthorizationException.messageLimitExceeded(
-                    userId,
-                    userInfo.getRole().getMessageLimit()
-                );
-            }
+        if (decision.quotaExhausted()) {
+            throw AuthorizationException.quotaExceeded(userId, 0);
+        }
+        if (decision.rateLimited()) {
+            throw AuthorizationException.rateLimited(userId, decision.retryAfterMillis());
         }
 
         log.info("权限校验通过 - 用户: {}, 角色: {}, 今日剩余: {}/{}",
                 userInfo.getUsername(),
                 userInfo.getRole().getDesc(),
-                userInfo.getRemainingQuota(),
+                decision.remaining(),
                 userInfo.getRole().getDailyQuota());
 
-        // 8. 增加使用次数
-        userPermissionService.incrementUsage(userId);
-
-        // 9. 继续执行后续Advisor和AI调用
-        ChatClientResponse response = chain.nextCall(request);
+        // 7. 向后传递用户角色
+        ChatClientRequest authorizedRequest = request.mutate()
+                .context(USER_ROLE_PARAM, userInfo.getRole())
+                .build();
+        return new Authorization(userInfo, conversationId, authorizedRequest);
+    }
 
-        // 10. 记录会话消息数
-        if (conversationId != null) {
-            // 用户消息 + AI响应消息 = 2条
-            userPermissionService.incrementConversationMessageCount(userId, conversationId, 2);
+    /**
+     * 流式调用结束时结算会话消息数和配额
+     *
+     * @param started 是否已经向客户端输出过内容
+     */
+    private void settleStream(Authorization authorization, SignalType signal, boolean started) {
+        UserInfo userInfo = authorization.userInfo();
+        try {
+            if (signal == SignalType.ON_ERROR && !started) {
+                // 模型没有输出任何内容，本次不计入每日配额
+                userPermissionService.refundQuota(userInfo);
+            }
+            if (authorization.conversationId() != null) {
+                // 完成时记忆中有用户消息和AI响应消息；取消或出错时只有用户消息
+                int messages = signal == SignalType.ON_COMPLETE ? 2 : 1;
+                userPermissionService.incrementConversationMessageCount(
+                        userInfo.getUserId(), authorization.conversationId(), messages);
+            }
+            log.debug("Stream of user {} ended with {}, output started: {}", userInfo.getUserId(), signal, started);
+        } catch (Exception e) {
+            // 吞掉异常，结算失败不影响已经结束的响应
+            log.error("Failed to settle stream of user: {}", userInfo.getUserId(), e);
         }
-
-        log.debug("=== AuthorizationAdvisor - 权限校验完成 ===");
-        return response;
     }
 
     /**
@@ -170,4 +242,10 @@ public class AuthorizationAdvisor implements CallAdvisor {
         Boolean skip = (Boolean) context.get(SKIP_AUTH_CHECK);
         return Boolean.TRUE.equals(skip);
     }
-}
\ No newline at end of file
+
+    /**
+     * 校验通过的请求
+     */
+    private record Authorization(UserInfo userInfo, String conversationId, ChatClientRequest request) {
+    }
+}
@@ -0,0 +1,128 @@
+package com.yu.histoaiagent.advisor;
+
+import com.yu.histoaiagent.chatmemory.RecentMessagesSource;
+import com.yu.histoaiagent.chatmemory.TokenBudgetWindow;
+import com.yu.histoaiagent.enums.UserRole;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClientMessageAggregator;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按token预算携带对话记忆的Advisor（替代 MessageChatMemoryAdvisor 的固定条数窗口）
+ *
+ * - 预算按用户角色取 {@link UserRole#getContextTokenBudget()}，角色由 {@link AuthorizationAdvisor}
+ *   放入请求上下文；没有角色时（如跳过权限检查）使用默认预算
+ * - 写入记忆前计算每条消息的token数并缓存在元数据中，选取窗口时不重新分词
+ * - 存储支持只读尾部时（见 {@link RecentMessagesSource}），按预算估算条数只读取最近的消息
+ *
+ * - 流式调用时把各个片段合并成完整的AI回复后再写入记忆，流被取消时不写入不完整的回复
+ *
+ * 需要角色信息，因此执行顺序应在 AuthorizationAdvisor 之后
+ */
+@Slf4j
+public class TokenBudgetMemoryAdvisor implements BaseAdvisor {
+
+    /**
+     * 默认执行顺序：在 AuthorizationAdvisor（0）之后
+     */
+    public static final int DEFAULT_ORDER = 100;
+
+    private static final String DEFAULT_CONVERSATION_ID = "default";
+
+    private final ChatMemory chatMemory;
+    private final TokenBudgetWindow window;
+    private final int defaultTokenBudget;
+    private final int order;
+
+    public TokenBudgetMemoryAdvisor(ChatMemory chatMemory) {
+        this(chatMemory, new TokenBudgetWindow(), UserRole.FREE.getContextTokenBudget(), DEFAULT_ORDER);
+    }
+
+    public TokenBudgetMemoryAdvisor(ChatMemory chatMemory, TokenBudgetWindow window, int defaultTokenBudget, int order) {
+        this.chatMemory = chatMemory;
+        this.window = window;
+        this.defaultTokenBudget = defaultTokenBudget;
+        this.order = order;
+    }
+
+    @Override
+    public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
+        String conversationId = getConversationId(chatClientRequest);
+        int budget = getTokenBudget(chatClientRequest);
+
+        // 最新的、总token数在预算内的历史消息 + 本次请求的消息
+        List<Message> history = chatMemory instanceof RecentMessagesSource source
+                ? source.get(conversationId, TokenBudgetWindow.messagesToRead(budget))
+                : chatMemory.get(conversationId);
+        List<Message> memoryMessages = window.select(history, budget);
+        List<Message> processedMessages = new ArrayList<>(memoryMessages);
+        processedMessages.addAll(chatClientRequest.prompt().getInstructions());
+
+        ChatClientRequest processedRequest = chatClientRequest.mutate()
+                .prompt(chatClientRequest.prompt().mutate().messages(processedMessages).build())
+                .build();
+
+        UserMessage userMessage = processedRequest.prompt().getUserMessage();
+        window.stamp(userMessage);
+        chatMemory.add(conversationId, userMessage);
+        return processedRequest;
+    }
+
+    @Override
+    public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
+        List<Message> assistantMessages = new ArrayList<>();
+        if (chatClientResponse.chatResponse() != null) {
+            chatClientResponse.chatResponse().getResults().forEach(generation -> {
+                window.stamp(generation.getOutput());
+                assistantMessages.add(generation.getOutput());
+            });
+        }
+        chatMemory.add(getConversationId(chatClientResponse.context()), assistantMessages);
+        return chatClientResponse;
+    }
+
+    /**
+     * 默认实现只对带结束原因的最后一个片段调用 after，记忆中只会留下回复的最后一段，这里合并后再写入
+     */
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest, StreamAdvisorChain streamAdvisorChain) {
+        Flux<ChatClientResponse> responses = Mono.just(chatClientRequest)
+                .publishOn(getScheduler())
+                .map(request -> before(request, streamAdvisorChain))
+                .flatMapMany(streamAdvisorChain::nextStream);
+        return new ChatClientMessageAggregator().aggregateChatClientResponse(responses,
+                response -> after(response, streamAdvisorChain));
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+
+    private String getConversationId(ChatClientRequest request) {
+        return getConversationId(request.context());
+    }
+
+    private String getConversationId(Map<String, Object> context) {
+        Object conversationId = context.get(ChatMemory.CONVERSATION_ID);
+        return conversationId != null ? conversationId.toString() : DEFAULT_CONVERSATION_ID;
+    }
+
+    private int getTokenBudget(ChatClientRequest request) {
+        Object role = request.context().get(AuthorizationAdvisor.USER_ROLE_PARAM);
+        return role instanceof UserRole userRole ? userRole.getContextTokenBudget() : defaultTokenBudget;
+    }
+}
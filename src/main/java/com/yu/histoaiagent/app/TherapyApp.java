@@ -14,6 +14,7 @@ import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.boot.autoconfigure.security.SecurityProperties;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 
@@ -105,6 +106,23 @@ public class TherapyApp {
         return content;
     }
 
+    /**
+     * AI 基础多轮对话（流式），逐段返回AI回复
+     * @param message
+     * @param conversationId
+     * @return
+     */
+    public Flux<String> doChatStream(String message, String conversationId) {
+        return chatClient
+                .prompt()
+                .user(message)
+                .advisors(
+                        a -> a.param(ChatMemory.CONVERSATION_ID, conversationId)
+                )
+                .stream()
+                .content();
+    }
+
     record TherapyReport(String title, List<String> suggestions) {}
 
 
@@ -10,6 +10,7 @@ import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 
@@ -98,6 +99,26 @@ public class TherapyAppMysql {
         return content;
     }
 
+    /**
+     * AI基础多轮对话（流式）
+     *
+     * @param message 用户消息
+     * @param conversationId 会话ID
+     * @return 逐段返回的AI回复内容
+     */
+    public Flux<String> doChatStream(String message, String conversationId) {
+        log.info("Processing chat stream - conversationId: {}, message: {}", conversationId, message);
+
+        return chatClient
+                .prompt()
+                .user(message)
+                .advisors(
+                        a -> a.param(ChatMemory.CONVERSATION_ID, conversationId)
+                )
+                .stream()
+                .content();
+    }
+
     /**
      * 治疗报告记录
      */
@@ -2,6 +2,7 @@ package com.yu.histoaiagent.app;
 
 import com.yu.histoaiagent.advisor.MyLoggerAdvisor;
 import com.yu.histoaiagent.chatmemory.RedisChatMemory;
+import com.yu.histoaiagent.chatmemory.RollingSummaryCompactor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
@@ -9,6 +10,7 @@ import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 
@@ -60,18 +62,20 @@ public class TherapyAppRedis {
      * 
      * @param dashscopeChatModel AI模型
      * @param redisChatMemory Redis实现的ChatMemory
+     * @param rollingSummaryCompactor 长会话滚动摘要
      */
     public TherapyAppRedis(
             ChatModel dashscopeChatModel,
-            RedisChatMemory redisChatMemory) {
+            RedisChatMemory redisChatMemory,
+            RollingSummaryCompactor rollingSummaryCompactor) {
         
         log.info("Initializing TherapyAppRedis with Redis-based chat memory");
 
         chatClient = ChatClient.builder(dashscopeChatModel)
                 .defaultSystem(SYS_PROMPT)
                 .defaultAdvisors(
-                        // 使用Redis ChatMemory
-                        MessageChatMemoryAdvisor.builder(redisChatMemory).build(),
+                        // 使用Redis ChatMemory，长会话的早期消息在后台压缩成摘要
+                        MessageChatMemoryAdvisor.builder(rollingSummaryCompactor.wrap(redisChatMemory)).build(),
                         new MyLoggerAdvisor()
                 )
                 .build();
@@ -103,6 +107,26 @@ public class TherapyAppRedis {
         return content;
     }
 
+    /**
+     * AI基础多轮对话（流式）
+     *
+     * @param message 用户消息
+     * @param conversationId 会话ID
+     * @return 逐段返回的AI回复内容
+     */
+    public Flux<String> doChatStream(String message, String conversationId) {
+        log.info("Processing chat stream - conversationId: {}, message: {}", conversationId, message);
+
+        return chatClient
+                .prompt()
+                .user(message)
+                .advisors(
+                        a -> a.param(ChatMemory.CONVERSATION_ID, conversationId)
+                )
+                .stream()
+                .content();
+    }
+
     /**
      * 治疗报告记录
      */
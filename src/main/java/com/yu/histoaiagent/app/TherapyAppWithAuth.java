@@ -2,14 +2,16 @@ package com.yu.histoaiagent.app;
 
 import com.yu.histoaiagent.advisor.AuthorizationAdvisor;
 import com.yu.histoaiagent.advisor.MyLoggerAdvisor;
-import com.yu.histoaiagent.chatmemory.RedisChatMemory;
+import com.yu.histoaiagent.advisor.TokenBudgetMemoryAdvisor;
+import com.yu.histoaiagent.chatmemory.RollingSummaryCompactor;
+import com.yu.histoaiagent.chatmemory.TieredChatMemory;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 
@@ -18,8 +20,11 @@ import java.util.List;
  * 
  * Advisor执行顺序：
  * 1. AuthorizationAdvisor (order=0) - 权限校验
- * 2. MessageChatMemoryAdvisor (order=100) - 加载历史消息
+ * 2. TokenBudgetMemoryAdvisor (order=100) - 按角色token预算加载历史消息
  * 3. MyLoggerAdvisor (order=200) - 日志记录
+ *
+ * 对话记忆使用 TieredChatMemory（Redis热层 + MySQL冷层），Redis过期后从MySQL透明恢复；
+ * 经 RollingSummaryCompactor 包装，长会话的早期消息会在后台被压缩成摘要
  */
 @Component
 @Slf4j
@@ -65,7 +70,8 @@ public class TherapyAppWithAuth {
      */
     public TherapyAppWithAuth(
             ChatModel dashscopeChatModel,
-            RedisChatMemory redisChatMemory,
+            TieredChatMemory tieredChatMemory,
+            RollingSummaryCompactor rollingSummaryCompactor,
             AuthorizationAdvisor authorizationAdvisor) {
         
         log.info("Initializing TherapyAppWithAuth with Authorization");
@@ -76,8 +82,8 @@ public class TherapyAppWithAuth {
                         // ✅ 权限校验Advisor（最先执行）
                         authorizationAdvisor,
                         
-                        // ChatMemory Advisor
-                        MessageChatMemoryAdvisor.builder(redisChatMemory).build(),
+                        // ChatMemory Advisor：按角色的token预算携带历史消息
+                        new TokenBudgetMemoryAdvisor(rollingSummaryCompactor.wrap(tieredChatMemory)),
                         
                         // 日志Advisor
                         new MyLoggerAdvisor()
@@ -117,6 +123,31 @@ public class TherapyAppWithAuth {
         return content;
     }
 
+    /**
+     * AI对话（流式）- 带权限校验
+     *
+     * 订阅时校验权限并消耗配额，校验失败作为错误信号返回；
+     * 流结束时由 AuthorizationAdvisor 结算会话消息数（完成、取消、出错分别处理）
+     *
+     * @param message 用户消息
+     * @param userId 用户ID（必须）
+     * @param conversationId 会话ID（必须）
+     * @return 逐段返回的AI回复
+     */
+    public Flux<String> doChatStream(String message, String userId, String conversationId) {
+        log.info("Processing chat stream with auth - userId: {}, conversationId: {}", userId, conversationId);
+
+        return chatClient
+                .prompt()
+                .user(message)
+                .advisors(advisorSpec -> {
+                    advisorSpec.param(AuthorizationAdvisor.USER_ID_PARAM, userId);
+                    advisorSpec.param(ChatMemory.CONVERSATION_ID, conversationId);
+                })
+                .stream()
+                .content();
+    }
+
     /**
      * 管理员模式对话 - 跳过权限检查
      */
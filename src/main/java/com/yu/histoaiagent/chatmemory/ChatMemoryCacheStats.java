@@ -0,0 +1,23 @@
+package com.yu.histoaiagent.chatmemory;
+
+/**
+ * 对话记忆缓存的统计信息
+ *
+ * @param hits 命中次数
+ * @param misses 未命中次数
+ * @param evictions 因容量不足被淘汰的会话数
+ * @param entries 当前缓存的会话数
+ * @param weightBytes 当前缓存的消息总字节数
+ * @param maxWeightBytes 缓存容量上限（字节）
+ */
+public record ChatMemoryCacheStats(long hits, long misses, long evictions,
+                                   int entries, long weightBytes, long maxWeightBytes) {
+
+    /**
+     * 命中率，没有访问时返回0
+     */
+    public double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,128 @@
+package com.yu.histoaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * 对话记忆迁移的批处理入口
+ *
+ * 以批处理模式启动应用，迁移完成后退出（退出码0表示全部成功），例如：
+ * <pre>
+ * java -jar histo-ai-agent.jar --chat-memory.migration.enabled=true \
+ *     --chat-memory.migration.source=file --chat-memory.migration.target=tiered \
+ *     --chat-memory.migration.file-dir=/data/chat-memory --chat-memory.migration.threads=8
+ * </pre>
+ * 存储名：file、redis、mysql、tiered。中断后用相同参数重新启动即从检查点继续。
+ */
+@Component
+@ConditionalOnProperty(prefix = "chat-memory.migration", name = "enabled", havingValue = "true")
+@Slf4j
+public class ChatMemoryMigrationRunner implements ApplicationRunner {
+
+    private final RedisChatMemory redisChatMemory;
+    private final InMySqlChatMemory inMySqlChatMemory;
+    private final TieredChatMemory tieredChatMemory;
+    private final ConfigurableApplicationContext context;
+
+    private final String sourceName;
+    private final String targetName;
+    private final String fileDir;
+    private final int threads;
+    private final int pageSize;
+    private final String checkpoint;
+    private final boolean exitOnCompletion;
+
+    public ChatMemoryMigrationRunner(
+            RedisChatMemory redisChatMemory,
+            InMySqlChatMemory inMySqlChatMemory,
+            TieredChatMemory tieredChatMemory,
+            ConfigurableApplicationContext context,
+            @Value("${chat-memory.migration.source}") String sourceName,
+            @Value("${chat-memory.migration.target}") String targetName,
+            @Value("${chat-memory.migration.file-dir:${user.dir}/tmp/chat-memory}") String fileDir,
+            @Value("${chat-memory.migration.threads:4}") int threads,
+            @Value("${chat-memory.migration.page-size:500}") int pageSize,
+            @Value("${chat-memory.migration.checkpoint:${user.dir}/tmp/chat-memory-migration.checkpoint}") String checkpoint,
+            @Value("${chat-memory.migration.exit-on-completion:true}") boolean exitOnCompletion) {
+        this.redisChatMemory = redisChatMemory;
+        this.inMySqlChatMemory = inMySqlChatMemory;
+        this.tieredChatMemory = tieredChatMemory;
+        this.context = context;
+        this.sourceName = sourceName;
+        this.targetName = targetName;
+        this.fileDir = fileDir;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.checkpoint = checkpoint;
+        this.exitOnCompletion = exitOnCompletion;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (sourceName.equals(targetName)) {
+            throw new IllegalArgumentException("Migration source and target must differ: " + sourceName);
+        }
+        // 文件存储只在迁移期间打开，关闭过期清理，避免迁移过程中删除会话
+        FileBasedChatMemory fileChatMemory = "file".equals(sourceName) || "file".equals(targetName)
+                ? FileBasedChatMemory.builder(fileDir).ttl(Duration.ZERO).build() : null;
+        boolean succeeded;
+        try {
+            ChatMemory source = resolve(sourceName, fileChatMemory);
+            ChatMemory target = resolve(targetName, fileChatMemory);
+            if (!(source instanceof ConversationIdSource ids)) {
+                throw new IllegalArgumentException("Chat memory cannot enumerate conversations: " + sourceName);
+            }
+            log.info("Migrating chat memory from {} to {}, threads: {}, page size: {}, checkpoint: {}",
+                    sourceName, targetName, threads, pageSize, checkpoint);
+            // 分层记忆的完整历史在冷层，作为源时直接读冷层，不回填热层
+            ChatMemory sourceReader = source == tieredChatMemory ? inMySqlChatMemory : source;
+            ChatMemoryMigrator.MigrationReport report = ChatMemoryMigrator.builder(ids, sourceReader, target)
+                    .threads(threads)
+                    .pageSize(pageSize)
+                    // Redis只保留最新的若干条，按上限迁移，核对时才不会把裁剪误判为不一致
+                    .maxMessages(target == redisChatMemory ? redisChatMemory.getMaxMessages() : 0)
+                    // 分层记忆读取未命中时会回填热层，核对改为直接读冷层（完整历史）
+                    .targetReader(target == tieredChatMemory ? inMySqlChatMemory : target)
+                    .checkpoint(Path.of(checkpoint))
+                    .build()
+                    .run();
+            if (!report.succeeded()) {
+                log.error("{} conversations failed to migrate, first ones: {}",
+                        report.failed(), report.failedConversationIds());
+            }
+            if (report.conflicts() > 0) {
+                log.warn("{} conversations differ between source and target and were left unchanged, first ones: {}",
+                        report.conflicts(), report.conflictConversationIds());
+            }
+            succeeded = report.succeeded();
+        } finally {
+            if (fileChatMemory != null) {
+                fileChatMemory.close();
+            }
+        }
+        if (exitOnCompletion) {
+            int code = SpringApplication.exit(context, () -> succeeded ? 0 : 1);
+            System.exit(code);
+        }
+    }
+
+    private ChatMemory resolve(String name, FileBasedChatMemory fileChatMemory) {
+        return switch (name) {
+            case "file" -> fileChatMemory;
+            case "redis" -> redisChatMemory;
+            case "mysql" -> inMySqlChatMemory;
+            case "tiered" -> tieredChatMemory;
+            default -> throw new IllegalArgumentException("Unknown chat memory backend: " + name);
+        };
+    }
+}
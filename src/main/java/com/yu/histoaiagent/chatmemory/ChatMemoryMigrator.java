@@ -0,0 +1,426 @@
+package com.yu.histoaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在两个对话记忆存储之间流式迁移会话
+ *
+ * - 源存储按页枚举会话ID（见 {@link ConversationIdSource}），每页交给一个工作线程，
+ *   同时处理的页数有上限，内存占用只与 页大小 x 并发页数 x 单个会话大小 有关，与会话总数无关
+ * - 逐个会话复制：目标与源一致时跳过；目标为空或是源的严格前缀（上次中断在写入途中）时补写缺少的部分，
+ *   写入后重新读取核对消息数；其他情况（目标比源多，例如切换后已有新的对话写入目标，或内容不一致）
+ *   记为冲突，不修改目标，留给人工处理。目标从不被清空，重复执行是幂等的，中断后可以安全地从任意位置重跑。读取目标可改用另一个存储（见 {@link Builder#targetReader}），
+ *   例如目标为分层记忆时直接读冷层，避免每个会话都被回填到热层
+ * - 断点续传：检查点记录"低水位"游标——它之前的所有页都已成功完成；
+ *   页乱序完成时水位只推进到第一个未完成（或失败）的页，重启后从该页重新开始
+ */
+@Slf4j
+public class ChatMemoryMigrator {
+
+    private static final String CURSOR_KEY = "cursor";
+    private static final String DONE_KEY = "done";
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    private final ConversationIdSource ids;
+    private final ChatMemory source;
+    private final ChatMemory target;
+    private final ChatMemory targetReader;
+    private final int threads;
+    private final int pageSize;
+    private final int maxInFlightPages;
+    private final int maxMessages;
+    private final Path checkpoint;
+
+    private final LongAdder conversations = new LongAdder();
+    private final LongAdder migrated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final List<String> conflicts = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger conflictCount = new AtomicInteger();
+
+    /**
+     * 迁移结果
+     *
+     * @param conversations 处理的会话数（不含空会话）
+     * @param migrated 写入目标的会话数
+     * @param skipped 目标中已一致而跳过的会话数
+     * @param failed 失败（异常或核对不一致）的会话数
+     * @param conflicts 目标与源冲突、未做修改的会话数
+     * @param messages 写入目标的消息数
+     * @param failedConversationIds 失败的会话ID（最多保留前100个）
+     * @param conflictConversationIds 冲突的会话ID（最多保留前100个）
+     */
+    public record MigrationReport(long conversations, long migrated, long skipped, long failed, long conflicts,
+                                  long messages, List<String> failedConversationIds,
+                                  List<String> conflictConversationIds, Duration elapsed) {
+
+        public boolean succeeded() {
+            return failed == 0;
+        }
+    }
+
+    private ChatMemoryMigrator(Builder builder) {
+        this.ids = builder.ids;
+        this.source = builder.source;
+        this.target = builder.target;
+        this.targetReader = builder.targetReader != null ? builder.targetReader : builder.target;
+        this.threads = builder.threads;
+        this.pageSize = builder.pageSize;
+        this.maxInFlightPages = builder.maxInFlightPages > 0 ? builder.maxInFlightPages : builder.threads * 2;
+        this.maxMessages = builder.maxMessages;
+        this.checkpoint = builder.checkpoint;
+    }
+
+    /**
+     * @param ids 源存储的会话枚举，通常就是源存储本身
+     * @param source 源存储
+     * @param target 目标存储
+     */
+    public static Builder builder(ConversationIdSource ids, ChatMemory source, ChatMemory target) {
+        return new Builder(ids, source, target);
+    }
+
+    /**
+     * 执行迁移，阻塞直到全部页处理完成；有检查点时从检查点继续
+     */
+    public MigrationReport run() {
+        long start = System.nanoTime();
+        Properties state = loadCheckpoint();
+        if (Boolean.parseBoolean(state.getProperty(DONE_KEY))) {
+            log.info("Chat memory migration already completed according to checkpoint {}", checkpoint);
+            return report(start);
+        }
+        String cursor = state.getProperty(CURSOR_KEY);
+        if (cursor != null) {
+            log.info("Resuming chat memory migration from cursor {}", cursor);
+        }
+
+        Watermark watermark = new Watermark();
+        Semaphore inFlight = new Semaphore(maxInFlightPages);
+        AtomicInteger index = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "chat-memory-migrator-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long sequence = 0;
+            while (true) {
+                inFlight.acquire();
+                ConversationIdSource.Page page;
+                try {
+                    page = ids.conversationIds(cursor, pageSize);
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                long pageSequence = sequence++;
+                watermark.register(pageSequence, page.nextCursor());
+                workers.execute(() -> {
+                    boolean ok = false;
+                    try {
+                        ok = migratePage(page.conversationIds());
+                    } finally {
+                        watermark.complete(pageSequence, ok);
+                        inFlight.release();
+                    }
+                });
+                if (page.nextCursor() == null) {
+                    break;
+                }
+                cursor = page.nextCursor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Chat memory migration interrupted, progress saved to {}", checkpoint);
+        } finally {
+            workers.shutdown();
+            awaitTermination(workers);
+        }
+
+        MigrationReport report = report(start);
+        log.info("Chat memory migration finished: {} conversations, {} migrated, {} skipped, {} failed, "
+                        + "{} conflicts, {} messages in {}s",
+                report.conversations(), report.migrated(), report.skipped(), report.failed(), report.conflicts(),
+                report.messages(), report.elapsed().toSeconds());
+        return report;
+    }
+
+    /**
+     * @return 本页是否全部成功
+     */
+    private boolean migratePage(List<String> conversationIds) {
+        boolean ok = true;
+        for (String conversationId : conversationIds) {
+            try {
+                ok &= migrateConversation(conversationId);
+            } catch (Exception e) {
+                log.error("Failed to migrate conversation: {}", conversationId, e);
+                recordFailure(conversationId);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private boolean migrateConversation(String conversationId) {
+        List<Message> all = source.get(conversationId);
+        if (all.isEmpty()) {
+            return true;
+        }
+        conversations.increment();
+        List<Message> expected = maxMessages > 0 && all.size() > maxMessages
+                ? all.subList(all.size() - maxMessages, all.size()) : all;
+
+        List<Message> existing = targetReader.get(conversationId);
+        if (!startsWith(expected, existing)) {
+            // 目标比源多或内容不一致：可能已有新的对话写入目标，不覆盖
+            log.warn("Conversation {} in target conflicts with source ({} vs {} messages), left unchanged",
+                    conversationId, existing.size(), expected.size());
+            if (conflictCount.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+                conflicts.add(conversationId);
+            }
+            return true;
+        }
+        if (existing.size() == expected.size()) {
+            skipped.increment();
+            return true;
+        }
+        // 目标为空或是源的严格前缀：只补写缺少的部分
+        target.add(conversationId, expected.subList(existing.size(), expected.size()));
+
+        int actual = targetReader.get(conversationId).size();
+        if (actual != expected.size()) {
+            log.error("Message count mismatch after migrating conversation {}: expected {}, actual {}",
+                    conversationId, expected.size(), actual);
+            recordFailure(conversationId);
+            return false;
+        }
+        migrated.increment();
+        messages.add(expected.size() - existing.size());
+        return true;
+    }
+
+    private void recordFailure(String conversationId) {
+        if (failureCount.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+            failures.add(conversationId);
+        }
+    }
+
+    private MigrationReport report(long start) {
+        return new MigrationReport(conversations.sum(), migrated.sum(), skipped.sum(), failureCount.get(),
+                conflictCount.get(), messages.sum(), List.copyOf(failures), List.copyOf(conflicts),
+                Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * messages 是否以 prefix 开头（按消息类型和文本比较）
+     */
+    private static boolean startsWith(List<Message> messages, List<Message> prefix) {
+        if (messages.size() < prefix.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            Message a = messages.get(i);
+            Message b = prefix.get(i);
+            if (a.getMessageType() != b.getMessageType() || !Objects.equals(a.getText(), b.getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitTermination(ExecutorService workers) {
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for chat memory migration workers to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 页的完成水位：按页序号记录，连续完成的页推进检查点
+     */
+    private final class Watermark {
+
+        /**
+         * 已登记、水位尚未越过的页 -> 该页之后的游标
+         */
+        private final Map<Long, String> cursorAfter = new HashMap<>();
+        private final TreeSet<Long> completed = new TreeSet<>();
+        private long next;
+
+        synchronized void register(long sequence, String nextCursor) {
+            cursorAfter.put(sequence, nextCursor);
+        }
+
+        synchronized void complete(long sequence, boolean ok) {
+            if (!ok) {
+                // 失败的页不推进水位，重启后从这一页重新开始
+                return;
+            }
+            completed.add(sequence);
+            String cursor = null;
+            boolean advanced = false;
+            while (completed.remove(next)) {
+                cursor = cursorAfter.remove(next);
+                next++;
+                advanced = true;
+            }
+            if (advanced) {
+                saveCheckpoint(cursor);
+            }
+        }
+    }
+
+    private Properties loadCheckpoint() {
+        Properties state = new Properties();
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            try (InputStream in = Files.newInputStream(checkpoint)) {
+                state.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read migration checkpoint: " + checkpoint, e);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 先写临时文件再原子替换，进程在任意时刻退出都不会留下损坏的检查点
+     *
+     * @param cursor 下一页的游标，为null表示已全部完成
+     */
+    private void saveCheckpoint(String cursor) {
+        if (checkpoint == null) {
+            return;
+        }
+        Properties state = new Properties();
+        if (cursor == null) {
+            state.setProperty(DONE_KEY, "true");
+        } else {
+            state.setProperty(CURSOR_KEY, cursor);
+        }
+        try {
+            Path parent = checkpoint.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, checkpoint.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                state.store(out, "chat memory migration checkpoint");
+            }
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 检查点写入失败不影响迁移本身，重启时会多做一些幂等的重复工作
+            log.warn("Failed to save migration checkpoint: {}", checkpoint, e);
+        }
+    }
+
+    /**
+     * ChatMemoryMigrator 构建器
+     */
+    public static final class Builder {
+
+        private final ConversationIdSource ids;
+        private final ChatMemory source;
+        private final ChatMemory target;
+        private ChatMemory targetReader;
+        private int threads = 4;
+        private int pageSize = 500;
+        private int maxInFlightPages;
+        private int maxMessages;
+        private Path checkpoint;
+
+        private Builder(ConversationIdSource ids, ChatMemory source, ChatMemory target) {
+            this.ids = ids;
+            this.source = source;
+            this.target = target;
+        }
+
+        /**
+         * 工作线程数，默认4
+         */
+        public Builder threads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads must be positive");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * 每页会话数，默认500
+         */
+        public Builder pageSize(int pageSize) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive");
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * 同时在处理中的最大页数，默认为线程数的2倍
+         */
+        public Builder maxInFlightPages(int maxInFlightPages) {
+            this.maxInFlightPages = maxInFlightPages;
+            return this;
+        }
+
+        /**
+         * 每个会话最多迁移最新的多少条消息，0表示全部；目标存储有条数上限时（如Redis）应设为该上限
+         */
+        public Builder maxMessages(int maxMessages) {
+            this.maxMessages = Math.max(0, maxMessages);
+            return this;
+        }
+
+        /**
+         * 跳过判断和写入后核对时读取目标的存储，默认为目标本身；
+         * 目标读取有副作用时（如分层记忆未命中时回填热层）传入保存完整历史的底层存储
+         */
+        public Builder targetReader(ChatMemory targetReader) {
+            this.targetReader = targetReader;
+            return this;
+        }
+
+        /**
+         * 检查点文件，为null时不支持断点续传
+         */
+        public Builder checkpoint(Path checkpoint) {
+            this.checkpoint = checkpoint;
+            return this;
+        }
+
+        public ChatMemoryMigrator build() {
+            return new ChatMemoryMigrator(this);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.yu.histoaiagent.mapper.ChatMemoryPartitionMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * ai_chat_memory 分区维护任务
+ *
+ * 每天执行一次：
+ * 1. 预建热表未来几个月的分区（拆分 pmax）
+ * 2. 超过热数据保留期的月分区整体复制到压缩归档表，同步复制期间的逻辑删除，
+ *    核对归档表中的行数与热表分区一致后再 DROP PARTITION，不一致时保留分区、下次重试
+ * 3. 超过归档保留期的归档分区直接 DROP PARTITION
+ *
+ * 分区删除是元数据操作，不产生逐行删除的undo和purge开销。
+ * 每一步都可重复执行（归档使用 INSERT IGNORE），中途失败下次会继续。
+ * 多个节点通过Redis中的锁保证同一时刻只有一个节点执行DDL；锁不释放，在 lock-ttl-ms 后过期，
+ * 应大于一次维护的耗时、小于执行间隔。没有Redis时（单节点部署）不加锁。
+ *
+ * 通过 chat-memory.mysql.partition.enabled=true 开启，需先执行 V3 迁移
+ */
+@Component
+@ConditionalOnProperty(prefix = "chat-memory.mysql.partition", name = "enabled", havingValue = "true")
+@Slf4j
+public class ChatMemoryPartitionManager {
+
+    static final String HOT_TABLE = "ai_chat_memory";
+    static final String ARCHIVE_TABLE = "ai_chat_memory_archive";
+    private static final String MAX_PARTITION = "pmax";
+    private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final String LOCK_KEY = "chat:memory:partition:lock";
+
+    private final ChatMemoryPartitionMapper partitionMapper;
+    private final ZoneId zone;
+    private final int hotMonths;
+    private final int archiveMonths;
+    private final int futureMonths;
+
+    /**
+     * 跨节点互斥，没有Redis时为null
+     */
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Duration lockTtl;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Autowired
+    public ChatMemoryPartitionManager(
+            ChatMemoryPartitionMapper partitionMapper,
+            ObjectProvider<StringRedisTemplate> stringRedisTemplate,
+            @Value("${chat-memory.mysql.partition.zone:Asia/Shanghai}") String zone,
+            @Value("${chat-memory.mysql.partition.hot-months:3}") int hotMonths,
+            @Value("${chat-memory.mysql.partition.archive-months:24}") int archiveMonths,
+            @Value("${chat-memory.mysql.partition.future-months:2}") int futureMonths,
+            @Value("${chat-memory.mysql.partition.lock-ttl-ms:3600000}") long lockTtlMillis) {
+        this(partitionMapper, stringRedisTemplate.getIfAvailable(), zone, hotMonths, archiveMonths, futureMonths,
+                Duration.ofMillis(lockTtlMillis));
+    }
+
+    ChatMemoryPartitionManager(ChatMemoryPartitionMapper partitionMapper, StringRedisTemplate stringRedisTemplate,
+                               String zone, int hotMonths, int archiveMonths, int futureMonths, Duration lockTtl) {
+        this.partitionMapper = partitionMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.zone = ZoneId.of(zone);
+        this.hotMonths = hotMonths;
+        this.archiveMonths = archiveMonths;
+        this.futureMonths = futureMonths;
+        this.lockTtl = lockTtl;
+    }
+
+    @Scheduled(cron = "${chat-memory.mysql.partition.cron:0 30 3 * * ?}", zone = "${chat-memory.mysql.partition.zone:Asia/Shanghai}")
+    public void maintain() {
+        YearMonth current = YearMonth.now(zone);
+        try {
+            if (stringRedisTemplate != null
+                    && !Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(LOCK_KEY, nodeId, lockTtl))) {
+                log.debug("Chat memory partition maintenance is running on another node");
+                return;
+            }
+            ensurePartitionsThrough(HOT_TABLE, current, current.plusMonths(futureMonths));
+            archiveBefore(current.minusMonths(hotMonths));
+            dropBefore(ARCHIVE_TABLE, current.minusMonths(archiveMonths));
+        } catch (Exception e) {
+            // 吞掉异常，避免影响其他定时任务，下次继续
+            log.error("Chat memory partition maintenance failed", e);
+        }
+    }
+
+    /**
+     * 将早于 cutoff 的热表分区逐个归档并删除（从最旧的开始）
+     * 某个分区核对不一致时停止，更新的分区留到下次，保证归档始终从最旧的月份连续进行
+     */
+    void archiveBefore(YearMonth cutoff) {
+        for (String partition : partitionMapper.listPartitions(HOT_TABLE)) {
+            YearMonth month = monthOf(partition);
+            if (month == null || !month.isBefore(cutoff)) {
+                continue;
+            }
+            ensurePartitionsThrough(ARCHIVE_TABLE, month, month);
+            int copied = partitionMapper.copyToArchive(partition);
+            partitionMapper.syncDeletedToArchive(partition);
+            long live = partitionMapper.countLive(partition);
+            long archived = partitionMapper.countLiveArchived(partition);
+            if (archived != live) {
+                log.error("Chat memory partition {} has {} live rows but {} in {}, keeping it",
+                        partition, live, archived, ARCHIVE_TABLE);
+                return;
+            }
+            partitionMapper.dropPartition(HOT_TABLE, partition);
+            log.info("Archived chat memory partition {}, {} rows moved to {}", partition, copied, ARCHIVE_TABLE);
+        }
+    }
+
+    /**
+     * 删除早于 cutoff 的月分区
+     */
+    void dropBefore(String table, YearMonth cutoff) {
+        for (String partition : partitionMapper.listPartitions(table)) {
+            YearMonth month = monthOf(partition);
+            if (month != null && month.isBefore(cutoff)) {
+                partitionMapper.dropPartition(table, partition);
+                log.info("Dropped expired partition {}.{}", table, partition);
+            }
+        }
+    }
+
+    /**
+     * 保证表中有直到 last 月（含）的月分区
+     * 新分区从已有的最后一个月分区之后开始，没有月分区时从 first 开始；拆分 pmax 时，
+     * pmax 中已有的行按新边界落入对应分区
+     */
+    void ensurePartitionsThrough(String table, YearMonth first, YearMonth last) {
+        List<String> partitions = partitionMapper.listPartitions(table);
+        if (partitions.isEmpty()) {
+            log.warn("Table {} is not partitioned, skipping partition maintenance", table);
+            return;
+        }
+        YearMonth start = first;
+        for (String partition : partitions) {
+            YearMonth month = monthOf(partition);
+            if (month != null && !month.isBefore(start)) {
+                start = month.plusMonths(1);
+            }
+        }
+        if (start.isAfter(last)) {
+            return;
+        }
+
+        List<String> created = new ArrayList<>();
+        StringJoiner definitions = new StringJoiner(", ");
+        for (YearMonth month = start; !month.isAfter(last); month = month.plusMonths(1)) {
+            String name = partitionName(month);
+            definitions.add("PARTITION " + name + " VALUES LESS THAN (" + upperBound(month) + ")");
+            created.add(name);
+        }
+        partitionMapper.splitMaxPartition(table, definitions.toString());
+        log.info("Created partitions {} on {}", created, table);
+    }
+
+    static String partitionName(YearMonth month) {
+        return month.format(PARTITION_FORMAT);
+    }
+
+    /**
+     * 从分区名解析月份，pmax 或其他名称返回null
+     */
+    static YearMonth monthOf(String partition) {
+        if (MAX_PARTITION.equals(partition)) {
+            return null;
+        }
+        try {
+            return YearMonth.parse(partition, PARTITION_FORMAT);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 月分区上界：下月1日0点的Unix时间戳（秒）
+     */
+    private long upperBound(YearMonth month) {
+        return month.plusMonths(1).atDay(1).atStartOfDay(zone).toEpochSecond();
+    }
+}
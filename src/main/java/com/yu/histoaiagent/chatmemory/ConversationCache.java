@@ -0,0 +1,181 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按消息字节数限容的会话LRU缓存
+ *
+ * 缓存的是已解码的完整会话消息列表，每个会话的权重为其消息编码后的字节数，
+ * 总权重超过上限时从最久未访问的会话开始淘汰；单个会话超过上限时不缓存。
+ * 缓存只保存完整会话：调用方在持有会话锁时写入，保证与底层存储一致。
+ * 缓存的消息列表不可变，追加时整体替换，命中时直接返回缓存的列表（或其尾部视图），不复制也不在锁内做额外工作。
+ * 不持有会话锁的加载方（或失效来自其他节点时）使用版本号：每次追加和失效都会推进该会话所在分段的版本号，
+ * 加载方在读存储前取版本号，写入时用 {@link #putIfCurrent} 校验，期间发生过写入或失效则放弃写入。
+ */
+final class ConversationCache {
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    /**
+     * 每个会话条目的固定开销，避免大量空会话不占权重、无法被淘汰
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxWeightBytes;
+
+    /**
+     * 按会话ID分段的失效版本号
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /**
+     * accessOrder = true：迭代顺序即LRU顺序，最久未访问的在最前
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weightBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        List<Message> messages;
+        long weight;
+
+        Entry(List<Message> messages, long weight) {
+            this.messages = messages;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param maxWeightBytes 缓存容量上限（字节）
+     */
+    ConversationCache(long maxWeightBytes) {
+        this.maxWeightBytes = maxWeightBytes;
+    }
+
+    /**
+     * 获取会话的全部消息，未缓存时返回null
+     */
+    List<Message> get(String conversationId) {
+        return tail(conversationId, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 获取会话最近N条消息，未缓存时返回null
+     */
+    List<Message> tail(String conversationId, int lastN) {
+        List<Message> messages;
+        synchronized (this) {
+            Entry entry = entries.get(conversationId);
+            messages = entry != null ? entry.messages : null;
+        }
+        if (messages == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return messages.size() <= lastN ? messages : messages.subList(messages.size() - lastN, messages.size());
+    }
+
+    /**
+     * 缓存一个会话的完整消息列表，替换已有内容
+     *
+     * @param weight 消息编码后的总字节数
+     */
+    synchronized void put(String conversationId, List<Message> messages, long weight) {
+        remove(conversationId);
+        weight += ENTRY_OVERHEAD_BYTES;
+        if (weight > maxWeightBytes) {
+            return;
+        }
+        entries.put(conversationId, new Entry(List.copyOf(messages), weight));
+        weightBytes += weight;
+        evictIfNeeded();
+    }
+
+    /**
+     * 写穿：会话已缓存时把新消息追加到缓存中，未缓存时不做任何事
+     *
+     * @param weight 新消息编码后的总字节数
+     */
+    synchronized void appendIfPresent(String conversationId, List<Message> messages, long weight) {
+        generations.incrementAndGet(stripe(conversationId));
+        Entry entry = entries.get(conversationId);
+        if (entry == null) {
+            return;
+        }
+        List<Message> appended = new ArrayList<>(entry.messages.size() + messages.size());
+        appended.addAll(entry.messages);
+        appended.addAll(messages);
+        entry.messages = Collections.unmodifiableList(appended);
+        entry.weight += weight;
+        weightBytes += weight;
+        if (entry.weight > maxWeightBytes) {
+            remove(conversationId);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * 加载前读取会话的失效版本号，配合 {@link #putIfCurrent} 使用
+     */
+    long generation(String conversationId) {
+        return generations.get(stripe(conversationId));
+    }
+
+    /**
+     * 仅当读取存储期间会话没有被失效过时才写入缓存
+     *
+     * @param generation 读取存储前通过 {@link #generation} 取得的版本号
+     */
+    synchronized void putIfCurrent(String conversationId, List<Message> messages, long weight, long generation) {
+        if (generations.get(stripe(conversationId)) == generation) {
+            put(conversationId, messages, weight);
+        }
+    }
+
+    synchronized void invalidate(String conversationId) {
+        generations.incrementAndGet(stripe(conversationId));
+        remove(conversationId);
+    }
+
+    ChatMemoryCacheStats stats() {
+        synchronized (this) {
+            return new ChatMemoryCacheStats(hits.sum(), misses.sum(), evictions.sum(),
+                    entries.size(), weightBytes, maxWeightBytes);
+        }
+    }
+
+    private static int stripe(String conversationId) {
+        int h = conversationId.hashCode();
+        h ^= (h >>> 16);
+        return h & (GENERATION_STRIPES - 1);
+    }
+
+    private void remove(String conversationId) {
+        Entry removed = entries.remove(conversationId);
+        if (removed != null) {
+            weightBytes -= removed.weight;
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (weightBytes > maxWeightBytes && it.hasNext()) {
+            weightBytes -= it.next().getValue().weight;
+            it.remove();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.yu.histoaiagent.chatmemory;
+
+import java.util.List;
+
+/**
+ * 可分页枚举会话ID的对话记忆存储（用于迁移、回填等批处理）
+ *
+ * 游标是存储自定义的不透明字符串，可以持久化后用于断点续传；
+ * 同一游标重复读取应返回相同或等价的会话（枚举期间新建的会话不保证出现）。
+ */
+public interface ConversationIdSource {
+
+    /**
+     * 一页会话ID
+     *
+     * @param conversationIds 本页的会话ID，可能为空（枚举尚未结束）
+     * @param nextCursor 下一页的游标，为null表示已经枚举完毕
+     */
+    record Page(List<String> conversationIds, String nextCursor) {
+    }
+
+    /**
+     * 读取一页会话ID
+     *
+     * @param cursor 上一页返回的游标，为null表示从头开始
+     * @param limit 期望的每页数量（近似值，存储可以返回略多或略少）
+     */
+    Page conversationIds(String cursor, int limit);
+}
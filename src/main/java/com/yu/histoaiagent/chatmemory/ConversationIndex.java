@@ -0,0 +1,108 @@
+package com.yu.histoaiagent.chatmemory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 会话日志的偏移索引文件（{conversationId}.idx）
+ *
+ * 文件内容是定长的 long 数组，第 i 项为第 i 条记录在日志中的起始偏移。
+ * 写入顺序为：日志记录 -> 日志文件头 -> 索引，因此索引只可能落后于日志、不会超前；
+ * 落后的部分在下一次追加时根据日志补齐，读取时则退回全量扫描。
+ * 日志被压缩重写前会先删除索引，避免旧偏移指向新文件。
+ */
+final class ConversationIndex {
+
+    static final int ENTRY_SIZE = Long.BYTES;
+
+    private ConversationIndex() {
+    }
+
+    /**
+     * 在追加日志后写入新记录的偏移（调用方需持有写锁）
+     * 若索引落后于追加前的记录数，先根据日志补齐缺失的条目
+     *
+     * @param indexFile 索引文件
+     * @param logFile 日志文件
+     * @param countBefore 本次追加前日志中的记录数
+     * @param offsets 本次追加的记录偏移
+     */
+    static void append(Path indexFile, Path logFile, long countBefore, long[] offsets) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long entries = channel.size() / ENTRY_SIZE;
+            if (entries < countBefore) {
+                entries = repair(channel, logFile, entries, countBefore);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(offsets.length * ENTRY_SIZE);
+            for (long offset : offsets) {
+                buffer.putLong(offset);
+            }
+            buffer.flip();
+            long position = Math.min(entries, countBefore) * ENTRY_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * 按位置读取第 index 条记录的起始偏移
+     * 只读取需要的8个字节，尾部读取与索引总长度无关；不做内存映射，避免每次调用建立和释放映射的开销
+     *
+     * @return 偏移；索引不存在或不完整时返回 -1
+     */
+    static long offsetOf(Path indexFile, long index) throws IOException {
+        if (index < 0) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            long position = index * ENTRY_SIZE;
+            while (entry.hasRemaining()) {
+                if (channel.read(entry, position + entry.position()) < 0) {
+                    return -1;
+                }
+            }
+            return entry.flip().getLong();
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 根据日志补齐索引中缺失的条目
+     *
+     * @return 补齐后的条目数
+     */
+    private static long repair(FileChannel channel, Path logFile, long entries, long targetCount) throws IOException {
+        try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long offset;
+            if (entries == 0) {
+                offset = ConversationLog.HEADER_SIZE;
+            } else {
+                ByteBuffer last = ByteBuffer.allocate(ENTRY_SIZE);
+                channel.read(last, (entries - 1) * ENTRY_SIZE);
+                last.flip();
+                offset = ConversationLog.nextRecordOffset(log, last.getLong());
+            }
+
+            long position = entries * ENTRY_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+            while (entries < targetCount) {
+                buffer.clear();
+                buffer.putLong(offset).flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                offset = ConversationLog.nextRecordOffset(log, offset);
+                entries++;
+            }
+            return entries;
+        }
+    }
+}
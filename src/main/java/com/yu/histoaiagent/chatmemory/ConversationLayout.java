@@ -0,0 +1,92 @@
+package com.yu.histoaiagent.chatmemory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * 文件对话记忆的目录布局
+ *
+ * 会话文件按会话ID的CRC32散列到两级子目录：{baseDir}/{aa}/{bb}/{conversationId}.log，
+ * 共 256 * 256 个目录，百万级会话时每个目录只有几十个文件，目录查找和遍历都保持在常数级。
+ * 旧版本直接平铺在 {baseDir} 下的文件由 {@link FileBasedChatMemory} 负责迁移。
+ */
+final class ConversationLayout {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String LEGACY_SUFFIX = ".kryo";
+
+    /**
+     * 一级分片目录数
+     */
+    static final int SHARD_COUNT = 256;
+
+    /**
+     * 二级（叶子）分片目录总数
+     */
+    static final int LEAF_SHARD_COUNT = SHARD_COUNT * SHARD_COUNT;
+
+    private final Path baseDir;
+
+    ConversationLayout(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    Path baseDir() {
+        return baseDir;
+    }
+
+    /**
+     * 第 i 个一级分片目录
+     */
+    Path topLevelShard(int i) {
+        return baseDir.resolve(hex(i));
+    }
+
+    /**
+     * 第 i 个叶子分片目录，i 的高8位为一级目录、低8位为二级目录
+     */
+    Path leafShard(int i) {
+        return topLevelShard(i >>> 8).resolve(hex(i & 0xff));
+    }
+
+    Path shardDir(String conversationId) {
+        CRC32 crc = new CRC32();
+        crc.update(conversationId.getBytes(StandardCharsets.UTF_8));
+        long hash = crc.getValue();
+        return baseDir.resolve(hex((int) (hash >>> 24) & 0xff)).resolve(hex((int) (hash >>> 16) & 0xff));
+    }
+
+    Path logFile(String conversationId) {
+        return shardDir(conversationId).resolve(conversationId + LOG_SUFFIX);
+    }
+
+    Path indexFile(String conversationId) {
+        return shardDir(conversationId).resolve(conversationId + INDEX_SUFFIX);
+    }
+
+    Path flatLogFile(String conversationId) {
+        return baseDir.resolve(conversationId + LOG_SUFFIX);
+    }
+
+    Path flatIndexFile(String conversationId) {
+        return baseDir.resolve(conversationId + INDEX_SUFFIX);
+    }
+
+    Path flatLegacyFile(String conversationId) {
+        return baseDir.resolve(conversationId + LEGACY_SUFFIX);
+    }
+
+    /**
+     * 从文件名中取出会话ID，后缀不匹配时返回null
+     */
+    static String conversationIdOf(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        return name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : null;
+    }
+
+    private static String hex(int value) {
+        return String.format("%02x", value);
+    }
+}
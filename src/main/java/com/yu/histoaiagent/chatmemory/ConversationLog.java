@@ -0,0 +1,311 @@
+package com.yu.histoaiagent.chatmemory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 单个会话的追加式日志文件
+ *
+ * 文件结构：
+ * - 文件头（24字节）：magic(4) + version(4) + committedLength(8) + recordCount(8)
+ * - 记录：length(4) + crc32(4) + payload(length)
+ *
+ * 写入时先在已提交长度之后写记录，再更新文件头中的提交长度和记录数。
+ * 进程崩溃时未提交的半截记录落在提交长度之外，读取时直接忽略，下次追加时被覆盖，
+ * 因此恢复只需读取文件头，不需要扫描整个文件。
+ * 只有文件头中的提交长度不可信（超出物理长度，说明刷盘顺序被打乱）时，才从文件头之后逐条校验记录，
+ * 截断到第一条损坏的记录为止；下次追加时按恢复的结果截断文件并重写文件头。
+ */
+final class ConversationLog {
+
+    static final int MAGIC = 0x48434C47; // "HCLG"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private ConversationLog() {
+    }
+
+    /**
+     * 文件头中的提交状态
+     *
+     * @param recovered 是否由逐条扫描记录恢复（文件头中的值不可信）
+     */
+    record Header(long committedLength, long recordCount, boolean recovered) {
+
+        Header(long committedLength, long recordCount) {
+            this(committedLength, recordCount, false);
+        }
+    }
+
+    /**
+     * 追加结果：每条新记录的起始偏移，以及追加后的记录总数
+     */
+    record AppendResult(long[] offsets, long recordCount) {
+    }
+
+    /**
+     * 追加一批记录，一次顺序写完成
+     *
+     * @param file 日志文件
+     * @param payloads 已编码的记录内容
+     * @param fsync 是否在提交前后强制刷盘
+     * @return 追加结果
+     */
+    static AppendResult append(Path file, List<byte[]> payloads, boolean fsync) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Header header = readOrInitHeader(channel);
+
+            long[] offsets = new long[payloads.size()];
+            ByteBuffer buffer = encodeRecords(payloads, header.committedLength(), offsets);
+            long newLength = header.committedLength() + buffer.remaining();
+
+            writeFully(channel, buffer, header.committedLength());
+            if (fsync) {
+                channel.force(false);
+            }
+            long recordCount = header.recordCount() + payloads.size();
+            writeHeader(channel, newLength, recordCount);
+            if (fsync) {
+                channel.force(false);
+            }
+            return new AppendResult(offsets, recordCount);
+        }
+    }
+
+    /**
+     * 读取文件头，文件不存在时返回null
+     */
+    static Header readHeader(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel);
+        }
+    }
+
+    /**
+     * 读取从指定偏移开始到提交长度为止的全部记录
+     * 遇到CRC校验失败的记录时停止，只返回之前完好的部分
+     *
+     * @param file 日志文件
+     * @param fromOffset 起始偏移，必须是某条记录的起点
+     * @return 记录内容列表
+     */
+    static List<byte[]> readRecords(Path file, long fromOffset) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return payloads;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            if (header == null) {
+                return payloads;
+            }
+            long start = Math.max(fromOffset, HEADER_SIZE);
+            long end = header.committedLength();
+            if (start >= end) {
+                return payloads;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(end - start));
+            readFully(channel, buffer, start);
+            buffer.flip();
+            decodeRecords(buffer, payloads);
+        }
+        return payloads;
+    }
+
+    /**
+     * 用给定记录原子地重写整个日志（压缩时使用）
+     * 先写临时文件并刷盘，再原子替换原文件
+     *
+     * @return 每条记录在新文件中的起始偏移
+     */
+    static long[] rewrite(Path file, List<byte[]> payloads) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        long[] offsets = new long[payloads.size()];
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = encodeRecords(payloads, HEADER_SIZE, offsets);
+            long length = HEADER_SIZE + buffer.remaining();
+            writeFully(channel, buffer, HEADER_SIZE);
+            writeHeader(channel, length, payloads.size());
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return offsets;
+    }
+
+    /**
+     * 物理文件长度与提交长度之差（崩溃残留的未提交字节）
+     */
+    static long danglingBytes(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            return header == null ? channel.size() : channel.size() - header.committedLength();
+        }
+    }
+
+    /**
+     * 根据记录头中的长度计算下一条记录的起始偏移
+     */
+    static long nextRecordOffset(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, buffer, offset);
+        buffer.flip();
+        return offset + RECORD_HEADER_SIZE + buffer.getInt();
+    }
+
+    private static Header readOrInitHeader(FileChannel channel) throws IOException {
+        Header header = readHeader(channel);
+        if (header == null) {
+            // 新文件或文件头在创建时被截断：重新初始化
+            writeHeader(channel, HEADER_SIZE, 0);
+            header = new Header(HEADER_SIZE, 0);
+        } else if (header.recovered()) {
+            // 丢弃损坏记录之后的内容，按扫描结果重写文件头
+            channel.truncate(header.committedLength());
+            writeHeader(channel, header.committedLength(), header.recordCount());
+            channel.force(false);
+            header = new Header(header.committedLength(), header.recordCount());
+        }
+        return header;
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a conversation log file, bad magic: " + Integer.toHexString(magic));
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported conversation log version: " + version);
+        }
+        long committedLength = buffer.getLong();
+        long recordCount = buffer.getLong();
+        // 提交长度超过物理长度说明刷盘顺序被打乱，逐条校验记录恢复
+        if (committedLength < HEADER_SIZE || committedLength > channel.size()) {
+            return scanRecords(channel);
+        }
+        return new Header(committedLength, recordCount);
+    }
+
+    /**
+     * 从文件头之后逐条校验记录，直到物理末尾或第一条长度越界、CRC不符的记录
+     *
+     * @return 最后一条完好记录的末尾作为提交长度
+     */
+    private static Header scanRecords(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        long count = 0;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, offset);
+            recordHeader.flip();
+            int length = recordHeader.getInt();
+            int expectedCrc = recordHeader.getInt();
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, offset + RECORD_HEADER_SIZE);
+            payload.flip();
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        return new Header(offset, count, true);
+    }
+
+    private static void writeHeader(FileChannel channel, long committedLength, long recordCount) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(committedLength);
+        buffer.putLong(recordCount);
+        buffer.flip();
+        writeFully(channel, buffer, 0);
+    }
+
+    private static ByteBuffer encodeRecords(List<byte[]> payloads, long startOffset, long[] offsets) {
+        int total = 0;
+        for (byte[] payload : payloads) {
+            total += RECORD_HEADER_SIZE + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            offsets[i] = startOffset + buffer.position();
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void decodeRecords(ByteBuffer buffer, List<byte[]> payloads) {
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                return;
+            }
+            payloads.add(payload);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of conversation log");
+            }
+            position += read;
+        }
+    }
+}
@@ -1,54 +1,198 @@
 package com.yu.histoaiagent.chatmemory;
 
-import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import org.objenesis.strategy.StdInstantiatorStrategy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  * 基于文件持久化的对话记忆
+ *
+ * 存储结构：
+ * - 每个会话一个追加式日志文件 {conversationId}.log（格式见 {@link ConversationLog}）
+ * - 旁路偏移索引 {conversationId}.idx 记录每条消息的起始位置，get(lastN) 直接定位到尾部，
+ *   只解码需要的N条（格式见 {@link ConversationIndex}）
+ * - 文件按会话ID散列到两级分片目录中（见 {@link ConversationLayout}）
+ * - 新增一轮对话只需一次小的顺序写，与历史长度无关
+ *
+ * 内存缓存：
+ * - 已解码的完整会话保存在按消息字节数限容的LRU缓存中（见 {@link ConversationCache}），
+ *   进行中的会话读取不再访问磁盘
+ * - 追加时同步写穿到缓存；清空、过期删除和压缩时失效
+ *
+ * 后台维护（单个守护线程，不占用请求线程）：
+ * - 压缩：按 maxMessages 丢弃过旧的消息
+ * - 过期清理（默认关闭，通过 {@link Builder#ttl} 开启）：每次只扫描一个一级分片目录，删除超过 ttl 未更新的会话，
+ *   单次删除数量有上限；正被请求线程使用的会话通过 tryLock 直接跳过，不会阻塞请求
+ * - 迁移：旧版本平铺在根目录下的 .log/.idx 文件以及 .kryo 全量快照分批迁入分片目录，
+ *   迁移完成前，请求访问到尚未迁移的会话时会先就地迁移
+ *
+ * 可按分片目录分页枚举全部会话（见 {@link #conversationIds}），用于迁移到其他存储
+ *
+ * 并发控制：
+ * - 消息编解码使用池化的 Kryo 实例（见 {@link KryoMessageCodec}），可被多个请求线程同时调用
+ * - 按会话ID分段加读写锁：同一会话的写操作串行，不同会话以及同一会话的读操作可以并行
  */
-public class FileBasedChatMemory implements ChatMemory {
+@Slf4j
+public class FileBasedChatMemory implements ChatMemory, ConversationIdSource, RecentMessagesSource, AutoCloseable {
 
-    private final String BASE_DIR;
-    private static final Kryo kryo = new Kryo();
+    private static final int COMPACT_QUEUE_CAPACITY = 10_000;
+    private static final int COMPACT_BATCH_SIZE = 200;
+    private static final int MIGRATE_BATCH_SIZE = 500;
+    private static final int LOCK_STRIPES = 256;
 
-    static {
-        kryo.setRegistrationRequired(false);
-        // 设置实例化策略
-        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
-    }
+    private final ConversationLayout layout;
+
+    /**
+     * 每个会话保留的最大消息数，0表示不限制
+     * 超出部分在后台压缩时丢弃，日志最多膨胀到 2 * maxMessages
+     */
+    private final int maxMessages;
+
+    /**
+     * 是否每次追加都强制刷盘
+     */
+    private final boolean fsync;
+
+    /**
+     * 会话闲置多久后过期删除，0表示永不过期
+     */
+    private final Duration ttl;
+
+    /**
+     * 会话缓存，容量为0时为null（不缓存）
+     */
+    private final ConversationCache cache;
+
+    /**
+     * 单次过期清理最多删除的会话数
+     */
+    private final int sweepBatchSize;
+
+    /**
+     * 会话级读写锁：追加、清空、迁移、压缩与过期删除持有写锁，读取持有读锁
+     */
+    private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+
+    private final BlockingQueue<String> compactQueue = new ArrayBlockingQueue<>(COMPACT_QUEUE_CAPACITY);
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * 根目录下是否可能还有未迁移的平铺文件
+     */
+    private volatile boolean flatLayoutPending;
+    private volatile ScheduledFuture<?> migrationTask;
+
+    /**
+     * 下一次过期清理要扫描的一级分片（只在维护线程中访问）
+     */
+    private int sweepCursor;
 
     // 构造对象时，指定文件保存目录
     public FileBasedChatMemory(String dir) {
-        this.BASE_DIR = dir;
-        File baseDir = new File(dir);
-        if (!baseDir.exists()) {
-            baseDir.mkdirs();
+        this(builder(dir));
+    }
+
+    private FileBasedChatMemory(Builder builder) {
+        this.layout = new ConversationLayout(Path.of(builder.dir));
+        this.maxMessages = builder.maxMessages;
+        this.fsync = builder.fsync;
+        this.ttl = builder.ttl;
+        this.sweepBatchSize = builder.sweepBatchSize;
+        this.cache = builder.cacheMaxBytes > 0 ? new ConversationCache(builder.cacheMaxBytes) : null;
+        try {
+            Files.createDirectories(layout.baseDir());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create chat memory directory: " + builder.dir, e);
         }
+        this.flatLayoutPending = hasFlatFiles();
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long compactSeconds = builder.compactInterval.toSeconds();
+        maintenance.scheduleWithFixedDelay(this::compactPending, compactSeconds, compactSeconds, TimeUnit.SECONDS);
+        if (!ttl.isZero()) {
+            long sweepSeconds = builder.sweepInterval.toSeconds();
+            maintenance.scheduleWithFixedDelay(this::sweepExpired, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+        }
+        if (flatLayoutPending) {
+            log.info("Found flat chat memory files in {}, migrating to sharded layout", builder.dir);
+            migrationTask = maintenance.scheduleWithFixedDelay(this::migrateFlatBatch, 0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public static Builder builder(String dir) {
+        return new Builder(dir);
     }
 
     @Override
     public void add(String conversationId, Message message) {
-        List<Message> conversationMessages = getOrCreateConversation(conversationId);
-        conversationMessages.add(message);
-        saveConversation(conversationId, conversationMessages);
+        add(conversationId, List.of(message));
     }
 
     @Override
     public void add(String conversationId, List<Message> messages) {
-        List<Message> conversationMessages = getOrCreateConversation(conversationId);
-        conversationMessages.addAll(messages);
-        saveConversation(conversationId, conversationMessages);
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        // 编码在锁外完成，锁内只做文件写入
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        long weight = 0;
+        for (Message message : messages) {
+            byte[] payload = KryoMessageCodec.encode(message);
+            payloads.add(payload);
+            weight += payload.length;
+        }
+
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            migrateFlatIfPresent(conversationId);
+            Path file = layout.logFile(conversationId);
+            Files.createDirectories(file.getParent());
+            ConversationLog.AppendResult result = ConversationLog.append(file, payloads, fsync);
+            ConversationIndex.append(layout.indexFile(conversationId), file,
+                    result.recordCount() - payloads.size(), result.offsets());
+            if (cache != null) {
+                if (result.recordCount() == payloads.size()) {
+                    // 新会话：追加的就是全部消息，直接放入缓存
+                    cache.put(conversationId, messages, weight);
+                } else {
+                    cache.appendIfPresent(conversationId, messages, weight);
+                }
+            }
+            if (maxMessages > 0 && result.recordCount() > 2L * maxMessages) {
+                scheduleCompaction(conversationId);
+            }
+        } catch (IOException e) {
+            log.error("Failed to append messages for conversation: {}", conversationId, e);
+            invalidateCache(conversationId);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     @Override
@@ -58,44 +202,538 @@ public class FileBasedChatMemory implements ChatMemory {
         return allMessages.stream().toList();
     }
 
+    /**
+     * 获取最近N条消息
+     * 通过偏移索引定位第 (count - N) 条记录，只读取并解码尾部N条；索引不完整时退回全量读取
+     *
+     * @param conversationId 会话ID
+     * @param lastN 最近N条
+     * @return 消息列表
+     */
+    @Override
     public List<Message> get(String conversationId, int lastN) {
-        List<Message> allMessages = getOrCreateConversation(conversationId);
-        return allMessages.stream()
-                .skip(Math.max(0, allMessages.size() - lastN))
-                .toList();
+        if (lastN <= 0) {
+            return List.of();
+        }
+        if (cache != null) {
+            List<Message> cached = cache.tail(conversationId, lastN);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        migrateFlatIfNeeded(conversationId);
+
+        List<byte[]> payloads;
+        Lock readLock = locks.get(conversationId).readLock();
+        readLock.lock();
+        try {
+            payloads = readTail(conversationId, lastN);
+        } catch (IOException e) {
+            log.error("Failed to read tail of conversation: {}", conversationId, e);
+            return List.of();
+        } finally {
+            readLock.unlock();
+        }
+
+        // 解码在锁外完成
+        List<Message> messages = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            messages.add(KryoMessageCodec.decode(payload));
+        }
+        return List.copyOf(messages);
     }
 
     @Override
     public void clear(String conversationId) {
-        File file = getConversationFile(conversationId);
-        if (file.exists()) {
-            file.delete();
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            invalidateCache(conversationId);
+            deleteConversationFiles(conversationId);
+            Files.deleteIfExists(layout.flatIndexFile(conversationId));
+            Files.deleteIfExists(layout.flatLogFile(conversationId));
+            Files.deleteIfExists(layout.flatLegacyFile(conversationId));
+        } catch (IOException e) {
+            log.error("Failed to clear conversation: {}", conversationId, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台维护线程
+     */
+    @Override
+    public void close() {
+        maintenance.shutdown();
+    }
+
+    /**
+     * 立即压缩指定会话：截掉未提交字节，并按 maxMessages 丢弃旧消息
+     *
+     * @param conversationId 会话ID
+     */
+    public void compact(String conversationId) {
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            Path file = layout.logFile(conversationId);
+            ConversationLog.Header header = ConversationLog.readHeader(file);
+            if (header == null) {
+                return;
+            }
+            boolean overRetention = maxMessages > 0 && header.recordCount() > maxMessages;
+            if (!overRetention && ConversationLog.danglingBytes(file) == 0) {
+                return;
+            }
+            List<byte[]> payloads = ConversationLog.readRecords(file, 0);
+            if (maxMessages > 0 && payloads.size() > maxMessages) {
+                payloads = payloads.subList(payloads.size() - maxMessages, payloads.size());
+            }
+            rewriteWithIndex(conversationId, payloads);
+            invalidateCache(conversationId);
+            log.debug("Compacted conversation: {}, kept {} messages", conversationId, payloads.size());
+        } catch (IOException e) {
+            log.error("Failed to compact conversation: {}", conversationId, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 缓存命中率等统计信息，未启用缓存时返回null
+     */
+    public ChatMemoryCacheStats cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * 按叶子分片目录的顺序分页枚举会话，游标为下一个叶子分片的序号
+     * 从头开始枚举前先把根目录下尚未迁移的平铺文件全部迁入分片目录，保证不遗漏
+     */
+    @Override
+    public Page conversationIds(String cursor, int limit) {
+        if (cursor == null) {
+            migrateFlatLayoutNow();
+        }
+        int shard = cursor == null ? 0 : Integer.parseInt(cursor);
+        List<String> ids = new ArrayList<>();
+        try {
+            while (shard < ConversationLayout.LEAF_SHARD_COUNT && ids.size() < limit) {
+                if ((shard & 0xff) == 0 && !Files.isDirectory(layout.topLevelShard(shard >>> 8))) {
+                    // 整个一级分片目录不存在，跳过其下的256个叶子分片
+                    shard += 256;
+                    continue;
+                }
+                List<String> leaf = new ArrayList<>();
+                try (DirectoryStream<Path> logs = Files.newDirectoryStream(layout.leafShard(shard), "*" + ConversationLayout.LOG_SUFFIX)) {
+                    for (Path file : logs) {
+                        String conversationId = ConversationLayout.conversationIdOf(file, ConversationLayout.LOG_SUFFIX);
+                        if (conversationId != null) {
+                            leaf.add(conversationId);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // 叶子分片目录尚未创建
+                }
+                // 目录遍历顺序不固定，排序后同一游标总是得到相同的结果
+                Collections.sort(leaf);
+                ids.addAll(leaf);
+                shard++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list conversations in " + layout.baseDir(), e);
+        }
+        return new Page(ids, shard < ConversationLayout.LEAF_SHARD_COUNT ? String.valueOf(shard) : null);
+    }
+
+    /**
+     * 立即执行一轮过期清理（扫描一个一级分片目录）
+     *
+     * @return 本轮删除的会话数
+     */
+    public int sweepExpired() {
+        if (ttl.isZero()) {
+            return 0;
+        }
+        try {
+            long deadline = System.currentTimeMillis() - ttl.toMillis();
+            int deleted = 0;
+            try (DirectoryStream<Path> subDirs = Files.newDirectoryStream(layout.topLevelShard(sweepCursor))) {
+                for (Path subDir : subDirs) {
+                    try (DirectoryStream<Path> logs = Files.newDirectoryStream(subDir, "*" + ConversationLayout.LOG_SUFFIX)) {
+                        for (Path file : logs) {
+                            if (Files.getLastModifiedTime(file).toMillis() >= deadline) {
+                                continue;
+                            }
+                            String conversationId = ConversationLayout.conversationIdOf(file, ConversationLayout.LOG_SUFFIX);
+                            if (conversationId != null && tryExpire(conversationId, deadline)) {
+                                deleted++;
+                            }
+                            if (deleted >= sweepBatchSize) {
+                                // 本分片还没扫完，下一轮继续
+                                log.debug("Expired {} conversations, sweep batch limit reached", deleted);
+                                return deleted;
+                            }
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // 分片目录尚未创建
+            }
+            sweepCursor = (sweepCursor + 1) % ConversationLayout.SHARD_COUNT;
+            if (deleted > 0) {
+                log.debug("Expired {} idle conversations", deleted);
+            }
+            return deleted;
+        } catch (Exception e) {
+            // 吞掉异常，避免调度线程终止
+            log.error("Chat memory expiry sweep failed", e);
+            return 0;
+        }
+    }
+
+    /**
+     * 删除已过期的会话；会话正被占用时直接跳过，留待下一轮
+     */
+    private boolean tryExpire(String conversationId, long deadline) throws IOException {
+        Lock writeLock = locks.get(conversationId).writeLock();
+        if (!writeLock.tryLock()) {
+            return false;
+        }
+        try {
+            Path file = layout.logFile(conversationId);
+            // 拿到锁后再确认一次，期间可能有新的追加
+            if (!Files.exists(file) || Files.getLastModifiedTime(file).toMillis() >= deadline) {
+                return false;
+            }
+            invalidateCache(conversationId);
+            deleteConversationFiles(conversationId);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void invalidateCache(String conversationId) {
+        if (cache != null) {
+            cache.invalidate(conversationId);
+        }
+    }
+
+    private void deleteConversationFiles(String conversationId) throws IOException {
+        Files.deleteIfExists(layout.indexFile(conversationId));
+        Files.deleteIfExists(layout.logFile(conversationId));
+    }
+
+    private void scheduleCompaction(String conversationId) {
+        // 队列满时直接放弃，下次追加会再次触发
+        compactQueue.offer(conversationId);
+    }
+
+    private void compactPending() {
+        try {
+            List<String> batch = new ArrayList<>(COMPACT_BATCH_SIZE);
+            compactQueue.drainTo(batch, COMPACT_BATCH_SIZE);
+            for (String conversationId : batch) {
+                compact(conversationId);
+            }
+        } catch (Exception e) {
+            // 吞掉异常，避免调度线程终止
+            log.error("Background compaction failed", e);
         }
     }
 
     private List<Message> getOrCreateConversation(String conversationId) {
-        File file = getConversationFile(conversationId);
-        List<Message> messages = new ArrayList<>();
-        if (file.exists()) {
-            try (Input input = new Input(new FileInputStream(file))) {
-                messages = kryo.readObject(input, ArrayList.class);
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (cache != null) {
+            List<Message> cached = cache.get(conversationId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        migrateFlatIfNeeded(conversationId);
+
+        Lock readLock = locks.get(conversationId).readLock();
+        readLock.lock();
+        try {
+            List<byte[]> payloads = ConversationLog.readRecords(layout.logFile(conversationId), 0);
+            List<Message> messages = new ArrayList<>(payloads.size());
+            long weight = 0;
+            for (byte[] payload : payloads) {
+                messages.add(KryoMessageCodec.decode(payload));
+                weight += payload.length;
+            }
+            // 持有读锁时写入缓存，期间不会有追加，缓存内容与日志一致
+            if (cache != null && !messages.isEmpty()) {
+                cache.put(conversationId, messages, weight);
+            }
+            return messages;
+        } catch (IOException e) {
+            log.error("Failed to read conversation: {}", conversationId, e);
+            return new ArrayList<>();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * 读取尾部N条记录的原始内容（调用方需持有读锁）
+     * 通过偏移索引定位第 (count - N) 条记录；索引不完整时退回全量读取
+     */
+    private List<byte[]> readTail(String conversationId, int lastN) throws IOException {
+        Path file = layout.logFile(conversationId);
+        ConversationLog.Header header = ConversationLog.readHeader(file);
+        if (header == null) {
+            return List.of();
+        }
+        long fromOffset = 0;
+        if (lastN < header.recordCount()) {
+            long offset = ConversationIndex.offsetOf(layout.indexFile(conversationId), header.recordCount() - lastN);
+            if (offset >= 0) {
+                fromOffset = offset;
+            } else {
+                log.debug("Offset index incomplete for conversation: {}, falling back to full read", conversationId);
             }
         }
-        return messages;
+        List<byte[]> payloads = ConversationLog.readRecords(file, fromOffset);
+        return payloads.subList(Math.max(0, payloads.size() - lastN), payloads.size());
     }
 
-    private void saveConversation(String conversationId, List<Message> messages) {
-        File file = getConversationFile(conversationId);
-        try (Output output = new Output(new FileOutputStream(file))) {
-            kryo.writeObject(output, messages);
+    /**
+     * 重写日志并重建索引（调用方需持有写锁）
+     * 先删除旧索引，保证任何时刻索引中的偏移都不会指向重写后的文件
+     */
+    private void rewriteWithIndex(String conversationId, List<byte[]> payloads) throws IOException {
+        Path file = layout.logFile(conversationId);
+        Path indexFile = layout.indexFile(conversationId);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(indexFile);
+        long[] offsets = ConversationLog.rewrite(file, payloads);
+        ConversationIndex.append(indexFile, file, 0, offsets);
+    }
+
+    private void migrateFlatIfNeeded(String conversationId) {
+        if (!flatLayoutPending) {
+            return;
+        }
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            migrateFlatIfPresent(conversationId);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 将根目录下平铺的旧文件迁入分片目录（调用方需持有写锁）
+     * - {conversationId}.log / .idx：直接移动
+     * - {conversationId}.kryo：旧版全量快照，转换为日志格式
+     */
+    private void migrateFlatIfPresent(String conversationId) {
+        if (!flatLayoutPending) {
+            return;
+        }
+        try {
+            Path flatLog = layout.flatLogFile(conversationId);
+            if (Files.exists(flatLog)) {
+                Path file = layout.logFile(conversationId);
+                Files.createDirectories(file.getParent());
+                if (Files.exists(file)) {
+                    // 两处都有数据：平铺文件中的消息更早
+                    List<byte[]> payloads = ConversationLog.readRecords(flatLog, 0);
+                    payloads.addAll(ConversationLog.readRecords(file, 0));
+                    rewriteWithIndex(conversationId, payloads);
+                    Files.delete(flatLog);
+                } else {
+                    Files.deleteIfExists(layout.indexFile(conversationId));
+                    Files.move(flatLog, file, StandardCopyOption.ATOMIC_MOVE);
+                    Path flatIndex = layout.flatIndexFile(conversationId);
+                    if (Files.exists(flatIndex)) {
+                        Files.move(flatIndex, layout.indexFile(conversationId), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+            // 日志已迁走后残留的孤立索引直接丢弃，缺失的索引会在下次追加时重建
+            Files.deleteIfExists(layout.flatIndexFile(conversationId));
+            migrateLegacyIfPresent(conversationId);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to migrate flat conversation files: {}", conversationId, e);
+        }
+    }
+
+    /**
+     * 将旧版全量快照文件迁移为日志格式（调用方需持有写锁）
+     */
+    private void migrateLegacyIfPresent(String conversationId) throws IOException {
+        Path legacy = layout.flatLegacyFile(conversationId);
+        if (!Files.exists(legacy)) {
+            return;
+        }
+        Path file = layout.logFile(conversationId);
+        try (InputStream in = Files.newInputStream(legacy); Input input = new Input(in)) {
+            List<Message> messages = KryoMessageCodec.decodeLegacySnapshot(input);
+            List<byte[]> payloads = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                payloads.add(KryoMessageCodec.encode(message));
+            }
+            // 旧快照里的消息排在已有日志之前
+            payloads.addAll(ConversationLog.readRecords(file, 0));
+            rewriteWithIndex(conversationId, payloads);
+        }
+        Files.delete(legacy);
+        log.info("Migrated legacy conversation file to log format: {}", conversationId);
+    }
+
+    /**
+     * 在当前线程中迁移根目录下的全部平铺文件
+     */
+    private void migrateFlatLayoutNow() {
+        List<String> previous = null;
+        while (flatLayoutPending) {
+            List<String> batch = migrateFlatBatch();
+            if (batch.equals(previous)) {
+                // 同一批文件反复迁移失败
+                throw new IllegalStateException("Failed to migrate flat chat memory files in " + layout.baseDir());
+            }
+            previous = batch;
         }
     }
 
-    private File getConversationFile(String conversationId) {
-        return new File(BASE_DIR, conversationId + ".kryo");
+    /**
+     * 后台分批迁移根目录下的平铺文件，全部迁移完成后停止
+     *
+     * @return 本批尝试迁移的会话，已全部迁移或出错时为空
+     */
+    private List<String> migrateFlatBatch() {
+        try {
+            List<String> batch = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(layout.baseDir(), Files::isRegularFile)) {
+                for (Path file : files) {
+                    String conversationId = flatConversationIdOf(file);
+                    if (conversationId != null) {
+                        batch.add(conversationId);
+                        if (batch.size() >= MIGRATE_BATCH_SIZE) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                flatLayoutPending = false;
+                if (migrationTask != null) {
+                    migrationTask.cancel(false);
+                }
+                log.info("Flat chat memory files migrated to sharded layout");
+                return batch;
+            }
+            for (String conversationId : batch) {
+                migrateFlatIfNeeded(conversationId);
+            }
+            log.debug("Migrated {} flat conversations to sharded layout", batch.size());
+            return batch;
+        } catch (Exception e) {
+            // 吞掉异常，避免调度线程终止
+            log.error("Flat layout migration failed", e);
+            return List.of();
+        }
+    }
+
+    private boolean hasFlatFiles() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(layout.baseDir(), Files::isRegularFile)) {
+            for (Path file : files) {
+                if (flatConversationIdOf(file) != null) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to scan chat memory directory, assuming flat files exist", e);
+            return true;
+        }
+        return false;
+    }
+
+    private static String flatConversationIdOf(Path file) {
+        for (String suffix : List.of(ConversationLayout.LOG_SUFFIX, ConversationLayout.INDEX_SUFFIX,
+                ConversationLayout.LEGACY_SUFFIX)) {
+            String conversationId = ConversationLayout.conversationIdOf(file, suffix);
+            if (conversationId != null) {
+                return conversationId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * FileBasedChatMemory 构建器
+     */
+    public static final class Builder {
+
+        private final String dir;
+        private int maxMessages = 0;
+        private boolean fsync = false;
+        private Duration compactInterval = Duration.ofMinutes(5);
+        private Duration ttl = Duration.ZERO;
+        private Duration sweepInterval = Duration.ofMinutes(1);
+        private int sweepBatchSize = 1000;
+        private long cacheMaxBytes = 64L * 1024 * 1024;
+
+        private Builder(String dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * 每个会话保留的最大消息数，0表示不限制
+         */
+        public Builder maxMessages(int maxMessages) {
+            this.maxMessages = maxMessages;
+            return this;
+        }
+
+        /**
+         * 是否每次追加都强制刷盘
+         */
+        public Builder fsync(boolean fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        public Builder compactInterval(Duration compactInterval) {
+            this.compactInterval = compactInterval;
+            return this;
+        }
+
+        /**
+         * 会话闲置多久后过期删除，默认 Duration.ZERO，表示永不过期
+         */
+        public Builder ttl(Duration ttl) {
+            this.ttl = ttl;
+            return this;
+        }
+
+        public Builder sweepInterval(Duration sweepInterval) {
+            this.sweepInterval = sweepInterval;
+            return this;
+        }
+
+        /**
+         * 单轮过期清理最多删除的会话数
+         */
+        public Builder sweepBatchSize(int sweepBatchSize) {
+            this.sweepBatchSize = sweepBatchSize;
+            return this;
+        }
+
+        /**
+         * 会话缓存容量（按消息编码后的字节数计算），0表示不缓存
+         */
+        public Builder cacheMaxBytes(long cacheMaxBytes) {
+            this.cacheMaxBytes = cacheMaxBytes;
+            return this;
+        }
+
+        public FileBasedChatMemory build() {
+            return new FileBasedChatMemory(this);
+        }
     }
 }
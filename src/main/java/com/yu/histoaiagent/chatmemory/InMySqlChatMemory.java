@@ -9,12 +9,22 @@ import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
 /**
  * 基于MySQL的ChatMemory自定义实现
@@ -24,15 +34,65 @@ import java.util.List;
  * 1. 每条消息作为单独的一行记录存储到数据库
  * 2. 通过chat_id关联同一会话的所有消息
  * 3. 使用MyBatis-Plus进行数据库操作
+ * 4. 可选开启异步写入（见 {@link MysqlChatMemoryWriteBehind}），add 只入队不等待数据库
+ * 5. 表按月分区，冷分区被移入归档表（见 {@link ChatMemoryPartitionManager}），
+ *    开启后读取时透明地合并归档表中更早的消息；ID单调递增，归档消息总在热表消息之前
+ * 6. 本节点缓存已转换的完整会话（见 {@link ConversationCache}），进行中的会话读取不再查库；
+ *    add 追加到缓存，add/clear 通过 Redis pub/sub 通知其他节点失效；缓存容量为0时不订阅也不广播，不依赖Redis
  */
 @Component
 @Slf4j
-public class InMySqlChatMemory implements ChatMemory {
+public class InMySqlChatMemory implements ChatMemory, ConversationIdSource, RecentMessagesSource, MessageListener {
+
+    /**
+     * 缓存失效广播频道，消息格式：{nodeId}|{conversationId}
+     */
+    static final String INVALIDATION_CHANNEL = "chat:memory:mysql:invalidate";
 
     private final MysqlChatMemoryMapper mysqlChatMemoryMapper;
 
-    public InMySqlChatMemory(MysqlChatMemoryMapper mysqlChatMemoryMapper) {
+    /**
+     * 异步写入队列，未开启时为null
+     */
+    private final MysqlChatMemoryWriteBehind writeBehind;
+
+    /**
+     * 是否读取归档表
+     */
+    private final boolean archiveEnabled;
+
+    /**
+     * 本节点的会话缓存，容量为0时为null（不缓存）
+     */
+    private final ConversationCache cache;
+
+    /**
+     * 同一会话的写入串行，保证缓存追加顺序与数据库ID顺序一致
+     */
+    private final StripedLocks locks = new StripedLocks(256);
+
+    /**
+     * 用于广播缓存失效，未启用缓存或没有Redis时为null
+     */
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public InMySqlChatMemory(MysqlChatMemoryMapper mysqlChatMemoryMapper,
+                             ObjectProvider<MysqlChatMemoryWriteBehind> writeBehind,
+                             ObjectProvider<StringRedisTemplate> stringRedisTemplate,
+                             ObjectProvider<RedisMessageListenerContainer> listenerContainer,
+                             @Value("${chat-memory.mysql.partition.enabled:false}") boolean archiveEnabled,
+                             @Value("${chat-memory.mysql.cache.max-bytes:67108864}") long cacheMaxBytes) {
         this.mysqlChatMemoryMapper = mysqlChatMemoryMapper;
+        this.writeBehind = writeBehind.getIfAvailable();
+        this.archiveEnabled = archiveEnabled;
+        this.cache = cacheMaxBytes > 0 ? new ConversationCache(cacheMaxBytes) : null;
+        // 不缓存时不需要失效广播，也不依赖Redis
+        this.stringRedisTemplate = cache != null ? stringRedisTemplate.getIfAvailable() : null;
+        RedisMessageListenerContainer container = cache != null ? listenerContainer.getIfAvailable() : null;
+        if (container != null) {
+            container.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+        }
     }
 
     @Override
@@ -61,68 +121,123 @@ public class InMySqlChatMemory implements ChatMemory {
             mysqlChatMemoryList.add(mysqlChatMemory);
         }
 
-        // 批量插入
-        mysqlChatMemoryList.forEach(mysqlChatMemoryMapper::insert);
-        log.debug("Added {} messages to conversation: {}", messages.size(), conversationId);
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            if (writeBehind != null && writeBehind.enqueue(conversationId, mysqlChatMemoryList)) {
+                log.debug("Queued {} messages for conversation: {}", messages.size(), conversationId);
+            } else {
+                if (writeBehind != null) {
+                    // 入队失败：先写入该会话仍在队列中的更早消息，保证id顺序与写入顺序一致
+                    writeBehind.flushPending(conversationId);
+                }
+                // 批量插入：一轮对话的所有消息合并为一条多行INSERT，单条语句本身即原子提交
+                mysqlChatMemoryMapper.insertBatch(mysqlChatMemoryList);
+                log.debug("Added {} messages to conversation: {}", messages.size(), conversationId);
+            }
+            if (cache != null) {
+                // 追加转换后的消息，与从数据库加载的内容保持一致
+                cache.appendIfPresent(conversationId, toMessages(mysqlChatMemoryList), weightOf(mysqlChatMemoryList));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        publishInvalidation(conversationId);
     }
 
     @Override
     public List<Message> get(String conversationId) {
+        if (cache != null) {
+            List<Message> cached = cache.get(conversationId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // 读库前取版本号，期间有写入或失效时不回填缓存
+        long generation = cache != null ? cache.generation(conversationId) : 0;
+
+        // 先取待写快照再查库，保证读己之写
+        List<MysqlChatMemory> pending = pendingSnapshot(conversationId);
+
         QueryWrapper<MysqlChatMemory> queryWrapper = new QueryWrapper<>();
         queryWrapper.eq("chat_id", conversationId)
-                .orderByAsc("create_time");  // 按创建时间升序排列
+                .orderByAsc("id");  // 按自增ID升序排列（即写入顺序，create_time只精确到秒）
 
-        List<MysqlChatMemory> mysqlChatMemoryList = mysqlChatMemoryMapper.selectList(queryWrapper);
+        List<MysqlChatMemory> hot = mysqlChatMemoryMapper.selectList(queryWrapper);
+        List<MysqlChatMemory> mysqlChatMemoryList = hot;
+        if (archiveEnabled) {
+            // 只取比热表最早一条更早的归档消息，避免归档过程中两边同时存在的行重复
+            Long beforeId = hot.isEmpty() ? null : hot.get(0).getId();
+            List<MysqlChatMemory> archived = mysqlChatMemoryMapper.selectArchived(conversationId, beforeId);
+            if (!archived.isEmpty()) {
+                mysqlChatMemoryList = new ArrayList<>(archived);
+                mysqlChatMemoryList.addAll(hot);
+            }
+        }
+        mysqlChatMemoryList = mergePending(mysqlChatMemoryList, pending);
 
-        if (CollectionUtils.isEmpty(mysqlChatMemoryList)) {
+        // 空会话也缓存，新会话的后续追加可以直接写入缓存
+        List<Message> messages = toMessages(mysqlChatMemoryList);
+        if (cache != null) {
+            cache.putIfCurrent(conversationId, messages, weightOf(mysqlChatMemoryList), generation);
+        }
+        if (messages.isEmpty()) {
             log.debug("No messages found for conversation: {}", conversationId);
             return Collections.emptyList();
         }
-
-        // 将数据库记录转换为Message对象
-        List<Message> messages = new ArrayList<>();
-        for (MysqlChatMemory mysqlChatMemory : mysqlChatMemoryList) {
-            Message message = convertToMessage(mysqlChatMemory);
-            if (message != null) {
-                messages.add(message);
-            }
-        }
-
         log.debug("Retrieved {} messages for conversation: {}", messages.size(), conversationId);
         return messages;
     }
 
     /**
      * 获取指定会话的最近N条消息
+     * 沿 idx_chat_del_id(chat_id, is_del, id) 索引倒序取N条，再翻转为时间正序，
+     * 只读取需要的N行，不对整个会话排序
      * @param conversationId 会话ID
      * @param lastN 获取最近的N条消息，如果为0则获取所有消息
      * @return 消息列表
      */
+    @Override
     public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return get(conversationId);
+        }
+        if (cache != null) {
+            List<Message> cached = cache.tail(conversationId, lastN);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        List<MysqlChatMemory> pending = pendingSnapshot(conversationId);
+
         QueryWrapper<MysqlChatMemory> queryWrapper = new QueryWrapper<>();
         queryWrapper.eq("chat_id", conversationId)
-                .orderByAsc("create_time");  // 按创建时间升序排列
-        
-        if (lastN > 0) {
-            // 如果指定了lastN，则获取最后N条记录
-            queryWrapper.last("limit " + lastN);
-        }
+                .orderByDesc("id")  // 倒序取最新的N条
+                .last("limit " + lastN);
 
         List<MysqlChatMemory> mysqlChatMemoryList = mysqlChatMemoryMapper.selectList(queryWrapper);
-        
+        if (archiveEnabled && mysqlChatMemoryList.size() < lastN) {
+            // 热表不足N条，从归档表补齐更早的消息
+            Long beforeId = mysqlChatMemoryList.isEmpty() ? null
+                    : mysqlChatMemoryList.get(mysqlChatMemoryList.size() - 1).getId();
+            mysqlChatMemoryList.addAll(mysqlChatMemoryMapper.selectArchivedTail(
+                    conversationId, beforeId, lastN - mysqlChatMemoryList.size()));
+        }
+        // 翻转为时间正序
+        Collections.reverse(mysqlChatMemoryList);
+        // 待写消息总是比库里的新，合并后再截取尾部N条
+        mysqlChatMemoryList = mergePending(mysqlChatMemoryList, pending);
+        if (mysqlChatMemoryList.size() > lastN) {
+            mysqlChatMemoryList = mysqlChatMemoryList.subList(mysqlChatMemoryList.size() - lastN, mysqlChatMemoryList.size());
+        }
+
         if (CollectionUtils.isEmpty(mysqlChatMemoryList)) {
             log.debug("No messages found for conversation: {}", conversationId);
             return Collections.emptyList();
         }
 
-        // 将数据库记录转换为Message对象
-        List<Message> messages = new ArrayList<>();
-        for (MysqlChatMemory mysqlChatMemory : mysqlChatMemoryList) {
-            Message message = convertToMessage(mysqlChatMemory);
-            if (message != null) {
-                messages.add(message);
-            }
-        }
+        List<Message> messages = toMessages(mysqlChatMemoryList);
 
         log.debug("Retrieved {} messages for conversation: {}", messages.size(), conversationId);
         return messages;
@@ -139,8 +254,116 @@ public class InMySqlChatMemory implements ChatMemory {
             queryWrapper.eq("chat_id", conversationId);
         }
         
-        int deletedCount = mysqlChatMemoryMapper.delete(queryWrapper);
-        log.debug("Cleared {} messages for conversation: {}", deletedCount, conversationId);
+        // 逻辑删除，物理删除由分区整体删除完成
+        Runnable delete = () -> {
+            mysqlChatMemoryMapper.delete(queryWrapper);
+            if (archiveEnabled && conversationId != null) {
+                mysqlChatMemoryMapper.softDeleteArchived(conversationId);
+            }
+        };
+        if (writeBehind != null && conversationId != null) {
+            // 与刷盘互斥，避免已清空会话的待写消息在删除之后落库
+            writeBehind.clear(conversationId, delete);
+        } else {
+            delete.run();
+        }
+        if (conversationId != null) {
+            invalidateLocal(conversationId);
+            publishInvalidation(conversationId);
+        }
+        log.debug("Cleared messages for conversation: {}", conversationId);
+    }
+
+    /**
+     * 按会话ID升序分页枚举会话，游标为上一页最后一个会话ID
+     * 开启归档时合并归档表中的会话（两边都按ID有序，合并后取前limit个）
+     * 会话ID应为ASCII（如UUID），保证数据库排序规则与Java字符串顺序一致
+     */
+    @Override
+    public Page conversationIds(String cursor, int limit) {
+        List<String> ids = mysqlChatMemoryMapper.selectChatIdsAfter(cursor, limit);
+        if (archiveEnabled) {
+            TreeSet<String> merged = new TreeSet<>(ids);
+            merged.addAll(mysqlChatMemoryMapper.selectArchivedChatIdsAfter(cursor, limit));
+            ids = merged.stream().limit(limit).toList();
+        }
+        if (ids.size() < limit) {
+            return new Page(ids, null);
+        }
+        return new Page(ids, ids.get(ids.size() - 1));
+    }
+
+    /**
+     * 缓存命中率等统计信息，未启用缓存时返回null
+     */
+    public ChatMemoryCacheStats cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * 收到其他节点的失效广播
+     */
+    @Override
+    public void onMessage(org.springframework.data.redis.connection.Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf('|');
+        if (separator < 0 || body.substring(0, separator).equals(nodeId)) {
+            return;
+        }
+        invalidateLocal(body.substring(separator + 1));
+    }
+
+    private void invalidateLocal(String conversationId) {
+        if (cache != null) {
+            cache.invalidate(conversationId);
+        }
+    }
+
+    private void publishInvalidation(String conversationId) {
+        if (stringRedisTemplate == null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATION_CHANNEL, nodeId + "|" + conversationId);
+        } catch (Exception e) {
+            // 广播失败不影响本次读写，其他节点的缓存可能短暂过期
+            log.warn("Failed to publish chat memory invalidation for conversation: {}", conversationId, e);
+        }
+    }
+
+    /**
+     * 缓存权重：按消息内容的字符数估算（每字符2字节）
+     */
+    private static long weightOf(List<MysqlChatMemory> records) {
+        long weight = 0;
+        for (MysqlChatMemory record : records) {
+            if (record.getContent() != null) {
+                weight += 2L * record.getContent().length();
+            }
+        }
+        return weight;
+    }
+
+    private List<MysqlChatMemory> pendingSnapshot(String conversationId) {
+        return writeBehind != null ? writeBehind.pendingSnapshot(conversationId) : List.of();
+    }
+
+    private List<MysqlChatMemory> mergePending(List<MysqlChatMemory> fromDb, List<MysqlChatMemory> pending) {
+        return writeBehind != null ? writeBehind.merge(fromDb, pending) : fromDb;
+    }
+
+    /**
+     * 将数据库记录列表转换为Message列表
+     */
+    private List<Message> toMessages(List<MysqlChatMemory> mysqlChatMemoryList) {
+        List<Message> messages = new ArrayList<>(mysqlChatMemoryList.size());
+        for (MysqlChatMemory mysqlChatMemory : mysqlChatMemoryList) {
+            Message message = convertToMessage(mysqlChatMemory);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
     }
 
     /**
@@ -0,0 +1,99 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 线程安全的 Kryo 消息编解码器
+ *
+ * Kryo 实例本身不是线程安全的，这里用对象池为每次编解码借出独立实例。
+ * 常用的 Message 子类以固定 ID 注册，序列化时只写一个变长整数而不是完整类名；
+ * 未注册的类型仍按类名写入，旧数据中按类名写入的记录也能正常读取。
+ * 注意：已注册的 ID 会写入磁盘，只能在末尾追加，不能调整顺序。
+ */
+final class KryoMessageCodec {
+
+    private static final int POOL_CAPACITY = 64;
+    private static final int FIRST_REGISTRATION_ID = 100;
+
+    /**
+     * 按顺序注册，ID 从 FIRST_REGISTRATION_ID 开始递增
+     */
+    private static final List<Class<?>> REGISTERED_TYPES = List.of(
+            UserMessage.class,
+            AssistantMessage.class,
+            SystemMessage.class,
+            ToolResponseMessage.class,
+            MessageType.class,
+            AssistantMessage.ToolCall.class,
+            ToolResponseMessage.ToolResponse.class,
+            ArrayList.class,
+            HashMap.class,
+            LinkedHashMap.class
+    );
+
+    private static final Pool<Kryo> KRYO_POOL = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(false);
+            // 设置实例化策略
+            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+            int id = FIRST_REGISTRATION_ID;
+            for (Class<?> type : REGISTERED_TYPES) {
+                kryo.register(type, id++);
+            }
+            return kryo;
+        }
+    };
+
+    private KryoMessageCodec() {
+    }
+
+    static byte[] encode(Message message) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            Output output = new Output(256, -1);
+            kryo.writeClassAndObject(output, message);
+            return output.toBytes();
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    static Message decode(byte[] payload) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            return (Message) kryo.readClassAndObject(new Input(payload));
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 读取旧版 {conversationId}.kryo 全量快照（ArrayList 以 writeObject 写入）
+     */
+    @SuppressWarnings("unchecked")
+    static List<Message> decodeLegacySnapshot(Input input) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try {
+            return kryo.readObject(input, ArrayList.class);
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+}
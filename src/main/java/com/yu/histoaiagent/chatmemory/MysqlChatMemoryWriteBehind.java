@@ -0,0 +1,358 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.yu.histoaiagent.entity.MysqlChatMemory;
+import com.yu.histoaiagent.mapper.MysqlChatMemoryMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MySQL对话记忆的异步写入队列（write-behind + group commit）
+ *
+ * 开启后 {@link InMySqlChatMemory#add} 只把一轮消息放入有界队列即返回，
+ * 后台线程每隔几毫秒把多个会话的消息合并成一条多行INSERT写入数据库。
+ *
+ * 一致性：
+ * - 同一会话的消息按入队顺序写入，一轮对话的消息总在同一条语句中
+ * - 尚未落库的消息按会话保存在 pending 中，读取时与数据库结果合并（见 {@link #merge}），保证读己之写
+ * - 清空会话与刷盘互斥，已清空会话的待写消息不会再被写入
+ * - 写入失败的消息留在 pending 中，下一个周期重试；重试期间不再从队列取新的轮次，
+ *   队列写满后调用方转为同步写入（数据库仍不可用时同步写入报错，这一轮不会被确认）
+ * - 应用关闭时先停止接收，再把队列中剩余的消息全部写完
+ *
+ * 通过 chat-memory.mysql.write-behind.enabled=true 开启
+ */
+@Component
+@ConditionalOnProperty(prefix = "chat-memory.mysql.write-behind", name = "enabled", havingValue = "true")
+@Slf4j
+public class MysqlChatMemoryWriteBehind {
+
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+    private static final long RETRY_INTERVAL_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+
+    private final MysqlChatMemoryMapper mysqlChatMemoryMapper;
+
+    /**
+     * 队列元素为一轮对话的全部消息
+     */
+    private final BlockingQueue<List<MysqlChatMemory>> queue;
+
+    /**
+     * 已入队、尚未落库的消息，按会话分组（值只在 compute 中读写）
+     */
+    private final ConcurrentHashMap<String, List<MysqlChatMemory>> pendingByChat = new ConcurrentHashMap<>();
+
+    /**
+     * 刷盘与清空会话互斥
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final long flushIntervalMillis;
+    private final int maxBatchRows;
+    private final long offerTimeoutMillis;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public MysqlChatMemoryWriteBehind(
+            MysqlChatMemoryMapper mysqlChatMemoryMapper,
+            @Value("${chat-memory.mysql.write-behind.queue-capacity:10000}") int queueCapacity,
+            @Value("${chat-memory.mysql.write-behind.flush-interval-ms:5}") long flushIntervalMillis,
+            @Value("${chat-memory.mysql.write-behind.max-batch-rows:500}") int maxBatchRows,
+            @Value("${chat-memory.mysql.write-behind.offer-timeout-ms:1000}") long offerTimeoutMillis) {
+        this.mysqlChatMemoryMapper = mysqlChatMemoryMapper;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxBatchRows = maxBatchRows;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+
+        this.flusher = new Thread(this::runFlusher, "chat-memory-mysql-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("MySQL chat memory write-behind enabled, queue capacity: {}, flush interval: {}ms",
+                queueCapacity, flushIntervalMillis);
+    }
+
+    /**
+     * 将一轮对话的消息加入写入队列
+     * 队列已满时最多等待 offerTimeoutMillis，期间调用方被阻塞（背压）
+     *
+     * @return 是否入队成功；已关闭或等待超时返回false，由调用方先调用 {@link #flushPending} 再同步写入
+     */
+    public boolean enqueue(String conversationId, List<MysqlChatMemory> records) {
+        if (!running) {
+            return false;
+        }
+        // 先登记pending再入队，保证消息在可被刷盘之前就能被读到
+        pendingByChat.compute(conversationId, (k, pending) -> {
+            List<MysqlChatMemory> list = pending != null ? pending : new ArrayList<>();
+            list.addAll(records);
+            return list;
+        });
+        try {
+            if (queue.offer(records, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            log.warn("Chat memory write-behind queue is full, writing conversation {} synchronously", conversationId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        removePending(conversationId, records);
+        return false;
+    }
+
+    /**
+     * 将数据库中读到的消息与尚未落库的消息合并
+     * 调用方必须先调用 {@link #pendingSnapshot} 再查询数据库：快照之后才落库的消息，
+     * 其id已经回填，可以按id去重
+     *
+     * @param fromDb 数据库查询结果（时间正序）
+     * @param pending 查询前取得的待写快照
+     * @return 合并后的记录（时间正序）
+     */
+    public List<MysqlChatMemory> merge(List<MysqlChatMemory> fromDb, List<MysqlChatMemory> pending) {
+        if (pending.isEmpty()) {
+            return fromDb;
+        }
+        Set<Long> dbIds = new HashSet<>();
+        for (MysqlChatMemory record : fromDb) {
+            dbIds.add(record.getId());
+        }
+        List<MysqlChatMemory> merged = new ArrayList<>(fromDb);
+        for (MysqlChatMemory record : pending) {
+            Long id = record.getId();
+            if (id == null || !dbIds.contains(id)) {
+                merged.add(record);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 获取会话尚未落库的消息快照（时间正序）
+     */
+    public List<MysqlChatMemory> pendingSnapshot(String conversationId) {
+        List<List<MysqlChatMemory>> holder = new ArrayList<>(1);
+        pendingByChat.computeIfPresent(conversationId, (k, pending) -> {
+            holder.add(List.copyOf(pending));
+            return pending;
+        });
+        return holder.isEmpty() ? List.of() : holder.get(0);
+    }
+
+    /**
+     * 在刷盘互斥下同步写入会话尚未落库的消息
+     * 入队失败改为同步写入前调用：同一会话更早入队的消息先落库，获得更小的id，按id排序时不会乱序；
+     * 这些消息在队列中的副本刷盘时因不再处于待写状态而被跳过
+     */
+    public void flushPending(String conversationId) {
+        flushLock.lock();
+        try {
+            List<MysqlChatMemory> pending = pendingSnapshot(conversationId);
+            if (pending.isEmpty()) {
+                return;
+            }
+            mysqlChatMemoryMapper.insertBatch(pending);
+            removePending(conversationId, pending);
+            log.debug("Flushed {} pending rows of conversation {} before synchronous write", pending.size(), conversationId);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 在刷盘互斥下清空会话：丢弃待写消息，再执行数据库删除
+     */
+    public void clear(String conversationId, Runnable deleteFromDb) {
+        flushLock.lock();
+        try {
+            pendingByChat.remove(conversationId);
+            deleteFromDb.run();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 停止接收新消息并把队列中剩余的消息写完
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        try {
+            flusher.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher.isAlive()) {
+            log.error("Chat memory write-behind did not drain within {}ms, {} turns left in queue",
+                    SHUTDOWN_TIMEOUT_MILLIS, queue.size());
+            return;
+        }
+        // 刷盘线程退出后才入队的消息
+        List<List<MysqlChatMemory>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        List<List<MysqlChatMemory>> unwritten = flush(remaining);
+        if (!unwritten.isEmpty()) {
+            log.error("Chat memory write-behind could not write {} turns on shutdown", unwritten.size());
+        }
+    }
+
+    private void runFlusher() {
+        List<List<MysqlChatMemory>> turns = new ArrayList<>();
+        // 上一个周期没有写入的轮次
+        List<List<MysqlChatMemory>> failed = new ArrayList<>();
+        // 关闭时不打断线程（避免打断进行中的JDBC调用），而是等它在下一次轮询时发现并写完剩余消息
+        while (running || !queue.isEmpty() || !failed.isEmpty()) {
+            try {
+                turns.clear();
+                if (!failed.isEmpty()) {
+                    // 先重试失败的轮次，不取新的轮次，保证同一会话按顺序写入
+                    TimeUnit.MILLISECONDS.sleep(RETRY_INTERVAL_MILLIS);
+                    turns.addAll(failed);
+                    failed.clear();
+                } else {
+                    if (running) {
+                        List<MysqlChatMemory> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        turns.add(first);
+                        // 攒一小段时间，让并发的多个会话合并到同一条语句
+                        TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+                    }
+                    queue.drainTo(turns);
+                }
+                failed.addAll(flush(turns));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Chat memory write-behind flusher interrupted");
+                return;
+            } catch (Exception e) {
+                // 吞掉异常，避免刷盘线程终止
+                log.error("Chat memory write-behind flush failed", e);
+            }
+        }
+        log.info("Chat memory write-behind flusher stopped");
+    }
+
+    /**
+     * 按轮次边界切分成不超过 maxBatchRows 行的语句依次写入
+     * 一条语句失败时停止，后面的轮次不再写入，避免同一会话后面的消息先落库
+     *
+     * @return 没有写入的轮次（按原顺序）
+     */
+    private List<List<MysqlChatMemory>> flush(List<List<MysqlChatMemory>> turns) {
+        List<MysqlChatMemory> batch = new ArrayList<>();
+        int batchStart = 0;
+        for (int i = 0; i < turns.size(); i++) {
+            List<MysqlChatMemory> turn = turns.get(i);
+            if (!batch.isEmpty() && batch.size() + turn.size() > maxBatchRows) {
+                if (!insertBatch(batch)) {
+                    return new ArrayList<>(turns.subList(batchStart, turns.size()));
+                }
+                batch = new ArrayList<>();
+                batchStart = i;
+            }
+            batch.addAll(turn);
+        }
+        if (!batch.isEmpty() && !insertBatch(batch)) {
+            return new ArrayList<>(turns.subList(batchStart, turns.size()));
+        }
+        return List.of();
+    }
+
+    /**
+     * 写入一批消息，只把写入成功的消息移出 pending
+     *
+     * @return 是否写入成功（没有需要写入的消息也视为成功）
+     */
+    private boolean insertBatch(List<MysqlChatMemory> batch) {
+        flushLock.lock();
+        try {
+            // 跳过刷盘前已被清空的会话
+            List<MysqlChatMemory> live = new ArrayList<>(batch.size());
+            for (MysqlChatMemory record : batch) {
+                if (isPending(record)) {
+                    live.add(record);
+                }
+            }
+            if (live.isEmpty()) {
+                return true;
+            }
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    mysqlChatMemoryMapper.insertBatch(live);
+                    log.debug("Flushed {} chat memory rows", live.size());
+                    break;
+                } catch (Exception e) {
+                    if (attempt >= MAX_FLUSH_ATTEMPTS) {
+                        // 单条多行INSERT失败时整体回滚，这些消息仍在pending中，下一个周期重试
+                        log.error("Failed to flush {} chat memory rows after {} attempts, will retry",
+                                live.size(), attempt, e);
+                        return false;
+                    }
+                    log.warn("Chat memory flush attempt {} failed, retrying", attempt, e);
+                    sleepQuietly(50L * attempt);
+                }
+            }
+            Map<String, List<MysqlChatMemory>> byChat = new HashMap<>();
+            for (MysqlChatMemory record : live) {
+                byChat.computeIfAbsent(record.getChatId(), k -> new ArrayList<>()).add(record);
+            }
+            byChat.forEach(this::removePending);
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean isPending(MysqlChatMemory record) {
+        boolean[] found = new boolean[1];
+        pendingByChat.computeIfPresent(record.getChatId(), (k, pending) -> {
+            found[0] = containsSame(pending, record);
+            return pending;
+        });
+        return found[0];
+    }
+
+    private void removePending(String conversationId, List<MysqlChatMemory> records) {
+        pendingByChat.computeIfPresent(conversationId, (k, pending) -> {
+            // 按引用删除：记录未回填id前内容可能相同
+            pending.removeIf(p -> containsSame(records, p));
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    private static boolean containsSame(List<MysqlChatMemory> list, MysqlChatMemory record) {
+        for (MysqlChatMemory item : list) {
+            if (item == record) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.List;
+
+/**
+ * 可只读取会话最近N条消息的对话记忆存储
+ *
+ * 只需要会话尾部的调用方（如按token预算选取窗口，见 {@link TokenBudgetWindow}）
+ * 不必读取和解码整个会话。
+ */
+public interface RecentMessagesSource {
+
+    /**
+     * 获取会话最近N条消息
+     *
+     * @param lastN 最近N条，应大于0
+     * @return 消息列表（时间正序）
+     */
+    List<Message> get(String conversationId, int lastN);
+}
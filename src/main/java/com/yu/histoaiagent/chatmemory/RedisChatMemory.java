@@ -1,16 +1,18 @@
 package com.yu.histoaiagent.chatmemory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -20,28 +22,67 @@ import java.util.stream.Collectors;
  * 
  * 存储结构：
  * - Key: chat:memory:{conversationId}
- * - Value: List<MessageDTO> (使用Redis List数据结构)
+ * - Value: Redis List，每个元素是一条消息的二进制编码（见 {@link RedisMessageCodec}）
+ * - 分层记忆使用的完整性标记：chat:memory-complete:{conversationId}，存在表示列表保存的是完整会话（回填后从未被裁剪）
+ *
+ * 旧版本写入的元素是Jackson默认类型的JSON（HashMap），读取时按首字节区分两种格式；
+ * 新写入一律使用二进制编码，旧元素随裁剪和TTL过期自然淘汰，不需要停机迁移。
  * 
  * 优势：
  * - 高性能内存存储
  * - 支持TTL自动过期
  * - 分布式友好
  * - 支持消息数量限制
+ * - 追加、裁剪、刷新TTL由一个Lua脚本原子完成，每轮对话一次往返
  */
 @Component
 @Slf4j
-public class RedisChatMemory implements ChatMemory {
+public class RedisChatMemory implements ChatMemory, ConversationIdSource, RecentMessagesSource {
 
     private static final String KEY_PREFIX = "chat:memory:";
+    private static final String COMPLETE_KEY_PREFIX = "chat:memory-complete:";
     private static final long DEFAULT_TTL_HOURS = 24; // 默认24小时过期
     private static final int DEFAULT_MAX_MESSAGES = 100; // 默认最多保存100条消息
 
-    private final RedisTemplate<String, Object> redisTemplate;
-    private final ObjectMapper objectMapper;
+    /**
+     * 追加脚本：Spring按SHA1调用（EVALSHA），脚本缓存被清空时自动退回EVAL重新加载
+     */
+    private static final RedisScript<Long> APPEND_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/chat_memory_append.lua"), Long.class);
+
+    /**
+     * 分层记忆使用：仅当会话存在时追加 / 仅当会话不存在时写入
+     */
+    private static final RedisScript<Long> APPEND_IF_EXISTS_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/chat_memory_append_if_exists.lua"), Long.class);
+    private static final RedisScript<Long> ADD_IF_ABSENT_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/chat_memory_add_if_absent.lua"), Long.class);
+
+    /**
+     * 分层记忆使用：读取最近N条消息和完整性标记
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAIL_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/chat_memory_tail.lua"), List.class);
+
+    /**
+     * 分页枚举会话key（SCAN），用于迁移
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> SCAN_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/chat_memory_scan.lua"), List.class);
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
 
-    public RedisChatMemory(RedisTemplate<String, Object> redisTemplate) {
-        this.redisTemplate = redisTemplate;
-        this.objectMapper = new ObjectMapper();
+    /**
+     * 旧格式（Jackson）元素的反序列化器
+     */
+    private final RedisSerializer<?> legacySerializer;
+
+    public RedisChatMemory(RedisTemplate<String, byte[]> chatMemoryRedisTemplate,
+                           RedisTemplate<String, Object> redisTemplate) {
+        this.redisTemplate = chatMemoryRedisTemplate;
+        this.legacySerializer = redisTemplate.getValueSerializer();
     }
 
     @Override
@@ -65,23 +106,8 @@ public class RedisChatMemory implements ChatMemory {
         String key = getKey(conversationId);
         
         try {
-            // 将Message转换为Map（便于序列化）
-            List<Map<String, Object>> messageMaps = messages.stream()
-                    .map(this::messageToMap)
-                    .collect(Collectors.toList());
-
-            // 使用RPUSH将消息添加到列表末尾
-            redisTemplate.opsForList().rightPushAll(key, messageMaps.toArray());
-            
-            // 限制消息数量，保留最新的消息
-            Long size = redisTemplate.opsForList().size(key);
-            if (size != null && size > DEFAULT_MAX_MESSAGES) {
-                // 删除最旧的消息
-                redisTemplate.opsForList().trim(key, size - DEFAULT_MAX_MESSAGES, -1);
-            }
-
-            // 设置过期时间
-            redisTemplate.expire(key, DEFAULT_TTL_HOURS, TimeUnit.HOURS);
+            // 追加到列表末尾、保留最新的消息并刷新过期时间，原子执行
+            redisTemplate.execute(APPEND_SCRIPT, List.of(key), scriptArgs(messages));
             
             log.debug("Added {} messages to conversation: {}", messages.size(), conversationId);
         } catch (Exception e) {
@@ -95,19 +121,19 @@ public class RedisChatMemory implements ChatMemory {
         String key = getKey(conversationId);
 
         try {
-            List<Object> messageMaps;
+            List<byte[]> values;
 
             // 获取所有消息
-            messageMaps = redisTemplate.opsForList().range(key, 0, -1);
+            values = redisTemplate.opsForList().range(key, 0, -1);
 
-            if (messageMaps == null || messageMaps.isEmpty()) {
+            if (values == null || values.isEmpty()) {
                 log.debug("No messages found for conversation: {}", conversationId);
                 return Collections.emptyList();
             }
 
             // 转换为Message对象
-            List<Message> messages = messageMaps.stream()
-                    .map(obj -> mapToMessage((Map<String, Object>) obj))
+            List<Message> messages = values.stream()
+                    .map(this::decode)
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
 
@@ -127,29 +153,29 @@ public class RedisChatMemory implements ChatMemory {
      * @param lastN 获取最近N条消息，0表示获取所有消息
      * @return 消息列表
      */
+    @Override
     public List<Message> get(String conversationId, int lastN) {
         String key = getKey(conversationId);
         
         try {
-            List<Object> messageMaps;
+            List<byte[]> values;
             
             if (lastN > 0) {
-                // 获取最后N条消息
-                long start = Math.max(0, redisTemplate.opsForList().size(key) - lastN);
-                messageMaps = redisTemplate.opsForList().range(key, start, -1);
+                // 获取最后N条消息：负下标从尾部计数，不需要先查长度
+                values = redisTemplate.opsForList().range(key, -lastN, -1);
             } else {
                 // 获取所有消息
-                messageMaps = redisTemplate.opsForList().range(key, 0, -1);
+                values = redisTemplate.opsForList().range(key, 0, -1);
             }
 
-            if (messageMaps == null || messageMaps.isEmpty()) {
+            if (values == null || values.isEmpty()) {
                 log.debug("No messages found for conversation: {}", conversationId);
                 return Collections.emptyList();
             }
 
             // 转换为Message对象
-            List<Message> messages = messageMaps.stream()
-                    .map(obj -> mapToMessage((Map<String, Object>) obj))
+            List<Message> messages = values.stream()
+                    .map(this::decode)
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
 
@@ -172,14 +198,88 @@ public class RedisChatMemory implements ChatMemory {
         String key = getKey(conversationId);
         
         try {
-            Boolean deleted = redisTemplate.delete(key);
-            log.debug("Cleared conversation: {}, deleted: {}", conversationId, deleted);
+            Long deleted = redisTemplate.delete(List.of(key, getCompleteKey(conversationId)));
+            log.debug("Cleared conversation: {}, deleted keys: {}", conversationId, deleted);
         } catch (Exception e) {
             log.error("Failed to clear conversation: {}", conversationId, e);
             throw new RuntimeException("Failed to clear conversation", e);
         }
     }
 
+    /**
+     * 仅当会话已在Redis中时追加消息
+     *
+     * @return 是否追加；会话不存在（已过期或未加载）时返回false，不做任何写入
+     */
+    public boolean appendIfPresent(String conversationId, List<Message> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return exists(conversationId);
+        }
+        Long size = redisTemplate.execute(APPEND_IF_EXISTS_SCRIPT,
+                List.of(getKey(conversationId), getCompleteKey(conversationId)), scriptArgs(messages));
+        return size != null && size > 0;
+    }
+
+    /**
+     * 仅当会话不在Redis中时写入消息（超过上限时只保留最新的部分）
+     *
+     * @param complete 写入的是否为完整会话；是且未被裁剪时设置完整性标记
+     * @return 是否写入；会话已存在时返回false，不覆盖已有内容
+     */
+    public boolean addIfAbsent(String conversationId, List<Message> messages, boolean complete) {
+        if (messages == null || messages.isEmpty()) {
+            return false;
+        }
+        Long size = redisTemplate.execute(ADD_IF_ABSENT_SCRIPT,
+                List.of(getKey(conversationId), getCompleteKey(conversationId)),
+                scriptArgs(messages, complete ? "1" : "0"));
+        return size != null && size > 0;
+    }
+
+    /**
+     * 热层中会话最近的消息，以及热层是否保存了完整会话
+     *
+     * @param messages 最近N条消息，会话不在热层时为空
+     * @param complete 热层是否保存了完整会话（回填后从未被裁剪）
+     */
+    public record Tail(List<Message> messages, boolean complete) {
+    }
+
+    /**
+     * 一次往返读取最近N条消息和完整性标记（分层记忆使用）
+     * 读取失败时按未命中处理
+     *
+     * @param lastN 最近N条，0表示全部
+     */
+    public Tail tail(String conversationId, int lastN) {
+        try {
+            List<?> result = redisTemplate.execute(TAIL_SCRIPT,
+                    List.of(getKey(conversationId), getCompleteKey(conversationId)),
+                    String.valueOf(Math.max(0, lastN)).getBytes(StandardCharsets.UTF_8));
+            if (result == null || result.isEmpty()) {
+                return new Tail(Collections.emptyList(), false);
+            }
+            List<Message> messages = new ArrayList<>(result.size() - 1);
+            for (int i = 1; i < result.size(); i++) {
+                Message message = decode((byte[]) result.get(i));
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            return new Tail(messages, result.get(0) instanceof Number flag && flag.longValue() == 1);
+        } catch (Exception e) {
+            log.error("Failed to read tail from Redis for conversation: {}", conversationId, e);
+            return new Tail(Collections.emptyList(), false);
+        }
+    }
+
+    /**
+     * 每个会话最多保存的消息数，超过后从最早的消息开始裁剪
+     */
+    public int getMaxMessages() {
+        return DEFAULT_MAX_MESSAGES;
+    }
+
     /**
      * 获取会话的消息数量
      * 
@@ -217,6 +317,46 @@ public class RedisChatMemory implements ChatMemory {
         return exists != null && exists;
     }
 
+    /**
+     * 分页枚举会话ID，游标为Redis的SCAN游标
+     * SCAN保证枚举开始前已存在、期间未被删除的key至少出现一次，迁移方需要能容忍重复
+     */
+    @Override
+    public Page conversationIds(String cursor, int limit) {
+        Object[] args = {
+                (cursor == null ? "0" : cursor).getBytes(StandardCharsets.UTF_8),
+                (KEY_PREFIX + "*").getBytes(StandardCharsets.UTF_8),
+                String.valueOf(limit).getBytes(StandardCharsets.UTF_8)
+        };
+        List<?> result = redisTemplate.execute(SCAN_SCRIPT, List.of(), args);
+        if (result == null || result.size() < 2) {
+            throw new IllegalStateException("Unexpected SCAN result: " + result);
+        }
+        String next = new String((byte[]) result.get(0), StandardCharsets.UTF_8);
+        List<String> ids = new ArrayList<>();
+        for (Object key : (List<?>) result.get(1)) {
+            ids.add(new String((byte[]) key, StandardCharsets.UTF_8).substring(KEY_PREFIX.length()));
+        }
+        return new Page(ids, "0".equals(next) ? null : next);
+    }
+
+    /**
+     * 写入脚本的参数：上限、TTL（秒）、脚本的其他参数，之后是编码后的消息
+     */
+    private static Object[] scriptArgs(List<Message> messages, String... extra) {
+        int head = 2 + extra.length;
+        Object[] args = new Object[messages.size() + head];
+        args[0] = String.valueOf(DEFAULT_MAX_MESSAGES).getBytes(StandardCharsets.UTF_8);
+        args[1] = String.valueOf(TimeUnit.HOURS.toSeconds(DEFAULT_TTL_HOURS)).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < extra.length; i++) {
+            args[i + 2] = extra[i].getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            args[i + head] = RedisMessageCodec.encode(messages.get(i));
+        }
+        return args;
+    }
+
     /**
      * 构造Redis key
      */
@@ -224,23 +364,28 @@ public class RedisChatMemory implements ChatMemory {
         return KEY_PREFIX + conversationId;
     }
 
+    private String getCompleteKey(String conversationId) {
+        return COMPLETE_KEY_PREFIX + conversationId;
+    }
+
     /**
-     * 将Message对象转换为Map
+     * 解码一个列表元素，兼容旧版Jackson格式
      */
-    private Map<String, Object> messageToMap(Message message) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("messageType", message.getMessageType().getValue());
-        map.put("content", message.getText());
-        
-        if (message.getMetadata() != null && !message.getMetadata().isEmpty()) {
-            map.put("metadata", message.getMetadata());
+    @SuppressWarnings("unchecked")
+    private Message decode(byte[] value) {
+        try {
+            if (RedisMessageCodec.isEncoded(value)) {
+                return RedisMessageCodec.decode(value);
+            }
+            return mapToMessage((Map<String, Object>) legacySerializer.deserialize(value));
+        } catch (Exception e) {
+            log.error("Failed to decode chat message from Redis", e);
+            return null;
         }
-        
-        return map;
     }
 
     /**
-     * 将Map转换为Message对象
+     * 将旧格式的Map转换为Message对象
      */
     private Message mapToMessage(Map<String, Object> map) {
         try {
@@ -0,0 +1,107 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Redis对话记忆的二进制消息编码
+ *
+ * 格式（版本2）：magic(1) + version(1) + type(1) + flags(1) + tokenCount(4) + content(UTF-8，直到末尾)
+ * - magic 为 0xC3：不是合法JSON文本的首字节，可与旧版Jackson编码（以 '[' 或 '{' 开头）区分
+ * - flags 第0位表示 content 为 null
+ * - tokenCount 为写入时计算的token数（见 {@link TokenBudgetWindow}），-1 表示未知
+ * 版本1没有 tokenCount 字段，仍可读取。
+ *
+ * 与旧格式相比不再写入类名和字段名，每条消息只有8字节的固定开销。
+ */
+final class RedisMessageCodec {
+
+    static final byte MAGIC = (byte) 0xC3;
+    static final byte VERSION = 2;
+    static final int HEADER_SIZE = 8;
+
+    private static final byte VERSION_1 = 1;
+    private static final int VERSION_1_HEADER_SIZE = 4;
+    private static final int UNKNOWN_TOKEN_COUNT = -1;
+
+    private static final byte TYPE_USER = 0;
+    private static final byte TYPE_ASSISTANT = 1;
+    private static final byte TYPE_SYSTEM = 2;
+
+    private static final byte FLAG_NULL_CONTENT = 1;
+
+    private RedisMessageCodec() {
+    }
+
+    /**
+     * 是否为本编码格式（否则按旧格式解码）
+     */
+    static boolean isEncoded(byte[] value) {
+        return value != null && value.length >= VERSION_1_HEADER_SIZE && value[0] == MAGIC;
+    }
+
+    static byte[] encode(Message message) {
+        String text = message.getText();
+        byte[] content = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[HEADER_SIZE + content.length];
+        value[0] = MAGIC;
+        value[1] = VERSION;
+        value[2] = typeCode(message.getMessageType());
+        value[3] = text == null ? FLAG_NULL_CONTENT : 0;
+        ByteBuffer.wrap(value, 4, 4).putInt(tokenCountOf(message));
+        System.arraycopy(content, 0, value, HEADER_SIZE, content.length);
+        return value;
+    }
+
+    static Message decode(byte[] value) {
+        if (!isEncoded(value)) {
+            throw new IllegalArgumentException("Not a binary chat message");
+        }
+        int headerSize;
+        int tokenCount;
+        if (value[1] == VERSION && value.length >= HEADER_SIZE) {
+            headerSize = HEADER_SIZE;
+            tokenCount = ByteBuffer.wrap(value, 4, 4).getInt();
+        } else if (value[1] == VERSION_1) {
+            headerSize = VERSION_1_HEADER_SIZE;
+            tokenCount = UNKNOWN_TOKEN_COUNT;
+        } else {
+            throw new IllegalArgumentException("Unsupported chat message codec version: " + value[1]);
+        }
+        String content = (value[3] & FLAG_NULL_CONTENT) != 0 ? null
+                : new String(value, headerSize, value.length - headerSize, StandardCharsets.UTF_8);
+        Map<String, Object> metadata = new HashMap<>();
+        if (tokenCount >= 0) {
+            metadata.put(TokenBudgetWindow.TOKEN_COUNT_METADATA, tokenCount);
+        }
+        return switch (value[2]) {
+            case TYPE_SYSTEM -> SystemMessage.builder().text(content).metadata(metadata).build();
+            case TYPE_ASSISTANT -> new AssistantMessage(content, metadata);
+            default -> UserMessage.builder().text(content).metadata(metadata).build();
+        };
+    }
+
+    private static int tokenCountOf(Message message) {
+        Map<String, Object> metadata = message.getMetadata();
+        if (metadata != null && metadata.get(TokenBudgetWindow.TOKEN_COUNT_METADATA) instanceof Number count) {
+            return count.intValue();
+        }
+        return UNKNOWN_TOKEN_COUNT;
+    }
+
+    private static byte typeCode(MessageType type) {
+        return switch (type) {
+            case SYSTEM -> TYPE_SYSTEM;
+            case ASSISTANT -> TYPE_ASSISTANT;
+            default -> TYPE_USER;
+        };
+    }
+}
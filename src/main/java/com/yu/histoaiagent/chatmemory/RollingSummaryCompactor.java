@@ -0,0 +1,299 @@
+package com.yu.histoaiagent.chatmemory;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 长对话的滚动摘要压缩
+ *
+ * 会话总token数超过阈值后，在后台线程中调用模型把较早的消息（连同上一次的摘要）总结成一条摘要，
+ * 读取时以 {@link SystemMessage} 的形式放在会话最前面，代替被总结的消息；最近的若干条消息保持原样。
+ * 之后每轮对话携带的是"摘要 + 最近消息"，prompt长度不再随会话长度线性增长。
+ *
+ * - 压缩只在写入后异步触发（见 {@link #wrap}），不增加对话延迟；同一会话同时只有一个压缩任务
+ * - 本节点缓存每个会话的总token数，写入时只累加新消息；缓存值达到阈值（或尚未缓存）时才读取完整会话，
+ *   读取后以实际值校正缓存（其他节点的写入和压缩在此时计入）
+ * - 调用模型时不持有会话锁；写回前在锁内确认被总结的消息仍是会话的前缀，否则放弃本次结果，下次写入时重试
+ * - 任务队列满时直接丢弃，下次写入时会再次触发
+ *
+ * 写回是在会话末尾追加一条带水位线的摘要记录，底层存储中的原始消息不改写（见 {@link SummarizingChatMemory}）；
+ * 写回前的前缀确认只在本节点加锁，因此默认关闭，通过 chat-memory.summary.enabled 开启
+ */
+@Component
+@Slf4j
+public class RollingSummaryCompactor {
+
+    static final String SUMMARY_PREFIX = "以下是此前对话的摘要：\n";
+
+    private static final String SUMMARY_INSTRUCTION = "你负责为心理咨询对话撰写摘要。请用第三人称简明总结以下对话，" +
+            "保留来访者的核心困扰、情绪变化、重要的人物和事件、已经讨论过的应对方法和约定，" +
+            "省略寒暄和重复内容，不要添加对话中没有的信息。只输出摘要正文。";
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_TRACKED_CONVERSATIONS = 100_000;
+
+    private final ChatModel chatModel;
+    private final TokenBudgetWindow window;
+    private final Executor executor;
+    private final boolean enabled;
+    private final int triggerTokens;
+    private final int keepRecentMessages;
+
+    /**
+     * 正在压缩的会话
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 本节点已知的会话总token数，按最近访问淘汰
+     */
+    private final Map<String, Integer> tokenTotals = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_TRACKED_CONVERSATIONS;
+                }
+            });
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder tokensSaved = new LongAdder();
+
+    /**
+     * 一次压缩的结果
+     *
+     * @param tokensBefore 压缩前会话的总token数
+     * @param tokensAfter 压缩后会话的总token数
+     */
+    public record CompactionResult(String conversationId, int messagesBefore, int messagesAfter,
+                                   int tokensBefore, int tokensAfter) {
+
+        /**
+         * token减少的比例（0~1）
+         */
+        public double reduction() {
+            return tokensBefore == 0 ? 0 : 1 - (double) tokensAfter / tokensBefore;
+        }
+    }
+
+    @Autowired
+    public RollingSummaryCompactor(
+            ChatModel dashscopeChatModel,
+            @Value("${chat-memory.summary.enabled:false}") boolean enabled,
+            @Value("${chat-memory.summary.trigger-tokens:6000}") int triggerTokens,
+            @Value("${chat-memory.summary.keep-recent-messages:6}") int keepRecentMessages,
+            @Value("${chat-memory.summary.threads:2}") int threads,
+            @Value("${chat-memory.summary.queue-capacity:1000}") int queueCapacity) {
+        this(dashscopeChatModel, new TokenBudgetWindow(), newExecutor(threads, queueCapacity),
+                enabled, triggerTokens, keepRecentMessages);
+    }
+
+    RollingSummaryCompactor(ChatModel chatModel, TokenBudgetWindow window, Executor executor,
+                            boolean enabled, int triggerTokens, int keepRecentMessages) {
+        this.chatModel = chatModel;
+        this.window = window;
+        this.executor = executor;
+        this.enabled = enabled;
+        this.triggerTokens = triggerTokens;
+        this.keepRecentMessages = Math.max(1, keepRecentMessages);
+        log.info("Rolling summary enabled: {}, trigger tokens: {}, keep recent messages: {}",
+                enabled, triggerTokens, keepRecentMessages);
+    }
+
+    private static ExecutorService newExecutor(int threads, int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "chat-memory-summarizer-" + index.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 包装一个ChatMemory：写入后按需触发压缩；关闭时原样返回
+     */
+    public ChatMemory wrap(ChatMemory delegate) {
+        return enabled ? new SummarizingChatMemory(delegate, this) : delegate;
+    }
+
+    /**
+     * 累计完成的压缩次数
+     */
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * 累计减少的token数
+     */
+    public long tokensSaved() {
+        return tokensSaved.sum();
+    }
+
+    /**
+     * 会话写入后调用：累加缓存的总token数，达到阈值或总数未知时提交后台压缩任务，同一会话已有任务时跳过
+     */
+    void onAppended(SummarizingChatMemory memory, String conversationId, List<Message> appended) {
+        int appendedTokens = totalTokens(appended);
+        Integer total = tokenTotals.computeIfPresent(conversationId, (k, v) -> v + appendedTokens);
+        if (total != null && total < triggerTokens) {
+            return;
+        }
+        if (!inFlight.add(conversationId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    compact(memory, conversationId);
+                } catch (Exception e) {
+                    // 吞掉异常，避免后台线程终止；下次写入时会重试
+                    log.warn("Failed to summarize conversation {}", conversationId, e);
+                } finally {
+                    inFlight.remove(conversationId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(conversationId);
+            log.debug("Summary queue is full, skip conversation {}", conversationId);
+        }
+    }
+
+    /**
+     * 会话总token数超过阈值时执行一次压缩
+     *
+     * @return 压缩结果；未达到阈值、没有可压缩的消息或期间会话被修改时返回空
+     */
+    Optional<CompactionResult> compact(SummarizingChatMemory memory, String conversationId) {
+        List<Message> history = memory.get(conversationId);
+        int tokensBefore = totalTokens(history);
+        tokenTotals.put(conversationId, tokensBefore);
+        if (tokensBefore < triggerTokens) {
+            return Optional.empty();
+        }
+        int split = splitIndex(history);
+        if (split <= 0 || (split == 1 && isSummary(history.get(0)))) {
+            return Optional.empty();
+        }
+        List<Message> prefix = List.copyOf(history.subList(0, split));
+
+        String summary = summarize(prefix);
+        if (summary == null || summary.isBlank()) {
+            log.warn("Model returned an empty summary for conversation {}", conversationId);
+            return Optional.empty();
+        }
+        Message summaryMessage = new SystemMessage(SUMMARY_PREFIX + summary.strip());
+        window.stamp(summaryMessage);
+
+        Optional<List<Message>> rewritten = memory.appendSummary(conversationId, prefix, summaryMessage);
+        if (rewritten.isEmpty()) {
+            log.debug("Conversation {} changed during summarization, discard summary", conversationId);
+            return Optional.empty();
+        }
+        List<Message> after = rewritten.get();
+        CompactionResult result = new CompactionResult(conversationId, history.size(), after.size(),
+                tokensBefore, totalTokens(after));
+        tokenTotals.put(conversationId, result.tokensAfter());
+        compactions.increment();
+        tokensSaved.add(Math.max(0, result.tokensBefore() - result.tokensAfter()));
+        log.info("Summarized conversation {}: {} -> {} messages, {} -> {} tokens ({}% reduction)",
+                conversationId, result.messagesBefore(), result.messagesAfter(),
+                result.tokensBefore(), result.tokensAfter(), Math.round(result.reduction() * 100));
+        return Optional.of(result);
+    }
+
+    /**
+     * 被总结部分与保留部分的分界：至少保留最近 keepRecentMessages 条，
+     * 并向前移动到一条用户消息处，保证保留部分从完整的一轮对话开始
+     */
+    private int splitIndex(List<Message> history) {
+        int split = history.size() - keepRecentMessages;
+        while (split > 0 && history.get(split).getMessageType() != MessageType.USER) {
+            split--;
+        }
+        return split;
+    }
+
+    /**
+     * 会话被清空后调用：丢弃缓存的总token数
+     */
+    void forget(String conversationId) {
+        tokenTotals.remove(conversationId);
+    }
+
+    private String summarize(List<Message> prefix) {
+        StringBuilder transcript = new StringBuilder();
+        for (Message message : prefix) {
+            if (isSummary(message)) {
+                transcript.append("【此前的摘要】").append(message.getText().substring(SUMMARY_PREFIX.length()));
+            } else {
+                transcript.append(message.getMessageType() == MessageType.USER ? "来访者：" : "咨询师：")
+                        .append(message.getText());
+            }
+            transcript.append('\n');
+        }
+        ChatResponse response = chatModel.call(new Prompt(List.of(
+                new SystemMessage(SUMMARY_INSTRUCTION), new UserMessage(transcript.toString()))));
+        return response == null || response.getResult() == null ? null : response.getResult().getOutput().getText();
+    }
+
+    private int totalTokens(List<Message> messages) {
+        int total = 0;
+        for (Message message : messages) {
+            total += window.tokenCount(message);
+        }
+        return total;
+    }
+
+    /**
+     * 摘要总是会话中唯一的、位于最前面的系统消息
+     */
+    static boolean isSummary(Message message) {
+        return message.getMessageType() == MessageType.SYSTEM
+                && message.getText() != null && message.getText().startsWith(SUMMARY_PREFIX);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor instanceof ExecutorService service) {
+            service.shutdown();
+            try {
+                if (!service.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    service.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                service.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.yu.histoaiagent.chatmemory;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按会话ID分段的读写锁
+ *
+ * 同一会话总是映射到同一把锁，不同会话大概率落在不同分段上可以并行；
+ * 锁的数量固定，不随会话数量增长。
+ */
+final class StripedLocks {
+
+    private final ReadWriteLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes 分段数，会向上取整为2的幂
+     */
+    StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    ReadWriteLock get(String key) {
+        int h = key.hashCode();
+        // 扰动高位，避免相近的ID集中到同一分段
+        h ^= (h >>> 16);
+        return locks[h & mask];
+    }
+}
@@ -0,0 +1,214 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 带滚动摘要的ChatMemory装饰器，由 {@link RollingSummaryCompactor#wrap} 创建
+ *
+ * 读写都委托给底层存储，写入后通知压缩器；压缩结果通过 {@link #appendSummary} 写回。
+ *
+ * 底层存储中的原始消息从不改写：摘要作为一条摘要记录追加在会话末尾，记录中带有水位线
+ * （写入时摘要之后保留的消息条数）。读取时找到最后一条摘要记录，返回"摘要 + 记录前保留的消息 + 记录之后的消息"，
+ * 被总结的消息和更早的摘要记录不再返回。写回只有一次追加，进程崩溃或写入失败时要么没有摘要、要么摘要完整，
+ * 不会丢失历史消息。代价是底层存储中的会话不会缩短，完整读取的代价随会话长度增长。
+ *
+ * 写回前在本节点的会话写锁内确认前缀未变。锁只在本节点生效：同一会话在多个节点上并发写入时，
+ * 其他节点在确认与追加之间写入的消息会挤占水位线，读取时最早的一条保留消息被当作已总结，
+ * 因此会话应由同一节点处理（或关闭摘要）。
+ */
+public class SummarizingChatMemory implements ChatMemory, RecentMessagesSource {
+
+    /**
+     * 摘要记录的文本格式：{RECORD_PREFIX}{保留条数}]\n{摘要消息的文本}
+     */
+    static final String RECORD_PREFIX = "[rolling-summary kept=";
+
+    private final ChatMemory delegate;
+    private final RollingSummaryCompactor compactor;
+    private final StripedLocks locks = new StripedLocks(256);
+
+    SummarizingChatMemory(ChatMemory delegate, RollingSummaryCompactor compactor) {
+        this.delegate = delegate;
+        this.compactor = compactor;
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        Lock lock = locks.get(conversationId).writeLock();
+        lock.lock();
+        try {
+            delegate.add(conversationId, messages);
+        } finally {
+            lock.unlock();
+        }
+        compactor.onAppended(this, conversationId, messages);
+    }
+
+    @Override
+    public List<Message> get(String conversationId) {
+        Lock lock = locks.get(conversationId).readLock();
+        lock.lock();
+        try {
+            return view(delegate.get(conversationId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取会话最近的消息
+     * 先读取底层存储的最后N条：不足N条时就是完整会话；最后一条摘要记录及其保留的消息都在其中时直接得出结果
+     * （开启摘要后摘要记录之后的token数被压缩在阈值附近，通常如此）；否则退回读取完整会话。
+     * 有摘要时返回的是完整的"摘要 + 最近消息"，可能多于N条
+     */
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (!(delegate instanceof RecentMessagesSource source)) {
+            return get(conversationId);
+        }
+        Lock lock = locks.get(conversationId).readLock();
+        lock.lock();
+        try {
+            List<Message> tail = source.get(conversationId, lastN);
+            if (tail.size() < lastN) {
+                return view(tail);
+            }
+            List<Message> fromTail = viewOfTail(tail);
+            return fromTail != null ? fromTail : view(delegate.get(conversationId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        Lock lock = locks.get(conversationId).writeLock();
+        lock.lock();
+        try {
+            delegate.clear(conversationId);
+        } finally {
+            lock.unlock();
+        }
+        compactor.forget(conversationId);
+    }
+
+    /**
+     * 用摘要代替会话开头的消息：在会话末尾追加一条摘要记录，底层存储中的原始消息保持不变
+     *
+     * @param expectedPrefix 被总结的消息，必须仍是会话当前的前缀
+     * @param summary 摘要消息
+     * @return 写回后的会话；会话已被修改（前缀不一致）时返回空，不做任何写入
+     */
+    Optional<List<Message>> appendSummary(String conversationId, List<Message> expectedPrefix, Message summary) {
+        Lock lock = locks.get(conversationId).writeLock();
+        lock.lock();
+        try {
+            List<Message> current = view(delegate.get(conversationId));
+            if (!startsWith(current, expectedPrefix)) {
+                return Optional.empty();
+            }
+            int kept = current.size() - expectedPrefix.size();
+            delegate.add(conversationId, List.of(new SystemMessage(RECORD_PREFIX + kept + "]\n" + summary.getText())));
+            List<Message> rewritten = new ArrayList<>(kept + 1);
+            rewritten.add(summary);
+            rewritten.addAll(current.subList(expectedPrefix.size(), current.size()));
+            return Optional.of(rewritten);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 由完整的底层会话得出读取结果
+     */
+    static List<Message> view(List<Message> raw) {
+        List<Message> result = viewOfTail(raw);
+        // 没有摘要记录时原样返回；记录无法解析时忽略摘要
+        return result != null ? result : withoutRecords(raw);
+    }
+
+    /**
+     * 由底层会话的一段尾部得出读取结果
+     *
+     * @return 尾部中没有摘要记录（更早的消息中可能有）、或记录保留的消息不全在尾部中时返回null
+     */
+    private static List<Message> viewOfTail(List<Message> tail) {
+        int recordIndex = -1;
+        for (int i = tail.size() - 1; i >= 0; i--) {
+            if (isRecord(tail.get(i))) {
+                recordIndex = i;
+                break;
+            }
+        }
+        if (recordIndex < 0) {
+            return null;
+        }
+        String text = tail.get(recordIndex).getText();
+        int end = text.indexOf("]\n", RECORD_PREFIX.length());
+        int kept;
+        try {
+            kept = end < 0 ? -1 : Integer.parseInt(text.substring(RECORD_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            kept = -1;
+        }
+        if (kept < 0) {
+            return null;
+        }
+
+        // 记录之前最后 kept 条非记录消息
+        int start = recordIndex;
+        for (int found = 0; found < kept; ) {
+            if (--start < 0) {
+                return null;
+            }
+            if (!isRecord(tail.get(start))) {
+                found++;
+            }
+        }
+        List<Message> result = new ArrayList<>(kept + tail.size() - recordIndex);
+        result.add(new SystemMessage(text.substring(end + 2)));
+        for (int i = start; i < tail.size(); i++) {
+            if (!isRecord(tail.get(i))) {
+                result.add(tail.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static List<Message> withoutRecords(List<Message> messages) {
+        for (Message message : messages) {
+            if (isRecord(message)) {
+                return messages.stream().filter(m -> !isRecord(m)).toList();
+            }
+        }
+        return messages;
+    }
+
+    private static boolean isRecord(Message message) {
+        return message.getMessageType() == MessageType.SYSTEM
+                && message.getText() != null && message.getText().startsWith(RECORD_PREFIX);
+    }
+
+    private static boolean startsWith(List<Message> messages, List<Message> prefix) {
+        if (messages.size() < prefix.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            Message a = messages.get(i);
+            Message b = prefix.get(i);
+            if (a.getMessageType() != b.getMessageType() || !Objects.equals(a.getText(), b.getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
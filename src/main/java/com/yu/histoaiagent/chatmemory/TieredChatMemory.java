@@ -0,0 +1,149 @@
+package com.yu.histoaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 分层ChatMemory：Redis为热层，MySQL为冷层（完整历史）
+ *
+ * - 写：先写MySQL（开启 write-behind 时只入队），再追加到Redis；会话不在Redis中时不追加，
+ *   避免热层只保存会话的一部分
+ * - 读：优先读Redis；未命中（TTL过期或从未加载）时读MySQL，并把最新的部分回填到Redis
+ * - Redis只保存最近 {@link RedisChatMemory#getMaxMessages()} 条：回填完整会话时设置完整性标记，追加导致裁剪时删除；
+ *   标记存在时完整历史由Redis提供，否则改由MySQL（有本节点会话缓存）提供；
+ *   最近N条在热层中足够时总是走Redis，标记和消息在同一次往返中读取
+ * - 清空：两层都删除
+ *
+ * 回填与写入在本节点的会话锁内互斥，回填使用"不存在才写入"的脚本，不会覆盖其他节点更新的热层；
+ * 同一会话在多个节点上同时回填和写入时，热层可能短暂缺少一轮消息，直到下次过期回填。
+ * Redis故障时退化为直接读写MySQL。
+ */
+@Component
+@Slf4j
+public class TieredChatMemory implements ChatMemory, ConversationIdSource, RecentMessagesSource {
+
+    private final RedisChatMemory hot;
+    private final InMySqlChatMemory cold;
+
+    private final StripedLocks locks = new StripedLocks(256);
+
+    public TieredChatMemory(RedisChatMemory redisChatMemory, InMySqlChatMemory inMySqlChatMemory) {
+        this.hot = redisChatMemory;
+        this.cold = inMySqlChatMemory;
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        if (CollectionUtils.isEmpty(messages)) {
+            log.warn("No messages to add for conversation: {}", conversationId);
+            return;
+        }
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            // 冷层是完整历史，先写；失败时直接抛出，热层保持不变
+            cold.add(conversationId, messages);
+            try {
+                hot.appendIfPresent(conversationId, messages);
+            } catch (Exception e) {
+                log.warn("Failed to append to hot tier for conversation: {}, evicting", conversationId, e);
+                evictHot(conversationId);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> get(String conversationId) {
+        RedisChatMemory.Tail cached = hot.tail(conversationId, 0);
+        if (cached.messages().isEmpty()) {
+            return loadAndRehydrate(conversationId);
+        }
+        // 更早的消息已被裁剪（或无法确认）时读冷层
+        return cached.complete() ? cached.messages() : cold.get(conversationId);
+    }
+
+    /**
+     * 获取会话最近N条消息
+     *
+     * @param lastN 最近N条，0表示全部
+     */
+    @Override
+    public List<Message> get(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return get(conversationId);
+        }
+        RedisChatMemory.Tail cached = hot.tail(conversationId, lastN);
+        if (cached.messages().size() >= lastN || (!cached.messages().isEmpty() && cached.complete())) {
+            // 热层足够N条，或保存了完整会话、只是不足N条
+            return cached.messages();
+        }
+        if (!cached.messages().isEmpty()) {
+            return cold.get(conversationId, lastN);
+        }
+        List<Message> all = loadAndRehydrate(conversationId);
+        return all.size() > lastN ? all.subList(all.size() - lastN, all.size()) : all;
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            cold.clear(conversationId);
+            hot.clear(conversationId);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 枚举冷层（完整历史）中的会话
+     */
+    @Override
+    public Page conversationIds(String cursor, int limit) {
+        return cold.conversationIds(cursor, limit);
+    }
+
+    /**
+     * 热层未命中：从冷层读取完整会话，把最新的部分写回热层
+     */
+    private List<Message> loadAndRehydrate(String conversationId) {
+        Lock writeLock = locks.get(conversationId).writeLock();
+        writeLock.lock();
+        try {
+            List<Message> messages = cold.get(conversationId);
+            if (messages.isEmpty()) {
+                return messages;
+            }
+            int max = hot.getMaxMessages();
+            List<Message> tail = messages.size() > max ? messages.subList(messages.size() - max, messages.size()) : messages;
+            try {
+                if (hot.addIfAbsent(conversationId, tail, tail.size() == messages.size())) {
+                    log.debug("Rehydrated {} messages into hot tier for conversation: {}", tail.size(), conversationId);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to rehydrate hot tier for conversation: {}", conversationId, e);
+            }
+            return messages;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void evictHot(String conversationId) {
+        try {
+            hot.clear(conversationId);
+        } catch (Exception e) {
+            // 热层不可用，TTL到期后自然失效
+            log.error("Failed to evict hot tier for conversation: {}", conversationId, e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.yu.histoaiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按token预算截取对话记忆窗口
+ *
+ * 每条消息的token数在写入记忆时计算一次，保存在消息元数据 {@link #TOKEN_COUNT_METADATA} 中，
+ * 随消息一起持久化（文件存储通过Kryo、Redis存储通过编码头）；
+ * 没有保存该元数据的存储（如MySQL），在第一次读取时计算并按消息文本记在本对象的有界并发表中；
+ * 读出的消息可能被会话缓存共享，因此不修改其元数据。
+ * 选取窗口时从最新的消息向前累加，只访问最终被选中的消息和第一条放不下的消息，不重新分词。
+ */
+@Slf4j
+public class TokenBudgetWindow {
+
+    /**
+     * 消息元数据中token数的键
+     */
+    public static final String TOKEN_COUNT_METADATA = "tokenCount";
+
+    /**
+     * 估算读取条数时假定的每条消息最少token数
+     */
+    static final int MIN_TOKENS_PER_MESSAGE = 8;
+
+    /**
+     * 计算结果表的最大条目数，超出后整体清空重新累积
+     */
+    static final int MAX_COMPUTED_ENTRIES = 4096;
+
+    private final TokenCountEstimator estimator;
+
+    /**
+     * 元数据中没有token数的消息的计算结果，按消息文本查找（token数只取决于文本）；
+     * 读取不加锁，并发计算同一文本时结果相同，重复写入无害
+     */
+    private final Map<String, Integer> computed = new ConcurrentHashMap<>();
+
+    public TokenBudgetWindow() {
+        this(new JTokkitTokenCountEstimator());
+    }
+
+    public TokenBudgetWindow(TokenCountEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * 计算消息的token数并写入元数据（写入记忆前调用）
+     * 只用于刚创建、尚未被其他线程共享的消息
+     *
+     * @return token数
+     */
+    public int stamp(Message message) {
+        int count = estimate(message);
+        try {
+            message.getMetadata().put(TOKEN_COUNT_METADATA, count);
+        } catch (UnsupportedOperationException e) {
+            // 元数据不可修改，读取时再计算
+            log.debug("Message metadata is immutable, token count not cached");
+        }
+        return count;
+    }
+
+    /**
+     * 获取消息的token数：优先使用元数据中保存的值，缺失时计算并记在结果表中（不修改消息）
+     */
+    public int tokenCount(Message message) {
+        Map<String, Object> metadata = message.getMetadata();
+        if (metadata != null && metadata.get(TOKEN_COUNT_METADATA) instanceof Number count) {
+            return count.intValue();
+        }
+        String text = message.getText();
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Integer cached = computed.get(text);
+        if (cached != null) {
+            return cached;
+        }
+        int count = estimator.estimate(text);
+        if (computed.size() >= MAX_COMPUTED_ENTRIES) {
+            computed.clear();
+        }
+        computed.put(text, count);
+        return count;
+    }
+
+    /**
+     * 按预算选取窗口最多需要读取的最近消息数（按每条消息至少 {@link #MIN_TOKENS_PER_MESSAGE} 个token估算）
+     * 极短的消息很多时，选出的窗口可能略小于预算
+     */
+    public static int messagesToRead(int budget) {
+        return Math.max(1, budget / MIN_TOKENS_PER_MESSAGE);
+    }
+
+    /**
+     * 从最新的消息开始向前选取，返回总token数不超过预算的最长后缀（时间正序）
+     * 会话开头的滚动摘要（见 {@link RollingSummaryCompactor}）放得下时总是保留
+     *
+     * @param history 会话历史（时间正序）
+     * @param budget token预算
+     * @return 选中的消息
+     */
+    public List<Message> select(List<Message> history, int budget) {
+        if (history.isEmpty() || budget <= 0) {
+            return Collections.emptyList();
+        }
+        int used = 0;
+        int first = 0;
+        if (RollingSummaryCompactor.isSummary(history.get(0))) {
+            int summaryTokens = tokenCount(history.get(0));
+            if (summaryTokens <= budget) {
+                used = summaryTokens;
+                first = 1;
+            }
+        }
+        int from = history.size();
+        while (from > first) {
+            int count = tokenCount(history.get(from - 1));
+            if (used + count > budget) {
+                break;
+            }
+            used += count;
+            from--;
+        }
+        List<Message> selected = new ArrayList<>(history.size() - from + first);
+        if (first == 1) {
+            selected.add(history.get(0));
+        }
+        selected.addAll(history.subList(from, history.size()));
+        log.debug("Selected {}/{} messages, {} tokens within budget {}", selected.size(), history.size(), used, budget);
+        return selected;
+    }
+
+    private int estimate(Message message) {
+        String text = message.getText();
+        return text == null || text.isEmpty() ? 0 : estimator.estimate(text);
+    }
+}
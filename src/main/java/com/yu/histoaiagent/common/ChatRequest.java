@@ -0,0 +1,24 @@
+package com.yu.histoaiagent.common;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * 对话请求
+ */
+@Data
+public class ChatRequest implements Serializable {
+
+    /**
+     * 用户消息
+     */
+    private String message;
+
+    /**
+     * 会话ID
+     */
+    private String conversationId;
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,131 @@
+package com.yu.histoaiagent.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yu.histoaiagent.common.ResultUtils;
+import com.yu.histoaiagent.exception.ErrorCode;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * 网关身份校验：/ai/** 下的请求必须带有网关签名的用户身份
+ *
+ * 网关认证用户后写入三个请求头：
+ * - X-User-Id：用户ID
+ * - X-Auth-Timestamp：签名时间（毫秒时间戳）
+ * - X-Auth-Signature：HMAC-SHA256(secret, userId + "\n" + timestamp) 的十六进制
+ *
+ * 校验通过后把用户ID放入请求属性 {@link #USER_ID_ATTRIBUTE}，接口只从该属性读取身份；
+ * 客户端自行设置的请求头没有合法签名，一律返回401。
+ * 时间戳与本机时间相差超过 max-skew-ms 的签名视为过期，限制被截获的请求头的重放时间。
+ * 未配置 user.gateway-auth.secret 时拒绝全部请求。
+ */
+@Component
+@Slf4j
+public class GatewayAuthenticationFilter extends OncePerRequestFilter {
+
+    public static final String USER_ID_HEADER = "X-User-Id";
+    public static final String TIMESTAMP_HEADER = "X-Auth-Timestamp";
+    public static final String SIGNATURE_HEADER = "X-Auth-Signature";
+
+    /**
+     * 校验通过的用户ID
+     */
+    public static final String USER_ID_ATTRIBUTE = GatewayAuthenticationFilter.class.getName() + ".userId";
+
+    private static final String PROTECTED_PREFIX = "/ai/";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long maxSkewMillis;
+    private final ObjectMapper objectMapper;
+
+    public GatewayAuthenticationFilter(@Value("${user.gateway-auth.secret:}") String secret,
+                                       @Value("${user.gateway-auth.max-skew-ms:60000}") long maxSkewMillis,
+                                       ObjectMapper objectMapper) {
+        this.key = secret.isBlank() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.maxSkewMillis = maxSkewMillis;
+        this.objectMapper = objectMapper;
+        if (key == null) {
+            log.warn("user.gateway-auth.secret is not configured, all requests to {}** will be rejected", PROTECTED_PREFIX);
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith(PROTECTED_PREFIX) || "OPTIONS".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String userId = authenticate(request.getHeader(USER_ID_HEADER), request.getHeader(TIMESTAMP_HEADER),
+                request.getHeader(SIGNATURE_HEADER), System.currentTimeMillis());
+        if (userId == null) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            objectMapper.writeValue(response.getWriter(), ResultUtils.error(ErrorCode.NOT_LOGIN_ERROR));
+            return;
+        }
+        request.setAttribute(USER_ID_ATTRIBUTE, userId);
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * 校验网关签名
+     *
+     * @return 签名合法时返回用户ID，否则返回null
+     */
+    String authenticate(String userId, String timestamp, String signature, long now) {
+        if (key == null || userId == null || userId.isBlank() || timestamp == null || signature == null) {
+            return null;
+        }
+        long signedAt;
+        try {
+            signedAt = Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (Math.abs(now - signedAt) > maxSkewMillis) {
+            log.debug("Rejected expired gateway signature for user: {}", userId);
+            return null;
+        }
+        byte[] expected = sign(userId, timestamp).getBytes(StandardCharsets.US_ASCII);
+        // 定长比较，避免按耗时猜出签名
+        if (!MessageDigest.isEqual(expected, signature.toLowerCase().getBytes(StandardCharsets.US_ASCII))) {
+            log.warn("Rejected invalid gateway signature for user: {}", userId);
+            return null;
+        }
+        return userId;
+    }
+
+    /**
+     * 计算签名（十六进制小写），网关使用相同的算法
+     */
+    String sign(String userId, String timestamp) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            byte[] digest = mac.doFinal((userId + "\n" + timestamp).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.yu.histoaiagent.controller;
+
+import com.yu.histoaiagent.app.TherapyAppWithAuth;
+import com.yu.histoaiagent.common.BaseResponse;
+import com.yu.histoaiagent.common.ChatRequest;
+import com.yu.histoaiagent.common.ResultUtils;
+import com.yu.histoaiagent.config.GatewayAuthenticationFilter;
+import com.yu.histoaiagent.exception.AuthorizationException;
+import com.yu.histoaiagent.exception.ErrorCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestAttribute;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+
+/**
+ * AI对话接口
+ */
+@RestController
+@RequestMapping("/ai")
+@Slf4j
+public class AiController {
+
+    private final TherapyAppWithAuth therapyAppWithAuth;
+
+    public AiController(TherapyAppWithAuth therapyAppWithAuth) {
+        this.therapyAppWithAuth = therapyAppWithAuth;
+    }
+
+    /**
+     * 心理咨询流式对话（SSE）- 带权限校验
+     *
+     * 用户身份取自 {@link GatewayAuthenticationFilter} 校验过网关签名的用户ID，不接受客户端传入的userId；
+     * 消息放在POST请求体中，不出现在URL和访问日志里。
+     * 浏览器的 EventSource 只支持GET，客户端用 fetch 读取响应流。
+     *
+     * 事件：
+     * - message：一段AI回复
+     * - done：回复结束
+     * - error：权限校验失败或模型出错，数据为 BaseResponse（data 为权限错误码）；触发限流时带 retry 字段，
+     *   表示建议的重试间隔（毫秒）
+     *
+     * 客户端收到 done 或 error 后必须关闭连接，不能依赖自动重连：重连会重新发送这条消息并再次消耗配额。
+     * 限流时由用户或客户端在 retry 间隔后主动重新发起请求。
+     *
+     * 背压：Spring MVC 写完一个事件才向上游请求下一段，客户端读得慢时模型流随之放慢，服务端不堆积；
+     * 客户端断开时取消上游，由 AuthorizationAdvisor 按取消结算
+     */
+    @PostMapping(value = "/therapy/chat/sse", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<?>> doChatStream(@RequestBody ChatRequest request,
+                                                 @RequestAttribute(GatewayAuthenticationFilter.USER_ID_ATTRIBUTE) String userId) {
+        String conversationId = request.getConversationId();
+        Flux<ServerSentEvent<?>> chunks = therapyAppWithAuth.doChatStream(request.getMessage(), userId, conversationId)
+                .<ServerSentEvent<?>>map(chunk -> ServerSentEvent.builder(chunk).event("message").build());
+        return chunks
+                .concatWith(Flux.just(ServerSentEvent.builder().event("done").build()))
+                .onErrorResume(AuthorizationException.class, e -> Flux.just(authorizationError(e)))
+                .onErrorResume(e -> {
+                    log.error("Chat stream failed - userId: {}, conversationId: {}", userId, conversationId, e);
+                    ServerSentEvent<?> error = ServerSentEvent.builder(ResultUtils.error(ErrorCode.SYSTEM_ERROR, "系统错误"))
+                            .event("error")
+                            .build();
+                    return Flux.just(error);
+                });
+    }
+
+    private static ServerSentEvent<?> authorizationError(AuthorizationException e) {
+        log.warn("Chat stream rejected - userId: {}, code: {}", e.getUserId(), e.getErrorCode());
+        ServerSentEvent.Builder<Object> builder = ServerSentEvent.builder()
+                .event("error")
+                .data(new BaseResponse<>(ErrorCode.NO_AUTH_ERROR.getCode(), e.getErrorCode(), e.getMessage()));
+        if (e.getRetryAfterSeconds() > 0) {
+            builder.retry(Duration.ofSeconds(e.getRetryAfterSeconds()));
+        }
+        return builder.build();
+    }
+}
@@ -7,33 +7,42 @@ public enum UserRole {
     /**
      * 免费用户 - 基础权限
      */
-    FREE("FREE", "免费用户", 10, 50),
+    FREE("FREE", "免费用户", 10, 50, 2_000, 3, 6, 0),
     
     /**
      * 试用用户 - 限时体验
      */
-    TRIAL("TRIAL", "试用用户", 50, 200),
+    TRIAL("TRIAL", "试用用户", 50, 200, 4_000, 5, 12, 0),
     
     /**
      * VIP用户 - 高级权限
      */
-    VIP("VIP", "VIP用户", 500, 2000),
+    VIP("VIP", "VIP用户", 500, 2000, 16_000, 20, 120, 20),
     
     /**
      * 企业用户 - 无限制
      */
-    ENTERPRISE("ENTERPRISE", "企业用户", Integer.MAX_VALUE, Integer.MAX_VALUE);
+    ENTERPRISE("ENTERPRISE", "企业用户", Integer.MAX_VALUE, Integer.MAX_VALUE, 32_000, 50, 600, 50);
 
     private final String code;
     private final String desc;
     private final int dailyQuota;      // 每日对话次数限制
     private final int messageLimit;     // 单次对话消息数限制
+    private final int contextTokenBudget; // 每次请求携带的历史消息token上限
+    private final int burstCapacity;    // 限流令牌桶容量（允许的突发请求数）
+    private final int refillPerMinute;  // 限流令牌每分钟补充数（持续速率）
+    private final int leaseSize;        // 节点本地租用配额的最大块大小，0表示每次请求都访问Redis
 
-    UserRole(String code, String desc, int dailyQuota, int messageLimit) {
+    UserRole(String code, String desc, int dailyQuota, int messageLimit, int contextTokenBudget,
+             int burstCapacity, int refillPerMinute, int leaseSize) {
         this.code = code;
         this.desc = desc;
         this.dailyQuota = dailyQuota;
         this.messageLimit = messageLimit;
+        this.contextTokenBudget = contextTokenBudget;
+        this.burstCapacity = burstCapacity;
+        this.refillPerMinute = refillPerMinute;
+        this.leaseSize = leaseSize;
     }
 
     public String getCode() {
@@ -52,6 +61,22 @@ public enum UserRole {
         return messageLimit;
     }
 
+    public int getContextTokenBudget() {
+        return contextTokenBudget;
+    }
+
+    public int getBurstCapacity() {
+        return burstCapacity;
+    }
+
+    public int getRefillPerMinute() {
+        return refillPerMinute;
+    }
+
+    public int getLeaseSize() {
+        return leaseSize;
+    }
+
     public static UserRole fromCode(String code) {
         for (UserRole role : values()) {
             if (role.code.equals(code)) {
@@ -7,23 +7,35 @@ public class AuthorizationException extends RuntimeException {
     
     private final String errorCode;
     private final String userId;
+
+    /**
+     * 建议客户端等待多久后重试（毫秒），0表示不适用
+     */
+    private final long retryAfterMillis;
     
     public AuthorizationException(String message) {
         super(message);
         this.errorCode = "UNAUTHORIZED";
         this.userId = null;
+        this.retryAfterMillis = 0;
     }
     
     public AuthorizationException(String errorCode, String message) {
         super(message);
         this.errorCode = errorCode;
         this.userId = null;
+        this.retryAfterMillis = 0;
     }
     
     public AuthorizationException(String errorCode, String message, String userId) {
+        this(errorCode, message, userId, 0);
+    }
+
+    public AuthorizationException(String errorCode, String message, String userId, long retryAfterMillis) {
         super(message);
         this.errorCode = errorCode;
         this.userId = userId;
+        this.retryAfterMillis = retryAfterMillis;
     }
     
     public String getErrorCode() {
@@ -33,6 +45,17 @@ public class AuthorizationException extends RuntimeException {
     public String getUserId() {
         return userId;
     }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * 向上取整的重试秒数，用于HTTP Retry-After响应头
+     */
+    public long getRetryAfterSeconds() {
+        return (retryAfterMillis + 999) / 1000;
+    }
     
     // 预定义的异常类型
     public static AuthorizationException userNotFound(String userId) {
@@ -51,6 +74,15 @@ public class AuthorizationException extends RuntimeException {
         );
     }
     
+    public static AuthorizationException rateLimited(String userId, long retryAfterMillis) {
+        return new AuthorizationException(
+            "RATE_LIMITED",
+            String.format("请求过于频繁，请在%d秒后重试", (retryAfterMillis + 999) / 1000),
+            userId,
+            retryAfterMillis
+        );
+    }
+    
     public static AuthorizationException messageLimitExceeded(String userId, int limit) {
         return new AuthorizationException(
             "MESSAGE_LIMIT_EXCEEDED",
@@ -0,0 +1,67 @@
+package com.yu.histoaiagent.mapper;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
+
+/**
+ * AI对话记忆分区维护Mapper
+ * 表名和分区名由 ChatMemoryPartitionManager 内部生成，不接受外部输入，因此使用 ${} 拼接
+ */
+@Mapper
+public interface ChatMemoryPartitionMapper {
+
+    /**
+     * 查询表的分区名（按分区顺序），未分区时返回空列表
+     */
+    @Select("SELECT PARTITION_NAME FROM information_schema.PARTITIONS " +
+            "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = #{table} AND PARTITION_NAME IS NOT NULL " +
+            "ORDER BY PARTITION_ORDINAL_POSITION")
+    List<String> listPartitions(@Param("table") String table);
+
+    /**
+     * 拆分 pmax 分区，预建新的月分区
+     *
+     * @param partitions 形如 PARTITION p202611 VALUES LESS THAN (1793462400), ... 的分区定义
+     */
+    @Update("ALTER TABLE ${table} REORGANIZE PARTITION pmax INTO (${partitions}, PARTITION pmax VALUES LESS THAN MAXVALUE)")
+    void splitMaxPartition(@Param("table") String table, @Param("partitions") String partitions);
+
+    /**
+     * 将热表的一个分区复制到归档表（可重复执行）
+     */
+    @Insert("INSERT IGNORE INTO ai_chat_memory_archive (id, chat_id, type, content, create_time, update_time, is_del) " +
+            "SELECT id, chat_id, type, content, create_time, update_time, is_del " +
+            "FROM ai_chat_memory PARTITION (${partition}) WHERE is_del = 0")
+    int copyToArchive(@Param("partition") String partition);
+
+    /**
+     * 复制后把热表分区中已逻辑删除的行同步到归档表
+     * 复制期间并发清空的会话，其归档表的逻辑删除可能先于复制执行而落空，由这一步补上
+     */
+    @Update("UPDATE ai_chat_memory_archive a " +
+            "JOIN ai_chat_memory PARTITION (${partition}) h ON a.id = h.id AND a.create_time = h.create_time " +
+            "SET a.is_del = 1 WHERE h.is_del = 1 AND a.is_del = 0")
+    int syncDeletedToArchive(@Param("partition") String partition);
+
+    /**
+     * 统计热表分区中未删除的行数
+     */
+    @Select("SELECT COUNT(*) FROM ai_chat_memory PARTITION (${partition}) WHERE is_del = 0")
+    long countLive(@Param("partition") String partition);
+
+    /**
+     * 统计热表分区中未删除、且已存在于归档表的行数
+     */
+    @Select("SELECT COUNT(*) FROM ai_chat_memory PARTITION (${partition}) h " +
+            "JOIN ai_chat_memory_archive a ON a.id = h.id AND a.create_time = h.create_time " +
+            "WHERE h.is_del = 0")
+    long countLiveArchived(@Param("partition") String partition);
+
+    @Update("ALTER TABLE ${table} DROP PARTITION ${partition}")
+    void dropPartition(@Param("table") String table, @Param("partition") String partition);
+}
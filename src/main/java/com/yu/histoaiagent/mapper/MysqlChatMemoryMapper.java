@@ -2,7 +2,14 @@ package com.yu.histoaiagent.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.yu.histoaiagent.entity.MysqlChatMemory;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
 
 /**
  * AI对话记忆Mapper接口
@@ -10,5 +17,70 @@ import org.apache.ibatis.annotations.Mapper;
  */
 @Mapper
 public interface MysqlChatMemoryMapper extends BaseMapper<MysqlChatMemory> {
-    
-}
\ No newline at end of file
+
+    /**
+     * 多行批量插入：一条 INSERT ... VALUES (...), (...) 语句，一次往返
+     * 自增主键按插入顺序回填到每条记录的id中
+     */
+    @Insert("<script>" +
+            "INSERT INTO ai_chat_memory (chat_id, type, content) VALUES " +
+            "<foreach collection='records' item='r' separator=','>" +
+            "(#{r.chatId}, #{r.type}, #{r.content})" +
+            "</foreach>" +
+            "</script>")
+    @Options(useGeneratedKeys = true, keyProperty = "id", keyColumn = "id")
+    int insertBatch(@Param("records") List<MysqlChatMemory> records);
+
+    /**
+     * 查询会话在归档表中的消息（按ID升序）
+     *
+     * @param beforeId 只返回ID小于该值的消息，为null时不限制（用于与热表结果去重）
+     */
+    @Select("<script>" +
+            "SELECT id, chat_id, type, content, create_time, update_time, is_del FROM ai_chat_memory_archive " +
+            "WHERE chat_id = #{chatId} AND is_del = 0" +
+            "<if test='beforeId != null'> AND id &lt; #{beforeId}</if>" +
+            " ORDER BY id ASC" +
+            "</script>")
+    List<MysqlChatMemory> selectArchived(@Param("chatId") String chatId, @Param("beforeId") Long beforeId);
+
+    /**
+     * 查询会话在归档表中最新的若干条消息（按ID降序）
+     */
+    @Select("<script>" +
+            "SELECT id, chat_id, type, content, create_time, update_time, is_del FROM ai_chat_memory_archive " +
+            "WHERE chat_id = #{chatId} AND is_del = 0" +
+            "<if test='beforeId != null'> AND id &lt; #{beforeId}</if>" +
+            " ORDER BY id DESC LIMIT #{limit}" +
+            "</script>")
+    List<MysqlChatMemory> selectArchivedTail(@Param("chatId") String chatId, @Param("beforeId") Long beforeId,
+                                             @Param("limit") int limit);
+
+    /**
+     * 按会话ID升序分页枚举热表中的会话（keyset分页，走 idx_chat_del_id 索引）
+     *
+     * @param after 上一页最后一个会话ID，为null时从头开始
+     */
+    @Select("<script>" +
+            "SELECT DISTINCT chat_id FROM ai_chat_memory WHERE is_del = 0" +
+            "<if test='after != null'> AND chat_id &gt; #{after}</if>" +
+            " ORDER BY chat_id ASC LIMIT #{limit}" +
+            "</script>")
+    List<String> selectChatIdsAfter(@Param("after") String after, @Param("limit") int limit);
+
+    /**
+     * 按会话ID升序分页枚举归档表中的会话
+     */
+    @Select("<script>" +
+            "SELECT DISTINCT chat_id FROM ai_chat_memory_archive WHERE is_del = 0" +
+            "<if test='after != null'> AND chat_id &gt; #{after}</if>" +
+            " ORDER BY chat_id ASC LIMIT #{limit}" +
+            "</script>")
+    List<String> selectArchivedChatIdsAfter(@Param("after") String after, @Param("limit") int limit);
+
+    /**
+     * 逻辑删除会话在归档表中的消息
+     */
+    @Update("UPDATE ai_chat_memory_archive SET is_del = 1 WHERE chat_id = #{chatId} AND is_del = 0")
+    int softDeleteArchived(@Param("chatId") String chatId);
+}
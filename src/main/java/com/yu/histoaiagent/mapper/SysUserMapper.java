@@ -3,10 +3,12 @@ package com.yu.histoaiagent.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.yu.histoaiagent.entity.SysUser;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -21,6 +23,15 @@ public interface SysUserMapper extends BaseMapper<SysUser> {
     @Select("SELECT * FROM sys_user WHERE user_id = #{userId} AND is_del = 0")
     SysUser findByUserId(String userId);
     
+    /**
+     * 批量查询用户（走 user_id 唯一索引）
+     */
+    @Select("<script>" +
+            "SELECT * FROM sys_user WHERE is_del = 0 AND user_id IN " +
+            "<foreach collection='userIds' item='id' open='(' separator=',' close=')'>#{id}</foreach>" +
+            "</script>")
+    List<SysUser> findByUserIds(@Param("userIds") Collection<String> userIds);
+
     /**
      * 根据角色查询用户列表
      */
@@ -65,4 +76,18 @@ public interface SysUserMapper extends BaseMapper<SysUser> {
      */
     @Update("UPDATE sys_user SET vip_expire_time = #{expireTime} WHERE user_id = #{userId}")
     int updateVipExpireTime(String userId, LocalDateTime expireTime);
-}
\ No newline at end of file
+
+    /**
+     * 按主键升序分页读取用户ID（keyset分页），用于构建用户ID过滤器
+     *
+     * @param afterId 上一页最后一个主键，从头开始时传0
+     */
+    @Select("SELECT id, user_id FROM sys_user WHERE id > #{afterId} AND is_del = 0 ORDER BY id ASC LIMIT #{limit}")
+    List<SysUser> selectUserIdsAfter(@Param("afterId") long afterId, @Param("limit") int limit);
+
+    /**
+     * 读取指定时间之后创建的用户ID（走 idx_created_at 索引），用于增量刷新用户ID过滤器
+     */
+    @Select("SELECT id, user_id FROM sys_user WHERE created_at >= #{since} AND is_del = 0")
+    List<SysUser> selectUserIdsCreatedSince(@Param("since") LocalDateTime since);
+}
@@ -5,6 +5,8 @@ import com.yu.histoaiagent.entity.UserQuotaUsage;
 import org.apache.ibatis.annotations.*;
 
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * 用户配额使用记录Mapper
@@ -36,6 +38,32 @@ public interface UserQuotaUsageMapper extends BaseMapper<UserQuotaUsage> {
             "usage_count = usage_count + #{usageCount}")
     int insertOrUpdateUsage(UserQuotaUsage usage);
     
+    /**
+     * 批量写入当日使用次数（绝对值），已有记录取较大值
+     * 写入是幂等的，与写入顺序无关：多个节点、重试、对账任务同时写同一行也不会多计
+     * 调用方按 (user_id, usage_date) 排序，多个节点并发写入时按相同顺序加行锁，避免死锁
+     */
+    @Insert("<script>" +
+            "INSERT INTO user_quota_usage (user_id, usage_date, usage_count, quota_limit) VALUES " +
+            "<foreach collection='rows' item='r' separator=','>" +
+            "(#{r.userId}, #{r.usageDate}, #{r.usageCount}, #{r.quotaLimit})" +
+            "</foreach>" +
+            " ON DUPLICATE KEY UPDATE " +
+            "usage_count = GREATEST(usage_count, VALUES(usage_count)), " +
+            "quota_limit = VALUES(quota_limit)" +
+            "</script>")
+    int upsertMaxUsageBatch(@Param("rows") List<UserQuotaUsage> rows);
+
+    /**
+     * 查询一批用户在指定日期的使用记录（走 uk_user_date 索引）
+     */
+    @Select("<script>" +
+            "SELECT user_id, usage_date, usage_count, quota_limit FROM user_quota_usage " +
+            "WHERE usage_date = #{date} AND user_id IN " +
+            "<foreach collection='userIds' item='id' open='(' separator=',' close=')'>#{id}</foreach>" +
+            "</script>")
+    List<UserQuotaUsage> selectUsageOfUsers(@Param("date") LocalDate date, @Param("userIds") Collection<String> userIds);
+
     /**
      * 删除指定日期之前的记录
      */
@@ -0,0 +1,298 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.enums.UserRole;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * 配额租约：节点从Redis的集中计数中一次租用一块配额（含同样数量的限流令牌），在本地无锁消耗
+ *
+ * 只对 {@link UserRole#getLeaseSize()} 大于0的角色（VIP、企业用户）生效，这些用户的大部分请求不再访问Redis。
+ *
+ * - 本地消耗：租约内用 AtomicInteger 计数，用完或过期后在用户级的锁内续租
+ * - 续租与归还在同一个脚本中完成（见 lua/quota_lease.lua）：上一个租约未用完的部分先还给计数和令牌桶，再申请新的
+ * - 租约大小自适应：从1开始，租约在有效期内用完则下次加倍（不超过角色上限），过期时有剩余则减半，
+ *   偶尔调用的用户不会占着一大块配额
+ * - 过期未用完的租约由后台线程归还，应用关闭时归还全部租约
+ *
+ * 精确性：Redis计数 = 已消耗次数 + 各节点未用完的租约，因此任何时候都不会超出每日上限；
+ * 每个节点同一用户最多持有一个租约，N个节点时被其他节点租约占用而误拒的次数不超过 (N-1) × 租约大小，
+ * 且在租约有效期内恢复。
+ * 剩余配额不足一个租约时逐次申请，接近上限时仍然精确。进程崩溃时未归还的租约计为已使用。
+ */
+@Component
+@ConditionalOnProperty(prefix = "user.quota-lease", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class QuotaLeaseManager {
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LEASE_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/quota_lease.lua"), List.class);
+
+    private static final long USAGE_KEY_MISSING = -1;
+
+    /**
+     * 关闭租约时加到消耗计数上，之后的本地消耗一律失败并进入续租
+     */
+    private static final int CLOSED = 1 << 30;
+
+    /**
+     * 一个租约：覆盖当日计数中 (base, base + size] 这段次数
+     */
+    private record Lease(LocalDate date, UserRole role, long base, int size, long expiresAtNanos,
+                         AtomicInteger consumed) {
+
+        boolean expired(long now) {
+            return expiresAtNanos - now <= 0;
+        }
+
+        /**
+         * 关闭租约，返回未用完的次数；已关闭时返回0
+         */
+        int close() {
+            int before = consumed.getAndAdd(CLOSED);
+            return before >= CLOSED ? 0 : size - Math.min(size, before);
+        }
+    }
+
+    /**
+     * 每个用户一个，作为续租的锁
+     */
+    private static final class Holder {
+        volatile Lease lease;
+        int nextSize = 1;
+    }
+
+    private final ConcurrentHashMap<String, Holder> holders = new ConcurrentHashMap<>();
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final long ttlNanos;
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder localGrants = new LongAdder();
+    private final LongAdder leaseRequests = new LongAdder();
+
+    public QuotaLeaseManager(RedisTemplate<String, Object> redisTemplate,
+                             @Value("${user.quota-lease.ttl-ms:5000}") long ttlMillis) {
+        this.redisTemplate = redisTemplate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "quota-lease-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(100, ttlMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::sweepQuietly, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        log.info("Quota leasing enabled, lease ttl: {}ms", ttlMillis);
+    }
+
+    /**
+     * 从租约中消耗一次配额，租约用完或过期时续租
+     *
+     * @param seed 当日计数不存在时读取数据库中的当日次数
+     */
+    public UserPermissionService.QuotaDecision tryConsume(String userId, UserRole role, IntSupplier seed) {
+        LocalDate today = LocalDate.now();
+        while (true) {
+            Holder holder = holders.computeIfAbsent(userId, k -> new Holder());
+
+            // 快速路径：无锁消耗本地租约
+            UserPermissionService.QuotaDecision local = consumeLocal(holder.lease, today, role);
+            if (local != null) {
+                return local;
+            }
+
+            synchronized (holder) {
+                if (holders.get(userId) != holder) {
+                    // 租约已被归还或丢弃，换新的holder重试
+                    continue;
+                }
+                // 其他线程可能已经续租
+                local = consumeLocal(holder.lease, today, role);
+                if (local != null) {
+                    return local;
+                }
+                return renew(userId, role, today, holder, seed);
+            }
+        }
+    }
+
+    /**
+     * 在holder锁内归还上一个租约并申请新租约，本次调用占用新租约的第一个次数
+     */
+    private UserPermissionService.QuotaDecision renew(String userId, UserRole role, LocalDate today,
+                                                      Holder holder, IntSupplier seed) {
+        Lease previous = holder.lease;
+        int returned = 0;
+        if (previous != null) {
+            returned = previous.close();
+            boolean usedUp = returned == 0 && !previous.expired(System.nanoTime());
+            holder.nextSize = usedUp ? Math.min(role.getLeaseSize(), holder.nextSize * 2)
+                    : Math.max(1, holder.nextSize / 2);
+            if (!today.equals(previous.date()) || previous.role() != role) {
+                // 跨天后前一天的计数已作废；角色变化后上限不同，旧租约按已使用处理
+                returned = 0;
+            }
+        }
+        holder.lease = null;
+
+        List<?> result = execute(userId, role, today, returned, holder.nextSize, USAGE_KEY_MISSING);
+        if (result != null && ((Number) result.get(0)).longValue() == USAGE_KEY_MISSING) {
+            result = execute(userId, role, today, 0, holder.nextSize, seed.getAsInt());
+        }
+        if (result == null || result.size() < 3) {
+            throw new IllegalStateException("Unexpected quota lease script result for user " + userId + ": " + result);
+        }
+        leaseRequests.increment();
+        long remaining = ((Number) result.get(0)).longValue();
+        long retryAfterMillis = ((Number) result.get(1)).longValue();
+        int size = ((Number) result.get(2)).intValue();
+        if (remaining < 0) {
+            return new UserPermissionService.QuotaDecision(remaining, retryAfterMillis);
+        }
+
+        long base = role.getDailyQuota() - remaining - size;
+        holder.lease = new Lease(today, role, base, size, System.nanoTime() + ttlNanos, new AtomicInteger(1));
+        log.debug("Leased {} calls for user {}, remaining today: {}", size, userId, remaining);
+        return new UserPermissionService.QuotaDecision(role.getDailyQuota() - base - 1, 0);
+    }
+
+    /**
+     * 丢弃用户在本节点的租约，不归还（用于重置配额，计数已被清零）
+     */
+    public void discard(String userId) {
+        Holder holder = holders.remove(userId);
+        if (holder != null) {
+            Lease lease = holder.lease;
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * 本地租约满足的请求数
+     */
+    public long localGrants() {
+        return localGrants.sum();
+    }
+
+    /**
+     * 访问Redis续租的次数
+     */
+    public long leaseRequests() {
+        return leaseRequests.sum();
+    }
+
+    /**
+     * 归还本节点的全部租约
+     *
+     * @return 归还的次数
+     */
+    public int releaseAll() {
+        int released = 0;
+        for (String userId : holders.keySet()) {
+            try {
+                released += release(userId, true);
+            } catch (Exception e) {
+                log.warn("Failed to return quota lease of user: {}", userId, e);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 停止清理线程并归还全部租约
+     */
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Returned {} unused leased calls on shutdown", releaseAll());
+    }
+
+    private UserPermissionService.QuotaDecision consumeLocal(Lease lease, LocalDate today, UserRole role) {
+        if (lease == null || lease.role() != role || !today.equals(lease.date()) || lease.expired(System.nanoTime())) {
+            return null;
+        }
+        int k = lease.consumed().incrementAndGet();
+        if (k > lease.size()) {
+            return null;
+        }
+        localGrants.increment();
+        return new UserPermissionService.QuotaDecision(role.getDailyQuota() - lease.base() - k, 0);
+    }
+
+    private void sweepQuietly() {
+        try {
+            long now = System.nanoTime();
+            holders.forEach((userId, holder) -> {
+                Lease lease = holder.lease;
+                if (lease != null && lease.expired(now)) {
+                    release(userId, false);
+                }
+            });
+        } catch (Exception e) {
+            // 吞掉异常，避免清理线程终止；未归还的租约在下次续租时归还
+            log.error("Quota lease sweep failed", e);
+        }
+    }
+
+    /**
+     * 关闭并归还用户的租约
+     *
+     * @param force 为false时只处理已过期的租约
+     * @return 归还的次数
+     */
+    private int release(String userId, boolean force) {
+        Holder holder = holders.get(userId);
+        if (holder == null) {
+            return 0;
+        }
+        synchronized (holder) {
+            Lease lease = holder.lease;
+            if (lease == null || (!force && !lease.expired(System.nanoTime()))) {
+                return 0;
+            }
+            int returned = lease.close();
+            holder.lease = null;
+            holder.nextSize = Math.max(1, holder.nextSize / 2);
+            if (returned == 0 || !LocalDate.now().equals(lease.date())) {
+                holders.remove(userId, holder);
+                return 0;
+            }
+            // 只归还，不申请
+            execute(userId, lease.role(), lease.date(), returned, 0, USAGE_KEY_MISSING);
+            holders.remove(userId, holder);
+            return returned;
+        }
+    }
+
+    private List<?> execute(String userId, UserRole role, LocalDate date, int returned, int requested, long seed) {
+        List<String> keys = List.of(UserPermissionService.getUsageKey(userId, date),
+                UserPermissionService.RATE_LIMIT_KEY_PREFIX + userId);
+        long ttlSeconds = Math.max(1, UserPermissionService.getSecondsUntilMidnight());
+        return redisTemplate.execute(LEASE_SCRIPT, keys, role.getDailyQuota(), ttlSeconds, seed,
+                role.getBurstCapacity(), role.getRefillPerMinute(), returned, requested);
+    }
+}
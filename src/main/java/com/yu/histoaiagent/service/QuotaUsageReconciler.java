@@ -0,0 +1,183 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.entity.SysUser;
+import com.yu.histoaiagent.entity.UserQuotaUsage;
+import com.yu.histoaiagent.mapper.SysUserMapper;
+import com.yu.histoaiagent.mapper.UserQuotaUsageMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 配额使用次数对账：以Redis中的当日计数为准修复 user_quota_usage
+ *
+ * 当日计数由Redis原子维护，MySQL只是落库副本；进程崩溃时 {@link QuotaUsageWriteBehind} 中最近一个周期的数据会丢失，
+ * 同步写库失败时也只记录日志，两者都会让MySQL小于Redis。
+ * 对账任务定时SCAN当日的计数key，与数据库批量比较，只把落后的行写成Redis中的值（取较大值，不会回退）。
+ *
+ * 开启 {@link QuotaLeaseManager} 时，租约角色的Redis计数包含各节点租出但尚未用完的次数，大于实际使用次数，
+ * 照抄会让MySQL偏高且不会回退（Redis数据丢失后还会以此为初始值），因此跳过这些用户，他们的次数只由请求路径落库。
+ *
+ * 多个节点通过Redis中的短期锁保证同一时刻只有一个节点执行；写入本身是幂等的，锁只用于减少重复扫描。
+ */
+@Component
+@ConditionalOnProperty(prefix = "user.quota-usage.reconcile", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class QuotaUsageReconciler {
+
+    private static final String LOCK_KEY = "user:usage:reconcile:lock";
+    private static final int SCAN_BATCH = 500;
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final UserQuotaUsageMapper quotaUsageMapper;
+    private final SysUserMapper sysUserMapper;
+    private final boolean leaseEnabled;
+
+    private final Duration lockTtl;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public QuotaUsageReconciler(RedisTemplate<String, Object> redisTemplate,
+                                UserQuotaUsageMapper quotaUsageMapper,
+                                SysUserMapper sysUserMapper,
+                                ObjectProvider<QuotaLeaseManager> quotaLeaseManager,
+                                @Value("${user.quota-usage.reconcile.interval-ms:300000}") long intervalMillis) {
+        this.redisTemplate = redisTemplate;
+        this.quotaUsageMapper = quotaUsageMapper;
+        this.sysUserMapper = sysUserMapper;
+        this.leaseEnabled = quotaLeaseManager.getIfAvailable() != null;
+        this.lockTtl = Duration.ofMillis(Math.max(1000, intervalMillis / 2));
+    }
+
+    @Scheduled(fixedDelayString = "${user.quota-usage.reconcile.interval-ms:300000}",
+            initialDelayString = "${user.quota-usage.reconcile.interval-ms:300000}")
+    public void scheduledReconcile() {
+        try {
+            if (!Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, nodeId, lockTtl))) {
+                log.debug("Quota usage reconcile is running on another node");
+                return;
+            }
+            reconcile(LocalDate.now());
+        } catch (Exception e) {
+            // 吞掉异常，避免影响下一次调度
+            log.error("Quota usage reconcile failed", e);
+        }
+    }
+
+    /**
+     * 对账指定日期的使用次数
+     *
+     * @return 修复的行数
+     */
+    public int reconcile(LocalDate date) {
+        long start = System.currentTimeMillis();
+        String prefix = UserPermissionService.USAGE_KEY_PREFIX + date + ":";
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(SCAN_BATCH).build();
+
+        int scanned = 0;
+        int repaired = 0;
+        List<String> keys = new ArrayList<>(SCAN_BATCH);
+        try (Cursor<String> cursor = redisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                keys.add(cursor.next());
+                if (keys.size() >= SCAN_BATCH) {
+                    scanned += keys.size();
+                    repaired += reconcileBatch(date, prefix, keys);
+                    keys.clear();
+                }
+            }
+        }
+        if (!keys.isEmpty()) {
+            scanned += keys.size();
+            repaired += reconcileBatch(date, prefix, keys);
+        }
+        log.info("Quota usage reconcile for {} done: {} users scanned, {} rows repaired in {}ms",
+                date, scanned, repaired, System.currentTimeMillis() - start);
+        return repaired;
+    }
+
+    private int reconcileBatch(LocalDate date, String prefix, List<String> keys) {
+        List<Object> values = redisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return 0;
+        }
+        Map<String, Integer> redisCounts = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (values.get(i) instanceof Number count) {
+                redisCounts.put(keys.get(i).substring(prefix.length()), count.intValue());
+            }
+        }
+        if (redisCounts.isEmpty()) {
+            return 0;
+        }
+
+        // 一次查询整批用户的角色，用于跳过租约用户和补齐配额上限
+        Map<String, SysUser> users = new HashMap<>();
+        for (SysUser user : sysUserMapper.findByUserIds(redisCounts.keySet())) {
+            users.put(user.getUserId(), user);
+        }
+        redisCounts.keySet().removeIf(userId -> isLeased(users.get(userId)));
+        if (redisCounts.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, UserQuotaUsage> persisted = new HashMap<>();
+        for (UserQuotaUsage usage : quotaUsageMapper.selectUsageOfUsers(date, redisCounts.keySet())) {
+            persisted.put(usage.getUserId(), usage);
+        }
+
+        List<UserQuotaUsage> drifted = new ArrayList<>();
+        redisCounts.forEach((userId, count) -> {
+            UserQuotaUsage row = persisted.get(userId);
+            if (row != null && row.getUsageCount() >= count) {
+                return;
+            }
+            Integer quotaLimit = row != null ? row.getQuotaLimit() : dailyQuotaOf(users.get(userId));
+            if (quotaLimit == null) {
+                return;
+            }
+            log.debug("Quota usage drift for user {} on {}: db {}, redis {}",
+                    userId, date, row != null ? row.getUsageCount() : 0, count);
+            drifted.add(UserQuotaUsage.builder()
+                    .userId(userId)
+                    .usageDate(date)
+                    .usageCount(count)
+                    .quotaLimit(quotaLimit)
+                    .build());
+        });
+        if (drifted.isEmpty()) {
+            return 0;
+        }
+        drifted.sort(Comparator.comparing(UserQuotaUsage::getUserId));
+        quotaUsageMapper.upsertMaxUsageBatch(drifted);
+        return drifted.size();
+    }
+
+    /**
+     * 用户的Redis计数是否可能包含未用完的租约
+     */
+    private boolean isLeased(SysUser user) {
+        return leaseEnabled && user != null && user.getRoleEnum().getLeaseSize() > 0;
+    }
+
+    /**
+     * 数据库中没有当日记录时按用户角色补齐配额上限，用户不存在时返回null
+     */
+    private static Integer dailyQuotaOf(SysUser user) {
+        return user != null ? user.getRoleEnum().getDailyQuota() : null;
+    }
+}
@@ -0,0 +1,168 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.entity.UserQuotaUsage;
+import com.yu.histoaiagent.mapper.UserQuotaUsageMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 配额使用次数的异步批量落库（write-behind）
+ *
+ * 每次对话只在内存中记录该用户当日的最新使用次数（绝对值，来自Redis计数），
+ * 后台线程每隔几秒把所有变化的用户合并成一条多行 upsert 写入 user_quota_usage。
+ * 同一用户在一个周期内的多次对话只写一行，热点用户不再每次对话都争抢同一行的行锁。
+ *
+ * 一致性：
+ * - 写入的是绝对值并取较大值（见 {@link UserQuotaUsageMapper#upsertMaxUsageBatch}），重复写入、乱序写入都不会多计
+ * - 写入成功后才从 pending 中移除（且仅当期间没有更新的值），写入失败下一周期重试，读取时与数据库结果取较大值
+ * - 重置配额与刷盘互斥，重置后不会再写回旧值
+ * - 进程崩溃会丢失最近一个周期的数据，由 {@link QuotaUsageReconciler} 按Redis计数修复
+ *
+ * 默认开启，user.quota-usage.write-behind.enabled=false 时每次对话同步写库
+ */
+@Component
+@ConditionalOnProperty(prefix = "user.quota-usage.write-behind", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class QuotaUsageWriteBehind {
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+
+    private record Key(String userId, LocalDate date) {
+    }
+
+    private final UserQuotaUsageMapper quotaUsageMapper;
+
+    /**
+     * 尚未落库的使用次数，按 用户+日期 只保留最新（最大）值
+     */
+    private final ConcurrentHashMap<Key, UserQuotaUsage> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 刷盘与重置配额互斥
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final int maxBatchRows;
+    private final ScheduledExecutorService flusher;
+
+    public QuotaUsageWriteBehind(
+            UserQuotaUsageMapper quotaUsageMapper,
+            @Value("${user.quota-usage.write-behind.flush-interval-ms:2000}") long flushIntervalMillis,
+            @Value("${user.quota-usage.write-behind.max-batch-rows:500}") int maxBatchRows) {
+        this.quotaUsageMapper = quotaUsageMapper;
+        this.maxBatchRows = maxBatchRows;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "quota-usage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Quota usage write-behind enabled, flush interval: {}ms", flushIntervalMillis);
+    }
+
+    /**
+     * 记录用户当日的最新使用次数
+     *
+     * @param usageCount 当日累计使用次数（绝对值）
+     */
+    public void record(String userId, LocalDate date, int usageCount, int quotaLimit) {
+        UserQuotaUsage usage = UserQuotaUsage.builder()
+                .userId(userId)
+                .usageDate(date)
+                .usageCount(usageCount)
+                .quotaLimit(quotaLimit)
+                .build();
+        pending.merge(new Key(userId, date), usage,
+                (current, latest) -> latest.getUsageCount() >= current.getUsageCount() ? latest : current);
+    }
+
+    /**
+     * 尚未落库的使用次数，没有时返回0
+     */
+    public int pendingUsage(String userId, LocalDate date) {
+        UserQuotaUsage usage = pending.get(new Key(userId, date));
+        return usage != null ? usage.getUsageCount() : 0;
+    }
+
+    /**
+     * 在刷盘互斥下重置：丢弃待写的使用次数，再执行数据库删除
+     */
+    public void discard(String userId, LocalDate date, Runnable deleteFromDb) {
+        flushLock.lock();
+        try {
+            pending.remove(new Key(userId, date));
+            deleteFromDb.run();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 立即把所有待写的使用次数写入数据库
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            // 按唯一键排序，多个节点并发写入时加锁顺序一致
+            List<Map.Entry<Key, UserQuotaUsage>> snapshot = new ArrayList<>(pending.entrySet());
+            snapshot.sort(Comparator.comparing((Map.Entry<Key, UserQuotaUsage> e) -> e.getKey().userId())
+                    .thenComparing(e -> e.getKey().date()));
+            for (int from = 0; from < snapshot.size(); from += maxBatchRows) {
+                List<Map.Entry<Key, UserQuotaUsage>> batch =
+                        snapshot.subList(from, Math.min(from + maxBatchRows, snapshot.size()));
+                quotaUsageMapper.upsertMaxUsageBatch(batch.stream().map(Map.Entry::getValue).toList());
+                // 只移除已写入的值；刷盘期间记录的更新值保留到下一周期
+                batch.forEach(e -> pending.remove(e.getKey(), e.getValue()));
+            }
+            log.debug("Flushed quota usage of {} users", snapshot.size());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 停止定时刷盘并写完剩余数据
+     */
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.error("Quota usage flusher did not stop within {}ms", SHUTDOWN_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush {} pending quota usage rows on shutdown", pending.size(), e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            // 吞掉异常，避免定时任务终止；未写入的数据保留在 pending 中，下一周期重试
+            log.error("Quota usage flush failed, {} users pending", pending.size(), e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.yu.histoaiagent.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分片计数器：把一个高频计数分散到多个Redis key上累加，读取时用一次MGET求和
+ *
+ * key布局：
+ * - {key}          第0个分片，与未分片时的key相同，冷计数只有这一个key，开启分片前写入的值照常计入
+ * - {key}:s{i}     第i个分片（i >= 1），不带hash tag，集群模式下分布在不同节点
+ * - {key}:n        分片数，只增不减
+ *
+ * 过期：与单个key一样从计数第一次写入起计时。第0个分片创建时确定截止时刻（创建时间 + ttl），
+ * 之后创建的分片和 {key}:n 都用 PEXPIREAT 设置为同一个截止时刻，整个计数同时过期，不会在中途变小。
+ * 各节点缓存截止时刻，不知道时由第0个分片的剩余有效期推出。
+ *
+ *
+ * 分片数自动扩容：每个节点统计每个计数最近一秒的写入次数，单分片写入速率超过 shard-ops-per-second 时分片数加倍
+ * （不超过 max-shards），先把新的分片数登记到 {key}:n 再写入新分片。读取方总是连同 {key}:n 一起读取，
+ * 发现分片数比本节点已知的多时补读新增的分片，因此写入方扩容不需要与读取方协调。
+ *
+ * 通过 user.sharded-counter.enabled=true 开启，关闭时计数使用单个key。
+ */
+@Component
+@ConditionalOnProperty(prefix = "user.sharded-counter", name = "enabled", havingValue = "true")
+@Slf4j
+public class ShardedCounter {
+
+    private static final String SHARD_SEPARATOR = ":s";
+    private static final String SHARD_COUNT_SUFFIX = ":n";
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    /**
+     * 登记分片数（只增不减）并刷新过期时间，返回登记后的分片数，见 lua/sharded_counter_register.lua
+     */
+    private static final RedisScript<Long> REGISTER_SHARDS_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/sharded_counter_register.lua"), Long.class);
+
+    /**
+     * 本节点对一个计数的了解：已知分片数和最近一秒的写入次数
+     */
+    private static final class Tracker {
+        final AtomicInteger shards = new AtomicInteger(1);
+        final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        final AtomicLong writes = new AtomicLong();
+        /**
+         * 计数的截止时刻（毫秒时间戳），0表示未知
+         */
+        volatile long deadlineMillis;
+    }
+
+    private final ConcurrentHashMap<String, Tracker> trackers = new ConcurrentHashMap<>();
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final int maxShards;
+    private final long shardOpsPerSecond;
+    private final int maxTrackedKeys;
+
+    public ShardedCounter(RedisTemplate<String, Object> redisTemplate,
+                          @Value("${user.sharded-counter.max-shards:32}") int maxShards,
+                          @Value("${user.sharded-counter.shard-ops-per-second:500}") long shardOpsPerSecond,
+                          @Value("${user.sharded-counter.max-tracked-keys:100000}") int maxTrackedKeys) {
+        this.redisTemplate = redisTemplate;
+        this.maxShards = Math.max(1, maxShards);
+        this.shardOpsPerSecond = shardOpsPerSecond;
+        this.maxTrackedKeys = maxTrackedKeys;
+    }
+
+    /**
+     * 增加计数：随机选择一个分片INCRBY
+     * 分片第一次创建时设置过期时间（每个分片从创建起计时），分片数大于1时同时登记分片数
+     */
+    public void increment(String key, long delta, Duration ttl) {
+        Tracker tracker = tracker(key);
+        int shards = scaleIfHot(key, tracker, ttl);
+        int shard = shards == 1 ? 0 : ThreadLocalRandom.current().nextInt(shards);
+        String shardKey = shardKey(key, shard);
+        Long value = redisTemplate.opsForValue().increment(shardKey, delta);
+        if (value != null && value == delta) {
+            long deadline;
+            if (shard == 0) {
+                // 第0个分片是新的：计数从现在开始计时
+                deadline = System.currentTimeMillis() + ttl.toMillis();
+                tracker.deadlineMillis = deadline;
+            } else {
+                deadline = deadlineOf(key, tracker, ttl);
+            }
+            redisTemplate.expireAt(shardKey, Instant.ofEpochMilli(deadline));
+            if (shards > 1) {
+                register(key, shards, tracker, ttl);
+            }
+        }
+    }
+
+    /**
+     * 读取计数：一次MGET读取已知分片和分片数，分片数比已知的多时补读一次
+     */
+    public long get(String key) {
+        List<String> keys = keysToRead(key);
+        List<Object> values = redisTemplate.opsForValue().multiGet(keys);
+        long sum = sumOf(key, values);
+        if (sum >= 0) {
+            return sum;
+        }
+        // 其他节点扩容了，按读到的分片数重读（本节点不再跟踪该计数时也能读全）
+        int actualShards = Math.min(((Number) values.get(0)).intValue(), maxShards);
+        values = redisTemplate.opsForValue().multiGet(keysFor(key, actualShards));
+        return Math.max(0, sumOf(key, values));
+    }
+
+    /**
+     * 读取一个计数需要MGET的key：分片数key，以及本节点已知的全部分片
+     * 供调用方与其他命令合并在一次往返中读取，结果交给 {@link #sumOf}
+     */
+    public List<String> keysToRead(String key) {
+        Tracker tracker = trackers.get(key);
+        return keysFor(key, tracker != null ? tracker.shards.get() : 1);
+    }
+
+    private static List<String> keysFor(String key, int shards) {
+        List<String> keys = new ArrayList<>(shards + 1);
+        keys.add(key + SHARD_COUNT_SUFFIX);
+        for (int i = 0; i < shards; i++) {
+            keys.add(shardKey(key, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 对 {@link #keysToRead} 的MGET结果求和
+     *
+     * @return 计数；分片数比读取时已知的多（结果不完整）时返回-1，调用方应重新读取
+     */
+    public long sumOf(String key, List<Object> values) {
+        if (values == null || values.isEmpty()) {
+            return 0;
+        }
+        int actualShards = values.get(0) instanceof Number n ? n.intValue() : 1;
+        if (actualShards > values.size() - 1) {
+            tracker(key).shards.accumulateAndGet(Math.min(actualShards, maxShards), Math::max);
+            return -1;
+        }
+        long sum = 0;
+        for (int i = 1; i < values.size(); i++) {
+            if (values.get(i) instanceof Number n) {
+                sum += n.longValue();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 删除计数的全部分片
+     */
+    public void delete(String key) {
+        List<String> keys = new ArrayList<>(maxShards + 1);
+        keys.add(key + SHARD_COUNT_SUFFIX);
+        for (int i = 0; i < maxShards; i++) {
+            keys.add(shardKey(key, i));
+        }
+        redisTemplate.delete(keys);
+        trackers.remove(key);
+    }
+
+    /**
+     * 记录一次写入，单分片速率超过阈值时分片数加倍
+     * 扩容时先登记新的分片数再写入新分片，读取方不会漏读
+     *
+     * @return 本次写入使用的分片数
+     */
+    private int scaleIfHot(String key, Tracker tracker, Duration ttl) {
+        long now = System.nanoTime();
+        long start = tracker.windowStart.get();
+        if (now - start >= WINDOW_NANOS && tracker.windowStart.compareAndSet(start, now)) {
+            long writes = tracker.writes.getAndSet(0);
+            int shards = tracker.shards.get();
+            long perShard = writes * WINDOW_NANOS / Math.max(1, now - start) / shards;
+            if (perShard > shardOpsPerSecond && shards < maxShards) {
+                register(key, Math.min(maxShards, shards * 2), tracker, ttl);
+                int raised = tracker.shards.accumulateAndGet(Math.min(maxShards, shards * 2), Math::max);
+                log.info("Counter {} is hot ({} ops/s per shard), shards: {} -> {}", key, perShard, shards, raised);
+            }
+        }
+        tracker.writes.incrementAndGet();
+        return tracker.shards.get();
+    }
+
+    private void register(String key, int shards, Tracker tracker, Duration ttl) {
+        Long registered = redisTemplate.execute(REGISTER_SHARDS_SCRIPT, List.of(key + SHARD_COUNT_SUFFIX),
+                shards, deadlineOf(key, tracker, ttl));
+        if (registered != null && registered > shards) {
+            // 其他节点扩容得更多，之后按较大的分片数写入
+            tracker(key).shards.accumulateAndGet(Math.min(registered.intValue(), maxShards), Math::max);
+        }
+    }
+
+    /**
+     * 计数的截止时刻：优先用本节点缓存的值，已过去或未知时由第0个分片的剩余有效期推出，
+     * 第0个分片不存在（计数已过期）时从现在开始计时
+     */
+    private long deadlineOf(String key, Tracker tracker, Duration ttl) {
+        long now = System.currentTimeMillis();
+        long deadline = tracker.deadlineMillis;
+        if (deadline > now) {
+            return deadline;
+        }
+        Long remaining = redisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+        deadline = now + (remaining != null && remaining > 0 ? remaining : ttl.toMillis());
+        tracker.deadlineMillis = deadline;
+        return deadline;
+    }
+
+    private Tracker tracker(String key) {
+        Tracker tracker = trackers.get(key);
+        if (tracker != null) {
+            return tracker;
+        }
+        if (trackers.size() >= maxTrackedKeys) {
+            // 清掉最近没有写入的计数（不论分片数）；被清掉的计数下次读取时会从 {key}:n 恢复分片数，
+            // 写入时从单分片开始，热点会在下一秒重新扩容
+            long now = System.nanoTime();
+            trackers.values().removeIf(t -> now - t.windowStart.get() > 2 * WINDOW_NANOS);
+            if (trackers.size() >= maxTrackedKeys) {
+                // 仍然满（全部是活跃计数）：本次不缓存
+                return new Tracker();
+            }
+        }
+        return trackers.computeIfAbsent(key, k -> new Tracker());
+    }
+
+    private static String shardKey(String key, int shard) {
+        return shard == 0 ? key : key + SHARD_SEPARATOR + shard;
+    }
+}
@@ -0,0 +1,349 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.entity.SysUser;
+import com.yu.histoaiagent.mapper.SysUserMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 不存在的用户ID快速拒绝：布隆过滤器 + 短期负缓存
+ *
+ * 布隆过滤器覆盖 sys_user 中的全部用户ID，判断为不存在的ID一定不存在，直接拒绝，不查库；
+ * 判断为可能存在（包括约1%的误判）时照常查询，查询结果为不存在的ID进入负缓存，TTL内不再查库。
+ *
+ * 刷新：
+ * - 启动后在后台按主键分页全量加载，加载完成前不拦截任何ID
+ * - 每隔 refresh-interval-ms 按 created_at 增量加载新用户，时间窗口有重叠，晚提交的事务不会漏掉
+ * - 新注册的用户在下一次增量刷新前也能登录：过滤器未命中时最多每 catch-up-interval-ms 同步执行一次增量刷新，
+ *   随机ID攻击产生的数据库查询因此有固定上限，与请求量无关
+ * - 用户数超过容量时按两倍容量重建，误判率不随用户增长而升高
+ *
+ * 已删除的用户仍在过滤器中，按"可能存在"处理，查库后进入负缓存。
+ */
+@Component
+@ConditionalOnProperty(prefix = "user.id-filter", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class UserIdFilter {
+
+    private static final int LOAD_PAGE_SIZE = 5000;
+
+    /**
+     * 增量刷新的时间窗口向前重叠，覆盖创建后较晚才提交的事务和时钟误差
+     */
+    private static final long REFRESH_OVERLAP_SECONDS = 60;
+
+    private final SysUserMapper sysUserMapper;
+    private final double falsePositiveRate;
+    private final long catchUpIntervalNanos;
+    private final long negativeTtlNanos;
+    private final int negativeMaxEntries;
+
+    private volatile BloomFilter filter;
+    private volatile boolean ready;
+    private volatile boolean rebuilding;
+    private volatile LocalDateTime refreshedSince;
+    private volatile long lastCatchUpNanos;
+
+    /**
+     * 查库确认不存在的ID -> 过期时间
+     */
+    private final ConcurrentHashMap<String, Long> negative = new ConcurrentHashMap<>();
+
+    /**
+     * 增量刷新与替换过滤器互斥
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private final ScheduledExecutorService refresher;
+
+    private final LongAdder rejected = new LongAdder();
+
+    public UserIdFilter(SysUserMapper sysUserMapper,
+                        @Value("${user.id-filter.expected-users:1000000}") int expectedUsers,
+                        @Value("${user.id-filter.false-positive-rate:0.01}") double falsePositiveRate,
+                        @Value("${user.id-filter.refresh-interval-ms:5000}") long refreshIntervalMillis,
+                        @Value("${user.id-filter.catch-up-interval-ms:1000}") long catchUpIntervalMillis,
+                        @Value("${user.id-filter.negative-ttl-ms:30000}") long negativeTtlMillis,
+                        @Value("${user.id-filter.negative-max-entries:100000}") int negativeMaxEntries) {
+        this.sysUserMapper = sysUserMapper;
+        this.falsePositiveRate = falsePositiveRate;
+        this.catchUpIntervalNanos = TimeUnit.MILLISECONDS.toNanos(catchUpIntervalMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.negativeMaxEntries = negativeMaxEntries;
+        this.filter = new BloomFilter(expectedUsers, falsePositiveRate);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-id-filter-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.execute(this::loadQuietly);
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, refreshIntervalMillis, refreshIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 是否可以确定用户不存在；返回false时调用方照常查库
+     */
+    public boolean isKnownMissing(String userId) {
+        Long expiresAt = negative.get(userId);
+        if (expiresAt != null) {
+            if (expiresAt - System.nanoTime() > 0) {
+                rejected.increment();
+                return true;
+            }
+            negative.remove(userId, expiresAt);
+        }
+        if (!ready || filter.mightContain(userId)) {
+            return false;
+        }
+        // 可能是刚注册的用户：限频同步追一次增量
+        if (catchUp() && filter.mightContain(userId)) {
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    /**
+     * 记录查库确认不存在的用户ID
+     */
+    public void markMissing(String userId) {
+        if (negativeTtlNanos <= 0) {
+            return;
+        }
+        if (negative.size() >= negativeMaxEntries) {
+            long now = System.nanoTime();
+            negative.values().removeIf(expiresAt -> expiresAt - now <= 0);
+            if (negative.size() >= negativeMaxEntries) {
+                // 布隆过滤器仍然拦截绝大部分随机ID，这里放弃缓存即可
+                return;
+            }
+        }
+        negative.put(userId, System.nanoTime() + negativeTtlNanos);
+    }
+
+    /**
+     * 登记新用户（本节点创建用户时调用，其他节点在下一次增量刷新时看到）
+     */
+    public void add(String userId) {
+        filter.put(userId);
+        negative.remove(userId);
+    }
+
+    /**
+     * 被拦截的请求数
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * 全量加载：容量不足时加倍，在新过滤器上加载完成后替换
+     * 加载期间旧过滤器照常使用；替换后立即从加载开始时刻增量刷新一次，补上加载期间创建的用户
+     */
+    void load() {
+        LocalDateTime since = LocalDateTime.now().minusSeconds(REFRESH_OVERLAP_SECONDS);
+        BloomFilter current = filter;
+        BloomFilter loading = new BloomFilter(
+                current.size() > current.capacity() ? current.capacity() * 2 : current.capacity(), falsePositiveRate);
+        long afterId = 0;
+        while (true) {
+            List<SysUser> page = sysUserMapper.selectUserIdsAfter(afterId, LOAD_PAGE_SIZE);
+            for (SysUser user : page) {
+                loading.put(user.getUserId());
+            }
+            if (page.size() < LOAD_PAGE_SIZE) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).getId();
+            if (loading.size() > loading.capacity()) {
+                // 用户数超出预期，放大容量重新加载
+                loading = new BloomFilter(loading.capacity() * 2, falsePositiveRate);
+                afterId = 0;
+            }
+        }
+
+        refreshLock.lock();
+        try {
+            filter = loading;
+            refreshedSince = since;
+            ready = true;
+            rebuilding = false;
+            refresh();
+        } finally {
+            refreshLock.unlock();
+        }
+        log.info("User id filter loaded, {} users, capacity {}", loading.size(), loading.capacity());
+    }
+
+    /**
+     * 增量加载上次刷新以来创建的用户
+     */
+    void refresh() {
+        refreshLock.lock();
+        try {
+            if (!ready) {
+                return;
+            }
+            LocalDateTime since = LocalDateTime.now().minusSeconds(REFRESH_OVERLAP_SECONDS);
+            List<SysUser> created = sysUserMapper.selectUserIdsCreatedSince(refreshedSince);
+            for (SysUser user : created) {
+                add(user.getUserId());
+            }
+            refreshedSince = since;
+            if (filter.size() > filter.capacity() && !rebuilding) {
+                rebuilding = true;
+                refresher.execute(this::loadQuietly);
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * @return 是否执行了增量刷新；距离上次追赶不足 catch-up-interval-ms 或正在刷新时返回false
+     */
+    private boolean catchUp() {
+        long now = System.nanoTime();
+        if (now - lastCatchUpNanos < catchUpIntervalNanos || !refreshLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (now - lastCatchUpNanos < catchUpIntervalNanos) {
+                return false;
+            }
+            lastCatchUpNanos = now;
+            refresh();
+            return true;
+        } catch (Exception e) {
+            log.warn("User id filter catch-up failed", e);
+            return false;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private void loadQuietly() {
+        try {
+            load();
+        } catch (Exception e) {
+            // 加载失败时不拦截任何ID，下一次增量刷新前重试
+            log.error("Failed to load user id filter", e);
+            rebuilding = false;
+            if (!ready) {
+                refresher.schedule(this::loadQuietly, 10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            // 吞掉异常，避免定时任务终止
+            log.error("Failed to refresh user id filter", e);
+        }
+    }
+
+    /**
+     * 并发安全的布隆过滤器，位数组为 AtomicLongArray，写入无锁
+     */
+    static final class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+        private final int capacity;
+        private final LongAdder size = new LongAdder();
+
+        /**
+         * @param capacity 预期元素数，超出后误判率上升
+         * @param falsePositiveRate 达到预期元素数时的误判率
+         */
+        BloomFilter(int capacity, double falsePositiveRate) {
+            this.capacity = Math.max(1, capacity);
+            long m = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) Math.max(1, (m + 63) / 64));
+            this.bitCount = (long) bits.length() * 64;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / this.capacity * Math.log(2)));
+        }
+
+        void put(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            boolean changed = false;
+            for (int i = 1; i <= hashCount; i++) {
+                long index = Math.floorMod(h1 + (long) i * h2, bitCount);
+                long mask = 1L << index;
+                int word = (int) (index >>> 6);
+                if ((bits.getAndUpdate(word, v -> v | mask) & mask) == 0) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                size.increment();
+            }
+        }
+
+        boolean mightContain(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long index = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 近似元素数（重复写入不计数）
+         */
+        long size() {
+            return size.sum();
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        /**
+         * 64位FNV-1a + splitmix64 混合
+         */
+        private static long hash(String value) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 30;
+            h *= 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 27;
+            h *= 0x94d049bb133111ebL;
+            h ^= h >>> 31;
+            return h;
+        }
+    }
+}
@@ -9,12 +9,20 @@ import com.yu.histoaiagent.mapper.SysUserMapper;
 import com.yu.histoaiagent.mapper.UserQuotaUsageMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -36,24 +44,137 @@ public class UserPermissionService {
     @Autowired(required = false)
     private RedisTemplate<String, Object> redisTemplate;
 
-    private static final String USAGE_KEY_PREFIX = "user:usage:";
+    @Autowired
+    private UserProfileCache userProfileCache;
+
+    /**
+     * 使用次数异步落库，关闭时为null，每次对话同步写库
+     */
+    @Autowired(required = false)
+    private QuotaUsageWriteBehind quotaUsageWriteBehind;
+
+    /**
+     * 配额租约，关闭时为null，每次请求都访问Redis
+     */
+    @Autowired(required = false)
+    private QuotaLeaseManager quotaLeaseManager;
+
+    /**
+     * 不存在的用户ID快速拒绝，关闭时为null
+     */
+    @Autowired(required = false)
+    private UserIdFilter userIdFilter;
+
+    /**
+     * 分片计数器，关闭时为null，会话消息数使用单个key
+     */
+    @Autowired(required = false)
+    private ShardedCounter shardedCounter;
+
+    /**
+     * 是否把会话消息数读取与配额脚本合并到一个pipeline中，关闭时按顺序各一次往返
+     */
+    @Value("${user.authorization.pipeline.enabled:true}")
+    private boolean pipelineEnabled;
+
+    static final String USAGE_KEY_PREFIX = "user:usage:";
+    static final String RATE_LIMIT_KEY_PREFIX = "user:rate:";
     private static final String CONV_MSG_COUNT_PREFIX = "conversation:message:count:";
+    private static final Duration CONV_MSG_COUNT_TTL = Duration.ofHours(24);
+
+    /**
+     * 配额检查与限流脚本，见 lua/quota_consume.lua
+     * 参数只传数字：RedisTemplate的value序列化器是Jackson，数字序列化后就是十进制文本
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> QUOTA_CONSUME_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/quota_consume.lua"), List.class);
+
+    /**
+     * 归还配额与令牌，复用租约脚本的只归还模式，见 lua/quota_lease.lua
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> QUOTA_RETURN_SCRIPT =
+            RedisScript.of(new ClassPathResource("lua/quota_lease.lua"), List.class);
+
+    /**
+     * 配额脚本返回值：当日key不存在，需要带上数据库中的次数重试
+     */
+    private static final long USAGE_KEY_MISSING = -1;
+
+    /**
+     * 配额脚本返回值：配额已用完，本次未消耗
+     */
+    private static final long QUOTA_EXHAUSTED = -2;
+
+    /**
+     * 配额脚本返回值：触发限流，本次未消耗
+     */
+    private static final long RATE_LIMITED = -3;
+
+    /**
+     * 检查结果：会话消息数已达上限，本次未消耗
+     */
+    private static final long MESSAGE_LIMIT_EXCEEDED = -4;
+
+    /**
+     * 配额检查结果
+     *
+     * @param remaining 消耗后的今日剩余次数；被拒绝时为负数
+     * @param retryAfterMillis 触发限流时建议等待的毫秒数，其他情况为0
+     */
+    public record QuotaDecision(long remaining, long retryAfterMillis) {
+
+        public boolean allowed() {
+            return remaining >= 0;
+        }
+
+        public boolean quotaExhausted() {
+            return remaining == QUOTA_EXHAUSTED;
+        }
+
+        public boolean rateLimited() {
+            return remaining == RATE_LIMITED;
+        }
+
+        public boolean messageLimitExceeded() {
+            return remaining == MESSAGE_LIMIT_EXCEEDED;
+        }
+    }
 
     /**
      * 获取用户信息
+     * 用户资料走本节点短TTL缓存（见 {@link UserProfileCache}），今日使用次数每次实时读取
      */
     public UserInfo getUserInfo(String userId) {
-        log.debug("Getting user info from database: {}", userId);
+        return getUserInfo(userId, true);
+    }
+
+    /**
+     * 获取用户信息
+     *
+     * @param loadUsage 是否读取今日使用次数；为false时今日使用次数为0，
+     *                  由 {@link #tryConsumeQuota(UserInfo)} 在消耗配额时填入实际值
+     */
+    public UserInfo getUserInfo(String userId, boolean loadUsage) {
+        log.debug("Getting user info: {}", userId);
 
-        // 1. 从数据库查询用户基本信息
-        SysUser sysUser = sysUserMapper.findByUserId(userId);
+        // 1. 查询用户基本信息（确定不存在的ID直接返回，缓存未命中时查库）
+        if (userIdFilter != null && userIdFilter.isKnownMissing(userId)) {
+            log.debug("User rejected by id filter: {}", userId);
+            return null;
+        }
+        SysUser sysUser = userProfileCache.get(userId, sysUserMapper::findByUserId);
         if (sysUser == null) {
+            if (userIdFilter != null) {
+                userIdFilter.markMissing(userId);
+            }
             log.warn("User not found: {}", userId);
             return null;
         }
 
         // 2. 获取今日使用次数（优先从Redis，其次从数据库）
-        Integer todayUsage = getTodayUsageCount(userId);
+        Integer todayUsage = loadUsage ? getTodayUsageCount(userId) : 0;
 
         // 3. 转换为UserInfo
         UserInfo userInfo = UserInfo.builder()
@@ -90,11 +211,8 @@ public class UserPermissionService {
             }
         }
 
-        // 2. 从数据库获取
-        Integer count = quotaUsageMapper.findTodayUsage(userId, today);
-        if (count == null) {
-            count = 0;
-        }
+        // 2. 从数据库获取（加上尚未落库的部分）
+        Integer count = getPersistedUsage(userId, today);
 
         // 3. 回填到Redis
         if (redisTemplate != null && count > 0) {
@@ -112,47 +230,289 @@ public class UserPermissionService {
      * 增加使用次数
      * 同时更新Redis和MySQL
      */
-    @Transactional
     public void incrementUsage(String userId) {
-        LocalDate today = LocalDate.now();
-
-        // 1. 获取用户信息以确定配额限制
+        // 获取用户信息以确定配额限制
         UserInfo userInfo = getUserInfo(userId);
         if (userInfo == null) {
             log.warn("User not found when incrementing usage: {}", userId);
             return;
         }
+        incrementUsage(userInfo);
+    }
 
-        // 2. 增加Redis计数
-        Long newCount = null;
+    /**
+     * 增加使用次数（使用调用方已加载的用户信息，不再重复查询），不检查配额
+     * 同时更新Redis和MySQL
+     */
+    public void incrementUsage(UserInfo userInfo) {
+        String userId = userInfo.getUserId();
+
+        // 1. 增加Redis计数（上限取最大值且不限流，即不检查配额）
         if (redisTemplate != null) {
-            String key = getUsageKey(userId, today);
-            newCount = redisTemplate.opsForValue().increment(key);
+            long remaining = consumeInRedis(userId, Integer.MAX_VALUE, 0, 0).remaining();
+            userInfo.setTodayUsageCount((int) (Integer.MAX_VALUE - remaining));
+        } else {
+            userInfo.setTodayUsageCount(getTodayUsageCount(userId) + 1);
+        }
+
+        // 2. 更新MySQL
+        recordUsage(userInfo);
+    }
+
+    /**
+     * 检查限流并消耗一次每日配额
+     *
+     * Redis中由一个Lua脚本原子完成 检查角色上限 + 令牌桶限流 + 计数 + 设置过期，并发请求不会超出配额和突发上限；
+     * 稳定状态下一次往返，只有当日第一次调用（key不存在）时从数据库读取当日次数作为初始值再执行一次。
+     * 限流参数见 {@link UserRole#getBurstCapacity()}。
+     * 角色配置了租约大小时改由 {@link QuotaLeaseManager} 在本地消耗租到的配额，大部分请求不访问Redis。
+     *
+     * @return 检查结果，被拒绝时配额和令牌都不消耗；成功时 userInfo 的今日使用次数更新为消耗后的值
+     */
+    public QuotaDecision tryConsumeQuota(UserInfo userInfo) {
+        String userId = userInfo.getUserId();
+        UserRole role = userInfo.getRole();
+        int limit = role.getDailyQuota();
+
+        // 1. 检查并计数
+        QuotaDecision decision;
+        if (redisTemplate != null && quotaLeaseManager != null && role.getLeaseSize() > 0) {
+            decision = quotaLeaseManager.tryConsume(userId, role, () -> getPersistedUsage(userId, LocalDate.now()));
+        } else if (redisTemplate != null) {
+            decision = consumeInRedis(userId, limit, role.getBurstCapacity(), role.getRefillPerMinute());
+        } else {
+            // 没有Redis时退化为先查后写（非原子、不限流），仅用于本地开发
+            int used = getTodayUsageCount(userId);
+            decision = new QuotaDecision(used < limit ? limit - used - 1 : QUOTA_EXHAUSTED, 0);
+        }
+        return applyDecision(userInfo, decision);
+    }
+
+    /**
+     * 检查会话消息数限制，再检查限流并消耗一次每日配额
+     *
+     * 需要执行配额脚本时，脚本与会话消息数的MGET放在同一个pipeline中，鉴权只需一次Redis往返
+     * （用户资料在本节点缓存中，不访问Redis）；只有当日计数不存在时才读取数据库。
+     * 配额脚本先于消息数检查执行，消息数超限时归还刚消耗的配额和令牌。
+     * 租约角色的配额大多在本地消耗，只读取消息数；脚本缓存被清空（Redis重启、故障切换）时退化为按顺序执行一次。
+     *
+     * @param conversationId 会话ID，为null时不检查消息数
+     * @return 检查结果，会话消息数超限时 {@link QuotaDecision#messageLimitExceeded()} 为true
+     */
+    public QuotaDecision tryConsumeQuota(UserInfo userInfo, String conversationId) {
+        UserRole role = userInfo.getRole();
+        boolean leased = quotaLeaseManager != null && role.getLeaseSize() > 0;
+        if (conversationId == null || redisTemplate == null || leased || !pipelineEnabled) {
+            return consumeSequentially(userInfo, conversationId);
+        }
+
+        String userId = userInfo.getUserId();
+        LocalDate today = LocalDate.now();
+        String countKey = CONV_MSG_COUNT_PREFIX + conversationId;
+        List<String> countKeys = shardedCounter != null ? shardedCounter.keysToRead(countKey) : List.of(countKey);
+        List<Object> results;
+        try {
+            results = consumeAndReadPipelined(userId, role, today, countKeys);
+        } catch (RuntimeException e) {
+            if (!isNoScriptError(e)) {
+                throw e;
+            }
+            // EVALSHA失败时脚本没有执行；按顺序执行一次，RedisTemplate会重新加载脚本
+            log.info("Quota script not cached in Redis, reloading");
+            return consumeSequentially(userInfo, conversationId);
+        }
+
+        QuotaDecision decision = toDecision((List<?>) results.get(0));
+        long messageCount = messageCountOf(countKey, (List<?>) results.get(1));
+        boolean messageLimitExceeded = messageCount >= role.getMessageLimit();
+        if (decision != null && decision.remaining() == USAGE_KEY_MISSING && !messageLimitExceeded) {
+            decision = consumeInRedis(userId, role.getDailyQuota(), role.getBurstCapacity(), role.getRefillPerMinute());
+        }
+        if (messageLimitExceeded) {
+            if (decision != null && decision.allowed()) {
+                returnQuota(userId, role, today);
+            }
+            return new QuotaDecision(MESSAGE_LIMIT_EXCEEDED, 0);
+        }
+        if (decision == null) {
+            throw new IllegalStateException("Unexpected quota script result for user " + userId + ": " + results);
+        }
+        return applyDecision(userInfo, decision);
+    }
+
+    /**
+     * 按顺序读取会话消息数、消耗配额
+     */
+    private QuotaDecision consumeSequentially(UserInfo userInfo, String conversationId) {
+        if (conversationId != null
+                && getConversationMessageCount(conversationId) >= userInfo.getRole().getMessageLimit()) {
+            return new QuotaDecision(MESSAGE_LIMIT_EXCEEDED, 0);
+        }
+        return tryConsumeQuota(userInfo);
+    }
+
+    /**
+     * 根据检查结果更新 userInfo 的今日使用次数，通过时记录到MySQL
+     */
+    private QuotaDecision applyDecision(UserInfo userInfo, QuotaDecision decision) {
+        int limit = userInfo.getRole().getDailyQuota();
+        if (decision.quotaExhausted()) {
+            userInfo.setTodayUsageCount(limit);
+        }
+        if (!decision.allowed()) {
+            return decision;
+        }
+        userInfo.setTodayUsageCount((int) (limit - decision.remaining()));
+
+        // 更新MySQL
+        recordUsage(userInfo);
+        return decision;
+    }
+
+    /**
+     * 在一个pipeline中执行配额脚本（EVALSHA）并MGET会话消息数
+     * 参数的序列化方式与 RedisTemplate.execute(RedisScript) 相同：key用key序列化器，参数用value序列化器
+     *
+     * @return {配额脚本结果, MGET结果}
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> consumeAndReadPipelined(String userId, UserRole role, LocalDate today, List<String> countKeys) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        RedisSerializer<Object> argSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+
+        List<String> quotaKeys = List.of(getUsageKey(userId, today), RATE_LIMIT_KEY_PREFIX + userId);
+        Object[] args = {role.getDailyQuota(), Math.max(1, getSecondsUntilMidnight()), USAGE_KEY_MISSING,
+                role.getBurstCapacity(), role.getRefillPerMinute()};
+        byte[][] keysAndArgs = new byte[quotaKeys.size() + args.length][];
+        for (int i = 0; i < quotaKeys.size(); i++) {
+            keysAndArgs[i] = keySerializer.serialize(quotaKeys.get(i));
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[quotaKeys.size() + i] = argSerializer.serialize(args[i]);
+        }
+        byte[][] countKeyBytes = countKeys.stream().map(keySerializer::serialize).toArray(byte[][]::new);
+
+        return redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.scriptingCommands().evalSha(QUOTA_CONSUME_SCRIPT.getSha1(), ReturnType.MULTI,
+                    quotaKeys.size(), keysAndArgs);
+            connection.stringCommands().mGet(countKeyBytes);
+            return null;
+        });
+    }
+
+    /**
+     * 会话消息数MGET结果求和；分片数已变化时按新的分片数重读
+     */
+    @SuppressWarnings("unchecked")
+    private long messageCountOf(String countKey, List<?> values) {
+        if (shardedCounter == null) {
+            return values != null && !values.isEmpty() && values.get(0) instanceof Number n ? n.longValue() : 0;
+        }
+        long count = shardedCounter.sumOf(countKey, (List<Object>) values);
+        return count >= 0 ? count : shardedCounter.get(countKey);
+    }
 
-            // 设置过期时间（第一次创建时）
-            if (newCount == 1) {
-                long secondsUntilMidnight = getSecondsUntilMidnight();
-                redisTemplate.expire(key, secondsUntilMidnight, TimeUnit.SECONDS);
+    /**
+     * 归还本次请求消耗的配额和令牌（如模型调用失败、没有产生任何输出）
+     * 租约角色直接还给Redis中的计数，租约本身照常结算，合计仍然正确；
+     * 数据库中的次数按较大值写入，不回退，当日以Redis计数为准
+     */
+    public void refundQuota(UserInfo userInfo) {
+        if (redisTemplate == null) {
+            return;
+        }
+        returnQuota(userInfo.getUserId(), userInfo.getRole(), LocalDate.now());
+        userInfo.setTodayUsageCount(Math.max(0, userInfo.getTodayUsageCount() - 1));
+        log.debug("Refunded one call to user {}", userInfo.getUserId());
+    }
+
+    /**
+     * 归还一次已消耗的配额和令牌
+     */
+    private void returnQuota(String userId, UserRole role, LocalDate date) {
+        List<String> keys = List.of(getUsageKey(userId, date), RATE_LIMIT_KEY_PREFIX + userId);
+        redisTemplate.execute(QUOTA_RETURN_SCRIPT, keys, role.getDailyQuota(), Math.max(1, getSecondsUntilMidnight()),
+                USAGE_KEY_MISSING, role.getBurstCapacity(), role.getRefillPerMinute(), 1, 0);
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * 执行配额脚本
+     *
+     * @param burstCapacity 令牌桶容量，0表示不限流
+     */
+    private QuotaDecision consumeInRedis(String userId, int limit, int burstCapacity, int refillPerMinute) {
+        LocalDate today = LocalDate.now();
+        List<String> keys = List.of(getUsageKey(userId, today), RATE_LIMIT_KEY_PREFIX + userId);
+        long ttlSeconds = Math.max(1, getSecondsUntilMidnight());
+
+        QuotaDecision decision = toDecision(redisTemplate.execute(QUOTA_CONSUME_SCRIPT, keys,
+                limit, ttlSeconds, USAGE_KEY_MISSING, burstCapacity, refillPerMinute));
+        if (decision != null && decision.remaining() == USAGE_KEY_MISSING) {
+            // 当日第一次使用或Redis数据丢失：以数据库中的次数为准初始化
+            int seed = getPersistedUsage(userId, today);
+            decision = toDecision(redisTemplate.execute(QUOTA_CONSUME_SCRIPT, keys,
+                    limit, ttlSeconds, seed, burstCapacity, refillPerMinute));
+        }
+        if (decision == null || decision.remaining() == USAGE_KEY_MISSING) {
+            throw new IllegalStateException("Unexpected quota script result for user " + userId + ": " + decision);
+        }
+        return decision;
+    }
 
-        // 3. 更新MySQL（异步或同步都可以）
+    private static QuotaDecision toDecision(List<?> result) {
+        if (result == null || result.size() < 2) {
+            return null;
+        }
+        return new QuotaDecision(((Number) result.get(0)).longValue(), ((Number) result.get(1)).longValue());
+    }
+
+    /**
+     * 在MySQL中记录当日使用次数（userInfo 中已更新为本次使用后的值）
+     * 开启 write-behind 时只在内存中记录，由后台批量写入
+     */
+    private void recordUsage(UserInfo userInfo) {
+        String userId = userInfo.getUserId();
+        LocalDate today = LocalDate.now();
+        int quotaLimit = userInfo.getRole().getDailyQuota();
+        if (quotaUsageWriteBehind != null) {
+            quotaUsageWriteBehind.record(userId, today, userInfo.getTodayUsageCount(), quotaLimit);
+            return;
+        }
         try {
             UserQuotaUsage usage = UserQuotaUsage.builder()
                     .userId(userId)
                     .usageDate(today)
-                    .usageCount(1) // 增加1次
-                    .quotaLimit(userInfo.getRole().getDailyQuota())
+                    .usageCount(userInfo.getTodayUsageCount())
+                    .quotaLimit(quotaLimit)
                     .build();
 
-            quotaUsageMapper.insertOrUpdateUsage(usage);
+            quotaUsageMapper.upsertMaxUsageBatch(List.of(usage));
 
-            log.debug("User {} usage incremented to {}", userId, newCount);
+            log.debug("User {} usage updated to {}", userId, userInfo.getTodayUsageCount());
         } catch (Exception e) {
             log.error("Failed to update quota usage in DB for user: {}", userId, e);
         }
     }
 
+    /**
+     * 数据库中的当日使用次数，与尚未落库的次数取较大值
+     */
+    private int getPersistedUsage(String userId, LocalDate date) {
+        Integer count = quotaUsageMapper.findTodayUsage(userId, date);
+        int persisted = count != null ? count : 0;
+        return quotaUsageWriteBehind != null
+                ? Math.max(persisted, quotaUsageWriteBehind.pendingUsage(userId, date)) : persisted;
+    }
+
     /**
      * 重置用户配额
      */
@@ -160,17 +520,23 @@ public class UserPermissionService {
     public void resetQuota(String userId) {
         LocalDate today = LocalDate.now();
 
-        // 1. 删除Redis缓存
+        // 1. 删除Redis计数和限流状态，丢弃本节点的租约
+        if (quotaLeaseManager != null) {
+            quotaLeaseManager.discard(userId);
+        }
         if (redisTemplate != null) {
-            String key = getUsageKey(userId, today);
-            redisTemplate.delete(key);
+            redisTemplate.delete(List.of(getUsageKey(userId, today), RATE_LIMIT_KEY_PREFIX + userId));
         }
 
-        // 2. 删除或重置MySQL记录
+        // 2. 删除或重置MySQL记录（同时丢弃尚未落库的次数）
         QueryWrapper<UserQuotaUsage> wrapper = new QueryWrapper<>();
         wrapper.eq("user_id", userId)
                .eq("usage_date", today);
-        quotaUsageMapper.delete(wrapper);
+        if (quotaUsageWriteBehind != null) {
+            quotaUsageWriteBehind.discard(userId, today, () -> quotaUsageMapper.delete(wrapper));
+        } else {
+            quotaUsageMapper.delete(wrapper);
+        }
 
         log.info("Reset quota for user: {}", userId);
     }
@@ -188,6 +554,9 @@ public class UserPermissionService {
         // 2. 更新过期时间
         sysUserMapper.updateVipExpireTime(userId, expireTime);
 
+        // 3. 提交后通知各节点刷新用户资料
+        userProfileCache.invalidateAfterCommit(userId);
+
         log.info("Upgraded user {} to VIP for {} days, expire at {}",
                 userId, days, expireTime);
     }
@@ -198,6 +567,7 @@ public class UserPermissionService {
     @Transactional
     public void disableUser(String userId) {
         sysUserMapper.updateEnabledStatus(userId, false);
+        userProfileCache.invalidateAfterCommit(userId);
         log.info("Disabled user: {}", userId);
     }
 
@@ -207,6 +577,7 @@ public class UserPermissionService {
     @Transactional
     public void enableUser(String userId) {
         sysUserMapper.updateEnabledStatus(userId, true);
+        userProfileCache.invalidateAfterCommit(userId);
         log.info("Enabled user: {}", userId);
     }
 
@@ -219,6 +590,9 @@ public class UserPermissionService {
         }
 
         String key = CONV_MSG_COUNT_PREFIX + conversationId;
+        if (shardedCounter != null) {
+            return (int) shardedCounter.get(key);
+        }
         Object count = redisTemplate.opsForValue().get(key);
         return count != null ? ((Number) count).intValue() : 0;
     }
@@ -232,11 +606,17 @@ public class UserPermissionService {
         }
 
         String key = CONV_MSG_COUNT_PREFIX + conversationId;
+        if (shardedCounter != null) {
+            // 同一会话的高频写入分散到多个分片，读取时求和
+            shardedCounter.increment(key, count, CONV_MSG_COUNT_TTL);
+            log.debug("Conversation {} message count increased by {}", conversationId, count);
+            return;
+        }
         Long newCount = redisTemplate.opsForValue().increment(key, count);
 
         // 设置24小时过期
         if (newCount == count) {
-            redisTemplate.expire(key, 24, TimeUnit.HOURS);
+            redisTemplate.expire(key, CONV_MSG_COUNT_TTL);
         }
 
         log.debug("Conversation {} message count: {}", conversationId, newCount);
@@ -256,16 +636,16 @@ public class UserPermissionService {
     /**
      * 获取使用统计的Redis Key
      */
-    private String getUsageKey(String userId, LocalDate date) {
+    static String getUsageKey(String userId, LocalDate date) {
         return USAGE_KEY_PREFIX + date.toString() + ":" + userId;
     }
     
     /**
      * 计算到午夜的秒数
      */
-    private long getSecondsUntilMidnight() {
+    static long getSecondsUntilMidnight() {
         LocalDateTime now = LocalDateTime.now();
         LocalDateTime midnight = now.toLocalDate().plusDays(1).atStartOfDay();
-        return java.time.Duration.between(now, midnight).getSeconds();
+        return Duration.between(now, midnight).getSeconds();
     }
 }
\ No newline at end of file
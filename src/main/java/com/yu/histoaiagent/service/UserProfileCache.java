@@ -0,0 +1,207 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.entity.SysUser;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 本节点的用户资料（sys_user）缓存
+ *
+ * - 短TTL：即使失效广播丢失，角色和启用状态的变更最多延迟一个TTL生效
+ * - 变更用户资料后调用 {@link #invalidateAfterCommit}：事务提交后清除本节点缓存，
+ *   并通过 Redis pub/sub 通知其他节点，集群内通常在毫秒级生效
+ * - 加载方在查库前取版本号，写入缓存前校验，加载期间发生过失效则不写入，避免把旧数据放回缓存
+ * - 不缓存不存在的用户
+ * - 容量：过期条目由后台线程定期清理；达到 max-entries 时新用户本次不缓存，请求线程不扫描缓存
+ */
+@Component
+@Slf4j
+public class UserProfileCache implements MessageListener {
+
+    /**
+     * 失效广播频道，消息格式：{nodeId}|{userId}
+     */
+    static final String INVALIDATION_CHANNEL = "user:profile:invalidate";
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private record Entry(SysUser user, long expiresAtNanos) {
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * 过期条目清理线程，不缓存（TTL为0）时为null
+     */
+    private final ScheduledExecutorService sweeper;
+
+    public UserProfileCache(ObjectProvider<StringRedisTemplate> stringRedisTemplate,
+                            ObjectProvider<RedisMessageListenerContainer> listenerContainer,
+                            @Value("${user.profile-cache.ttl-ms:30000}") long ttlMillis,
+                            @Value("${user.profile-cache.max-entries:100000}") int maxEntries) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.maxEntries = maxEntries;
+        this.stringRedisTemplate = stringRedisTemplate.getIfAvailable();
+        RedisMessageListenerContainer container = listenerContainer.getIfAvailable();
+        if (container != null) {
+            container.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+        }
+        if (ttlMillis > 0) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "user-profile-cache-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long sweepMillis = Math.max(1000, ttlMillis / 2);
+            sweeper.scheduleWithFixedDelay(this::sweepQuietly, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * 获取用户资料，未缓存或已过期时通过 loader 加载
+     *
+     * @param loader 查库函数，用户不存在时返回null
+     */
+    public SysUser get(String userId, Function<String, SysUser> loader) {
+        Entry entry = entries.get(userId);
+        if (entry != null && entry.expiresAtNanos() - System.nanoTime() > 0) {
+            return entry.user();
+        }
+        long generation = generations.get(stripe(userId));
+        SysUser user = loader.apply(userId);
+        if (user != null && ttlNanos > 0) {
+            putIfCurrent(userId, user, generation);
+        }
+        return user;
+    }
+
+    /**
+     * 使用户资料缓存失效：当前有事务时在提交后执行，否则立即执行
+     * 提交前失效会让并发的读取把旧数据重新放回缓存，因此必须在提交之后
+     */
+    public void invalidateAfterCommit(String userId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(userId);
+                }
+            });
+        } else {
+            invalidate(userId);
+        }
+    }
+
+    /**
+     * 立即使本节点缓存失效并广播给其他节点
+     */
+    public void invalidate(String userId) {
+        invalidateLocal(userId);
+        if (stringRedisTemplate == null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATION_CHANNEL, nodeId + "|" + userId);
+        } catch (Exception e) {
+            // 广播失败时其他节点最多在一个TTL后读到新数据
+            log.warn("Failed to publish user profile invalidation for user: {}", userId, e);
+        }
+    }
+
+    /**
+     * 收到其他节点的失效广播
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf('|');
+        if (separator < 0 || body.substring(0, separator).equals(nodeId)) {
+            return;
+        }
+        invalidateLocal(body.substring(separator + 1));
+    }
+
+    /**
+     * 清理已过期的条目
+     *
+     * @return 清理的条目数
+     */
+    int sweepExpired() {
+        long now = System.nanoTime();
+        int before = entries.size();
+        entries.values().removeIf(e -> e.expiresAtNanos() - now <= 0);
+        return before - entries.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            int removed = sweepExpired();
+            if (removed > 0) {
+                log.debug("Swept {} expired user profiles", removed);
+            }
+        } catch (Exception e) {
+            // 吞掉异常，避免清理线程终止
+            log.error("User profile cache sweep failed", e);
+        }
+    }
+
+    private void invalidateLocal(String userId) {
+        generations.incrementAndGet(stripe(userId));
+        entries.remove(userId);
+        log.debug("Invalidated user profile cache: {}", userId);
+    }
+
+    private void putIfCurrent(String userId, SysUser user, long generation) {
+        if (entries.size() >= maxEntries && !entries.containsKey(userId)) {
+            // 已满：本次不缓存，等后台清理过期条目后再缓存
+            return;
+        }
+        Entry entry = new Entry(user, System.nanoTime() + ttlNanos);
+        entries.put(userId, entry);
+        // 写入后再校验一次：期间发生失效则撤销本次写入
+        if (generations.get(stripe(userId)) != generation) {
+            entries.remove(userId, entry);
+        }
+    }
+
+    private static int stripe(String userId) {
+        int h = userId.hashCode();
+        h ^= (h >>> 16);
+        return h & (GENERATION_STRIPES - 1);
+    }
+}
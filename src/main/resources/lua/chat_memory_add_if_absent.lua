@@ -0,0 +1,27 @@
+-- 仅当会话不在Redis中时写入消息：从冷层回填热层使用，已存在时不覆盖（可能已有更新的追加）
+-- KEYS[1]: 会话key
+-- KEYS[2]: 完整性标记key：写入的是完整会话且未被裁剪时设置，否则删除
+-- ARGV[1]: 最多保留的消息数
+-- ARGV[2]: 过期时间（秒）
+-- ARGV[3]: 写入的是否为完整会话（1/0）
+-- ARGV[4..n]: 已序列化的消息
+-- 返回：写入后的消息数；会话已存在时返回0
+local key = KEYS[1]
+if redis.call('EXISTS', key) == 1 then
+    return 0
+end
+local maxMessages = tonumber(ARGV[1])
+local ttlSeconds = tonumber(ARGV[2])
+
+local size = redis.call('RPUSH', key, unpack(ARGV, 4))
+if size > maxMessages then
+    redis.call('LTRIM', key, -maxMessages, -1)
+    size = maxMessages
+    redis.call('DEL', KEYS[2])
+elseif ARGV[3] == '1' then
+    redis.call('SET', KEYS[2], '1', 'EX', ttlSeconds)
+else
+    redis.call('DEL', KEYS[2])
+end
+redis.call('EXPIRE', key, ttlSeconds)
+return size
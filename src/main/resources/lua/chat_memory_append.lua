@@ -0,0 +1,17 @@
+-- 原子追加会话消息：RPUSH + 按上限裁剪 + 刷新TTL，一次往返
+-- KEYS[1]: 会话key
+-- ARGV[1]: 最多保留的消息数
+-- ARGV[2]: 过期时间（秒）
+-- ARGV[3..n]: 已序列化的消息
+-- 返回：追加并裁剪后的消息数
+local key = KEYS[1]
+local maxMessages = tonumber(ARGV[1])
+local ttlSeconds = tonumber(ARGV[2])
+
+local size = redis.call('RPUSH', key, unpack(ARGV, 3))
+if size > maxMessages then
+    redis.call('LTRIM', key, -maxMessages, -1)
+    size = maxMessages
+end
+redis.call('EXPIRE', key, ttlSeconds)
+return size
@@ -0,0 +1,24 @@
+-- 仅当会话已在Redis中时追加消息：RPUSH + 按上限裁剪 + 刷新TTL
+-- 分层记忆的写路径使用：会话不在热层（已过期或从未加载）时不追加，避免热层只保存会话的一部分
+-- KEYS[1]: 会话key
+-- KEYS[2]: 完整性标记key：发生裁剪时删除（热层不再是完整会话），否则随会话刷新TTL
+-- ARGV[1]: 最多保留的消息数
+-- ARGV[2]: 过期时间（秒）
+-- ARGV[3..n]: 已序列化的消息
+-- 返回：追加并裁剪后的消息数；会话不存在时返回0
+local key = KEYS[1]
+if redis.call('EXISTS', key) == 0 then
+    return 0
+end
+local maxMessages = tonumber(ARGV[1])
+local ttlSeconds = tonumber(ARGV[2])
+
+local size = redis.call('RPUSH', key, unpack(ARGV, 3))
+if size > maxMessages then
+    redis.call('LTRIM', key, -maxMessages, -1)
+    redis.call('DEL', KEYS[2])
+    size = maxMessages
+end
+redis.call('EXPIRE', key, ttlSeconds)
+redis.call('EXPIRE', KEYS[2], ttlSeconds)
+return size
@@ -0,0 +1,13 @@
+-- 分页枚举会话key：SCAN一次，只返回列表类型的key
+-- ARGV[1]: SCAN游标（从"0"开始）
+-- ARGV[2]: key匹配模式
+-- ARGV[3]: 每次扫描的数量提示（COUNT）
+-- 返回：{下一游标, {key...}}，下一游标为"0"表示扫描结束
+local result = redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])
+local keys = {}
+for _, key in ipairs(result[2]) do
+    if redis.call('TYPE', key).ok == 'list' then
+        keys[#keys + 1] = key
+    end
+end
+return {result[1], keys}
@@ -0,0 +1,20 @@
+-- 读取会话最近N条消息，连同热层是否保存了完整会话，一次往返
+-- KEYS[1]: 会话key
+-- KEYS[2]: 完整性标记key（存在表示热层从回填起没有被裁剪过，保存的是完整会话）
+-- ARGV[1]: 最近N条，0表示全部
+-- 返回：会话不存在时返回空列表；否则 {完整标记(1/0), 消息...}
+local n = tonumber(ARGV[1])
+local values
+if n > 0 then
+    values = redis.call('LRANGE', KEYS[1], -n, -1)
+else
+    values = redis.call('LRANGE', KEYS[1], 0, -1)
+end
+if #values == 0 then
+    return {}
+end
+local result = {redis.call('EXISTS', KEYS[2])}
+for i = 1, #values do
+    result[i + 1] = values[i]
+end
+return result
@@ -0,0 +1,80 @@
+-- 原子地检查并消耗一次每日配额和一个限流令牌，一次往返完成配额检查与限流
+-- 并发请求在Redis中串行执行，不会同时通过检查而超出配额或突发上限
+--
+-- 每日配额：读取当日已用次数、比较角色上限、INCR、设置到午夜的过期时间
+-- 限流：令牌桶，桶容量为允许的突发请求数，按每分钟固定速率补充；时间取Redis服务器时间，与各节点时钟无关
+--
+-- KEYS[1]: 当日使用次数key
+-- KEYS[2]: 令牌桶key（Hash：tokens 为剩余令牌数 x 1000，ts 为上次更新的毫秒时间）
+-- ARGV[1]: 每日配额上限
+-- ARGV[2]: 到午夜的秒数
+-- ARGV[3]: 当日使用次数key不存在时的初始值（数据库中的当日使用次数），-1表示调用方尚未查询
+-- ARGV[4]: 令牌桶容量，<=0 表示不限流
+-- ARGV[5]: 每分钟补充的令牌数
+-- 返回：{消耗后的剩余次数, 0}
+--       {-1, 0} 当日使用次数key不存在且未提供初始值
+--       {-2, 0} 配额已用完
+--       {-3, 建议等待的毫秒数} 触发限流
+-- 拒绝时配额和令牌都不消耗
+if redis.replicate_commands then
+    -- Redis 5以下需要显式开启按命令复制才能在写入前调用TIME，新版本中为空操作
+    redis.replicate_commands()
+end
+
+local usageKey = KEYS[1]
+local bucketKey = KEYS[2]
+local limit = tonumber(ARGV[1])
+local ttlSeconds = tonumber(ARGV[2])
+local capacity = tonumber(ARGV[4]) * 1000
+local refillPerMinute = tonumber(ARGV[5])
+
+-- 1. 每日配额
+local used = redis.call('GET', usageKey)
+local seeded = false
+if used then
+    used = tonumber(used)
+else
+    local seed = tonumber(ARGV[3])
+    if seed < 0 then
+        return {-1, 0}
+    end
+    used = seed
+    seeded = true
+end
+if used >= limit then
+    if seeded then
+        redis.call('SET', usageKey, used, 'EX', ttlSeconds)
+    end
+    return {-2, 0}
+end
+
+-- 2. 令牌桶
+local tokens, now
+if capacity > 0 then
+    local time = redis.call('TIME')
+    now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local bucket = redis.call('HMGET', bucketKey, 'tokens', 'ts')
+    tokens = tonumber(bucket[1]) or capacity
+    local last = tonumber(bucket[2]) or now
+    tokens = math.min(capacity, tokens + math.max(0, now - last) * refillPerMinute / 60)
+    if tokens < 1000 then
+        return {-3, math.ceil((1000 - tokens) * 60 / refillPerMinute)}
+    end
+end
+
+-- 3. 都通过后才消耗
+if seeded then
+    redis.call('SET', usageKey, used + 1, 'EX', ttlSeconds)
+else
+    redis.call('INCR', usageKey)
+    -- 兼容旧版本INCR后未成功设置过期时间的key
+    if redis.call('TTL', usageKey) < 0 then
+        redis.call('EXPIRE', usageKey, ttlSeconds)
+    end
+end
+if capacity > 0 then
+    redis.call('HSET', bucketKey, 'tokens', math.floor(tokens - 1000), 'ts', now)
+    -- 桶补满之后的状态与不存在相同，过期即可
+    redis.call('PEXPIRE', bucketKey, math.ceil(capacity * 60 / refillPerMinute) + 1000)
+end
+return {limit - used - 1, 0}
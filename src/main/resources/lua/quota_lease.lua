@@ -0,0 +1,107 @@
+-- 配额租约：归还上一个租约未用完的部分，并按需申请新的租约，一次往返完成
+-- 租约同时占用每日配额和限流令牌（每次调用一个配额一个令牌），节点在本地消耗，用完或过期后再来续租
+--
+-- KEYS[1]: 当日使用次数key
+-- KEYS[2]: 令牌桶key（格式同 quota_consume.lua）
+-- ARGV[1]: 每日配额上限
+-- ARGV[2]: 到午夜的秒数
+-- ARGV[3]: 当日使用次数key不存在时的初始值，-1表示调用方尚未查询
+-- ARGV[4]: 令牌桶容量，<=0 表示不限流
+-- ARGV[5]: 每分钟补充的令牌数
+-- ARGV[6]: 归还的次数（上一个租约未用完的部分）
+-- ARGV[7]: 申请的租约大小，0表示只归还
+-- 返回：{申请后的剩余次数, 0, 租约大小}
+--       {-1, 0, 0} 当日使用次数key不存在且未提供初始值（只归还时表示无需归还）
+--       {-2, 0, 0} 配额已用完
+--       {-3, 建议等待的毫秒数, 0} 触发限流
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local usageKey = KEYS[1]
+local bucketKey = KEYS[2]
+local limit = tonumber(ARGV[1])
+local ttlSeconds = tonumber(ARGV[2])
+local capacity = tonumber(ARGV[4]) * 1000
+local refillPerMinute = tonumber(ARGV[5])
+local returned = tonumber(ARGV[6])
+local requested = tonumber(ARGV[7])
+
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local function loadBucket()
+    local bucket = redis.call('HMGET', bucketKey, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or capacity
+    local last = tonumber(bucket[2]) or now
+    return math.min(capacity, tokens + math.max(0, now - last) * refillPerMinute / 60)
+end
+
+local function saveBucket(tokens)
+    redis.call('HSET', bucketKey, 'tokens', math.floor(tokens), 'ts', now)
+    redis.call('PEXPIRE', bucketKey, math.ceil(capacity * 60 / refillPerMinute) + 1000)
+end
+
+-- 1. 每日配额（当日key已不存在时，归还的次数无处可还，直接丢弃）
+local used = redis.call('GET', usageKey)
+local seeded = false
+if used then
+    used = tonumber(used)
+    if returned > 0 then
+        returned = math.min(returned, used)
+        used = redis.call('DECRBY', usageKey, returned)
+    end
+else
+    local seed = tonumber(ARGV[3])
+    if seed < 0 then
+        return {-1, 0, 0}
+    end
+    used = seed
+    seeded = true
+    returned = 0
+end
+
+-- 2. 令牌桶：归还未用的令牌
+local tokens
+if capacity > 0 then
+    tokens = loadBucket()
+    if returned > 0 then
+        tokens = math.min(capacity, tokens + returned * 1000)
+        saveBucket(tokens)
+    end
+end
+
+if requested <= 0 then
+    return {limit - used, 0, 0}
+end
+if used >= limit then
+    if seeded then
+        redis.call('SET', usageKey, used, 'EX', ttlSeconds)
+    end
+    return {-2, 0, 0}
+end
+if capacity > 0 and tokens < 1000 then
+    return {-3, math.ceil((1000 - tokens) * 60 / refillPerMinute), 0}
+end
+
+-- 3. 租约大小：不超过申请值、剩余配额和可用令牌；剩余配额不足一个租约时逐次申请，保证接近上限时仍然精确
+local size = math.min(requested, limit - used)
+if limit - used < requested then
+    size = 1
+end
+if capacity > 0 then
+    size = math.min(size, math.floor(tokens / 1000))
+end
+
+if seeded then
+    redis.call('SET', usageKey, used + size, 'EX', ttlSeconds)
+else
+    redis.call('INCRBY', usageKey, size)
+    if redis.call('TTL', usageKey) < 0 then
+        redis.call('EXPIRE', usageKey, ttlSeconds)
+    end
+end
+if capacity > 0 then
+    saveBucket(tokens - size * 1000)
+end
+return {limit - used - size, 0, size}
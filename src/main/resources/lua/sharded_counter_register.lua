@@ -0,0 +1,11 @@
+-- 分片计数器登记分片数：只增不减，多个节点同时扩容时取最大值，读取方不会漏读已写入的分片
+-- 每次创建新分片时调用，过期时刻与各分片相同（计数的截止时刻），整个计数同时过期
+--
+-- KEYS[1]: 分片数key
+-- ARGV[1]: 写入方使用的分片数
+-- ARGV[2]: 计数的截止时刻（Unix毫秒时间戳）
+-- 返回：登记后的分片数
+local shards = math.max(tonumber(redis.call('GET', KEYS[1])) or 1, tonumber(ARGV[1]))
+redis.call('SET', KEYS[1], shards)
+redis.call('PEXPIREAT', KEYS[1], ARGV[2])
+return shards
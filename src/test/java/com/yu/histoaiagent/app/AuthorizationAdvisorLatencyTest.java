@@ -0,0 +1,166 @@
+package com.yu.histoaiagent.app;
+
+import com.yu.histoaiagent.advisor.AuthorizationAdvisor;
+import com.yu.histoaiagent.service.UserPermissionService;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.DefaultAroundAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 鉴权耗时测试（需要本地MySQL和Redis）
+ * - AuthorizationAdvisor.adviseCall：按顺序读取 vs 合并为一个pipeline
+ * - 限流开销：同一个配额脚本不限流 vs 限流
+ * 关闭租约，企业用户每次请求都执行配额脚本
+ */
+@SpringBootTest(properties = "user.quota-lease.enabled=false")
+class AuthorizationAdvisorLatencyTest {
+
+    private static final String USER_ID = "enterprise_user";
+    private static final String CONVERSATION_ID = "latency_test_conv";
+    private static final int ROUNDS = 2000;
+
+    @Autowired
+    private UserPermissionService userPermissionService;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.setField(userPermissionService, "pipelineEnabled", true);
+        userPermissionService.resetQuota(USER_ID);
+        redisTemplate.delete("conversation:message:count:" + CONVERSATION_ID);
+    }
+
+    @Test
+    void pipelinedAuthorizationLowersTailLatency() {
+        AuthorizationAdvisor advisor = new AuthorizationAdvisor(userPermissionService);
+
+        ReflectionTestUtils.setField(userPermissionService, "pipelineEnabled", false);
+        measure(advisor, 200);
+        long[] sequential = measure(advisor, ROUNDS);
+
+        ReflectionTestUtils.setField(userPermissionService, "pipelineEnabled", true);
+        measure(advisor, 200);
+        long[] pipelined = measure(advisor, ROUNDS);
+
+        System.out.printf("adviseCall sequential: p50 %d us, p99 %d us; pipelined: p50 %d us, p99 %d us%n",
+                percentile(sequential, 50), percentile(sequential, 99),
+                percentile(pipelined, 50), percentile(pipelined, 99));
+        assertEquals(2 * (ROUNDS + 200) * 2, userPermissionService.getConversationMessageCount(CONVERSATION_ID));
+    }
+
+    @Test
+    void limiterOverheadPerRequest() {
+        // 对比同一个配额脚本不限流（incrementUsage）与限流（tryConsumeQuota）时的单次耗时
+        var userInfo = userPermissionService.getUserInfo(USER_ID, false);
+        for (int i = 0; i < 200; i++) {
+            userPermissionService.incrementUsage(userInfo);
+            redisTemplate.delete("user:rate:" + USER_ID);
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+        }
+
+        long quotaOnlyNanos = 0;
+        long withLimiterNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            userPermissionService.incrementUsage(userInfo);
+            quotaOnlyNanos += System.nanoTime() - start;
+
+            // 企业用户突发上限50次，每次前清空令牌桶，测量的是放行路径而不是拒绝路径
+            redisTemplate.delete("user:rate:" + USER_ID);
+            start = System.nanoTime();
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+            withLimiterNanos += System.nanoTime() - start;
+        }
+        quotaOnlyNanos /= ROUNDS;
+        withLimiterNanos /= ROUNDS;
+
+        System.out.printf("quota script avg %d us, with token bucket avg %d us, limiter overhead %d us%n",
+                quotaOnlyNanos / 1000, withLimiterNanos / 1000, (withLimiterNanos - quotaOnlyNanos) / 1000);
+    }
+
+    @Test
+    void messageLimitReturnsConsumedQuota() {
+        // 免费用户单次对话最多50条消息
+        ReflectionTestUtils.setField(userPermissionService, "pipelineEnabled", true);
+        userPermissionService.resetQuota("free_user");
+        userPermissionService.incrementConversationMessageCount("free_user", CONVERSATION_ID, 50);
+        // 先用掉1次，当日计数存在时配额脚本与消息数读取在同一个pipeline中执行
+        userPermissionService.incrementUsage("free_user");
+
+        var userInfo = userPermissionService.getUserInfo("free_user", false);
+        assertTrue(userPermissionService.tryConsumeQuota(userInfo, CONVERSATION_ID).messageLimitExceeded());
+        // 脚本消耗的1次已归还
+        assertEquals(1, userPermissionService.getTodayUsageCount("free_user"));
+        userPermissionService.resetQuota("free_user");
+    }
+
+    /**
+     * @return 每次调用的耗时（微秒）
+     */
+    private long[] measure(AuthorizationAdvisor advisor, int rounds) {
+        long[] micros = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            // 企业用户突发上限50次，每次前清空令牌桶，只测量鉴权本身
+            redisTemplate.delete("user:rate:" + USER_ID);
+            CallAdvisorChain chain = DefaultAroundAdvisorChain.builder(ObservationRegistry.NOOP)
+                    .pushAll(List.of(advisor, new TerminalAdvisor()))
+                    .build();
+            ChatClientRequest request = ChatClientRequest.builder()
+                    .prompt(new Prompt("你好"))
+                    .context(Map.of(AuthorizationAdvisor.USER_ID_PARAM, USER_ID,
+                            ChatMemory.CONVERSATION_ID, CONVERSATION_ID))
+                    .build();
+
+            long start = System.nanoTime();
+            chain.nextCall(request);
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        return micros;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /**
+     * 代替模型调用，直接返回空响应
+     */
+    private static class TerminalAdvisor implements CallAdvisor {
+
+        @Override
+        public ChatClientResponse adviseCall(ChatClientRequest request, CallAdvisorChain chain) {
+            return new ChatClientResponse(null, Map.of());
+        }
+
+        @Override
+        public String getName() {
+            return "TerminalAdvisor";
+        }
+
+        @Override
+        public int getOrder() {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
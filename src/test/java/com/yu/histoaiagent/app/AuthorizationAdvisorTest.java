@@ -1,11 +1,35 @@
 package com.yu.histoaiagent.app;
 
+import com.yu.histoaiagent.advisor.AuthorizationAdvisor;
+import com.yu.histoaiagent.enums.UserRole;
 import com.yu.histoaiagent.exception.AuthorizationException;
+import com.yu.histoaiagent.mapper.SysUserMapper;
+import com.yu.histoaiagent.service.QuotaLeaseManager;
 import com.yu.histoaiagent.service.UserPermissionService;
+import com.yu.histoaiagent.service.UserProfileCache;
+import io.micrometer.observation.ObservationRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.DefaultAroundAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisTemplate;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -18,8 +42,22 @@ class AuthorizationAdvisorTest {
     @Autowired
     private UserPermissionService userPermissionService;
 
+    @Autowired
+    private QuotaLeaseManager quotaLeaseManager;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @Autowired
+    private SysUserMapper sysUserMapper;
+
+    @Autowired
+    private UserProfileCache userProfileCache;
+
     @BeforeEach
     void setUp() {
+        // 免费用户的角色可能被之前的运行改掉，其他测试依赖免费用户的配额和限流参数
+        restoreFreeUser();
         // 重置所有用户的配额
         userPermissionService.resetQuota("free_user");
         userPermissionService.resetQuota("trial_user");
@@ -89,10 +127,13 @@ class AuthorizationAdvisorTest {
         
         // 升级为VIP
         userPermissionService.upgradeToVip("free_user", 30);
-        
-        userInfo = userPermissionService.getUserInfo("free_user");
-        assertEquals("VIP用户", userInfo.getRole().getDesc());
-        assertTrue(userInfo.isValid());
+        try {
+            userInfo = userPermissionService.getUserInfo("free_user");
+            assertEquals("VIP用户", userInfo.getRole().getDesc());
+            assertTrue(userInfo.isValid());
+        } finally {
+            restoreFreeUser();
+        }
     }
 
     @Test
@@ -133,4 +174,251 @@ class AuthorizationAdvisorTest {
         userInfo = userPermissionService.getUserInfo("free_user");
         assertEquals(7, userInfo.getRemainingQuota());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testTryConsumeQuotaStopsAtDailyLimit() {
+        // 先用不限流的计数把免费用户用到只剩1次
+        for (int i = 0; i < 9; i++) {
+            userPermissionService.incrementUsage("free_user");
+        }
+        var userInfo = userPermissionService.getUserInfo("free_user", false);
+        assertEquals(0, userPermissionService.tryConsumeQuota(userInfo).remaining());
+        assertTrue(userPermissionService.tryConsumeQuota(userInfo).quotaExhausted());
+        // 被拒绝的请求不计数
+        assertEquals(10, userPermissionService.getTodayUsageCount("free_user"));
+    }
+
+    @Test
+    void testConcurrentConsumeIsLimitedByBurst() throws InterruptedException {
+        // 免费用户突发上限3次，50个并发请求只能有3个通过，其余被限流且不计数
+        int requests = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger granted = new AtomicInteger();
+        AtomicInteger limited = new AtomicInteger();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    var userInfo = userPermissionService.getUserInfo("free_user", false);
+                    var decision = userPermissionService.tryConsumeQuota(userInfo);
+                    if (decision.allowed()) {
+                        granted.incrementAndGet();
+                    } else if (decision.rateLimited()) {
+                        limited.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(UserRole.FREE.getBurstCapacity(), granted.get());
+        assertEquals(requests - granted.get(), limited.get());
+        assertEquals(granted.get(), userPermissionService.getTodayUsageCount("free_user"));
+    }
+
+    @Test
+    void testRateLimitReturnsRetryAfter() {
+        var userInfo = userPermissionService.getUserInfo("free_user", false);
+        for (int i = 0; i < UserRole.FREE.getBurstCapacity(); i++) {
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+        }
+        var decision = userPermissionService.tryConsumeQuota(userInfo);
+        assertTrue(decision.rateLimited());
+        // 每分钟补充6个令牌，下一个令牌最多等10秒
+        assertTrue(decision.retryAfterMillis() > 0 && decision.retryAfterMillis() <= 10_000);
+
+        AuthorizationException e = AuthorizationException.rateLimited("free_user", decision.retryAfterMillis());
+        assertEquals("RATE_LIMITED", e.getErrorCode());
+        assertTrue(e.getRetryAfterSeconds() >= 1 && e.getRetryAfterSeconds() <= 10);
+    }
+
+    @Test
+    void testLeasedQuotaNeverExceedsDailyLimit() throws InterruptedException {
+        // VIP用户每天500次，先用到只剩10次，再并发请求
+        for (int i = 0; i < 490; i++) {
+            userPermissionService.incrementUsage("vip_user");
+        }
+        int requests = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger granted = new AtomicInteger();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    var userInfo = userPermissionService.getUserInfo("vip_user", false);
+                    if (userPermissionService.tryConsumeQuota(userInfo).allowed()) {
+                        granted.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        quotaLeaseManager.releaseAll();
+        assertEquals(10, granted.get());
+        assertEquals(500, userPermissionService.getTodayUsageCount("vip_user"));
+    }
+
+    @Test
+    void testUnusedLeaseIsReturned() {
+        var userInfo = userPermissionService.getUserInfo("vip_user", false);
+        long leaseRequests = quotaLeaseManager.leaseRequests();
+        // 租约大小 1、2、4 依次加倍，5次调用只有3次访问Redis，第三个租约还剩2次
+        for (int i = 0; i < 5; i++) {
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+        }
+        assertEquals(3, quotaLeaseManager.leaseRequests() - leaseRequests);
+        assertEquals(7, userPermissionService.getTodayUsageCount("vip_user"));
+
+        assertEquals(2, quotaLeaseManager.releaseAll());
+        assertEquals(5, userPermissionService.getTodayUsageCount("vip_user"));
+    }
+
+    @Test
+    void testLeaseOverheadPerRequest() {
+        // 对比每次执行配额脚本（incrementUsage）与租约本地消耗（tryConsumeQuota，企业用户）的单次耗时
+        // 限流本身的开销见 AuthorizationAdvisorLatencyTest.limiterOverheadPerRequest
+        var userInfo = userPermissionService.getUserInfo("enterprise_user", false);
+        for (int i = 0; i < 200; i++) {
+            userPermissionService.incrementUsage(userInfo);
+            // 企业用户突发上限50次，每次前清空令牌桶，避免预热耗尽令牌后测到的是拒绝路径
+            redisTemplate.delete("user:rate:enterprise_user");
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+        }
+
+        int rounds = 2000;
+        long quotaOnlyNanos = 0;
+        long leasedNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            userPermissionService.incrementUsage(userInfo);
+            quotaOnlyNanos += System.nanoTime() - start;
+
+            redisTemplate.delete("user:rate:enterprise_user");
+            start = System.nanoTime();
+            assertTrue(userPermissionService.tryConsumeQuota(userInfo).allowed());
+            leasedNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("quota script avg %d us, leased quota with token bucket avg %d us%n",
+                quotaOnlyNanos / rounds / 1000, leasedNanos / rounds / 1000);
+
+        quotaLeaseManager.releaseAll();
+        userPermissionService.resetQuota("enterprise_user");
+    }
+
+    @Test
+    void testStreamCompletionCommitsBothMessages() {
+        String conversationId = "stream_" + UUID.randomUUID();
+        Flux<ChatClientResponse> model = Flux.just(chunk(), chunk(), chunk());
+
+        assertEquals(3, stream("free_user", conversationId, model).collectList().block().size());
+
+        awaitMessageCount(conversationId, 2);
+        assertEquals(1, userPermissionService.getTodayUsageCount("free_user"));
+    }
+
+    @Test
+    void testStreamCancelCommitsUserMessageOnly() {
+        String conversationId = "stream_" + UUID.randomUUID();
+        Flux<ChatClientResponse> model = Flux.concat(Flux.just(chunk()), Flux.never());
+
+        // 收到第一段后客户端断开
+        stream("free_user", conversationId, model).take(1).blockLast();
+
+        awaitMessageCount(conversationId, 1);
+        // 已经有输出，配额照常消耗
+        assertEquals(1, userPermissionService.getTodayUsageCount("free_user"));
+    }
+
+    @Test
+    void testStreamErrorBeforeOutputRefundsQuota() {
+        String conversationId = "stream_" + UUID.randomUUID();
+        Flux<ChatClientResponse> model = Flux.error(new IllegalStateException("model unavailable"));
+
+        assertThrows(IllegalStateException.class, () -> stream("free_user", conversationId, model).blockLast());
+
+        awaitMessageCount(conversationId, 1);
+        assertEquals(0, userPermissionService.getTodayUsageCount("free_user"));
+    }
+
+    @Test
+    void testStreamRejectedBeforeModelCall() {
+        userPermissionService.disableUser("free_user");
+        try {
+            Flux<ChatClientResponse> model = Flux.error(new AssertionError("model should not be called"));
+            AuthorizationException e = assertThrows(AuthorizationException.class,
+                    () -> stream("free_user", "stream_" + UUID.randomUUID(), model).blockLast());
+            assertEquals("USER_DISABLED", e.getErrorCode());
+        } finally {
+            userPermissionService.enableUser("free_user");
+        }
+    }
+
+    /**
+     * 经过 AuthorizationAdvisor 的流式调用，模型由给定的Flux代替
+     */
+    private Flux<ChatClientResponse> stream(String userId, String conversationId, Flux<ChatClientResponse> model) {
+        StreamAdvisor terminal = new StreamAdvisor() {
+            @Override
+            public Flux<ChatClientResponse> adviseStream(ChatClientRequest request, StreamAdvisorChain chain) {
+                return model;
+            }
+
+            @Override
+            public String getName() {
+                return "TerminalAdvisor";
+            }
+
+            @Override
+            public int getOrder() {
+                return Integer.MAX_VALUE;
+            }
+        };
+        StreamAdvisorChain chain = DefaultAroundAdvisorChain.builder(ObservationRegistry.NOOP)
+                .pushAll(List.of(new AuthorizationAdvisor(userPermissionService), terminal))
+                .build();
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt("你好"))
+                .context(Map.of(AuthorizationAdvisor.USER_ID_PARAM, userId, ChatMemory.CONVERSATION_ID, conversationId))
+                .build();
+        return chain.nextStream(request);
+    }
+
+    private static ChatClientResponse chunk() {
+        return new ChatClientResponse(null, Map.of());
+    }
+
+    /**
+     * 流结束后的结算在后台线程执行，等待会话消息数达到预期
+     */
+    private void awaitMessageCount(String conversationId, int expected) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (userPermissionService.getConversationMessageCount(conversationId) < expected
+                && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        assertEquals(expected, userPermissionService.getConversationMessageCount(conversationId));
+    }
+
+    private void restoreFreeUser() {
+        sysUserMapper.updateRole("free_user", "FREE");
+        sysUserMapper.updateVipExpireTime("free_user", null);
+        userProfileCache.invalidate("free_user");
+    }
+}
@@ -0,0 +1,217 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ChatMemoryMigrator 单元测试（内存中的源和目标，不依赖外部存储）
+ */
+class ChatMemoryMigratorTest {
+
+    private static final int CONVERSATIONS = 1000;
+
+    @TempDir
+    Path tempDir;
+
+    private final SortedSource source = new SortedSource();
+    private final InMemoryTarget target = new InMemoryTarget();
+
+    ChatMemoryMigratorTest() {
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            String id = String.format("conv-%05d", c);
+            for (int i = 0; i <= c % 5; i++) {
+                source.add(id, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+            }
+        }
+    }
+
+    @Test
+    void migratesAllConversationsWithVerifiedCounts() {
+        ChatMemoryMigrator.MigrationReport report = migrator().run();
+
+        assertTrue(report.succeeded());
+        assertEquals(CONVERSATIONS, report.conversations());
+        assertEquals(CONVERSATIONS, report.migrated());
+        for (String id : source.conversations.keySet()) {
+            assertEquals(source.get(id).size(), target.get(id).size());
+        }
+    }
+
+    @Test
+    void resumesFromCheckpointAfterFailure() {
+        target.failOn.add("conv-00600");
+        ChatMemoryMigrator.MigrationReport first = migrator().run();
+        assertFalse(first.succeeded());
+        assertEquals(List.of("conv-00600"), first.failedConversationIds());
+
+        target.failOn.clear();
+        source.reads.set(0);
+        ChatMemoryMigrator.MigrationReport second = migrator().run();
+
+        assertTrue(second.succeeded());
+        // 从失败所在的页继续，而不是从头开始
+        assertTrue(source.reads.get() < CONVERSATIONS / 2);
+        assertEquals(source.get("conv-00600").size(), target.get("conv-00600").size());
+
+        // 已完成的迁移再次启动直接结束
+        source.reads.set(0);
+        assertEquals(0, migrator().run().conversations());
+        assertEquals(0, source.reads.get());
+    }
+
+    @Test
+    void rerunWithoutCheckpointSkipsMigratedConversations() {
+        ChatMemoryMigrator.builder(source, source, target).pageSize(64).build().run();
+
+        ChatMemoryMigrator.MigrationReport rerun = ChatMemoryMigrator.builder(source, source, target)
+                .pageSize(64).build().run();
+
+        assertEquals(0, rerun.migrated());
+        assertEquals(CONVERSATIONS, rerun.skipped());
+    }
+
+    @Test
+    void partiallyWrittenTargetIsCompleted() {
+        // 上次中断在写入途中：目标只有源的前一部分
+        List<Message> expected = source.get("conv-00004");
+        target.add("conv-00004", expected.subList(0, 3));
+
+        ChatMemoryMigrator.MigrationReport report = migrator().run();
+
+        assertTrue(report.succeeded());
+        assertEquals(0, report.conflicts());
+        assertEquals(expected.stream().map(Message::getText).toList(),
+                target.get("conv-00004").stream().map(Message::getText).toList());
+    }
+
+    @Test
+    void conflictingTargetIsReportedNotOverwritten() {
+        // 切换后已有新的对话写入目标
+        target.add("conv-00003", source.get("conv-00003"));
+        target.add("conv-00003", List.of(new UserMessage("after cutover")));
+        // 内容与源不一致
+        target.add("conv-00009", List.of(new UserMessage("unrelated")));
+        List<Message> longer = target.get("conv-00003");
+        List<Message> diverged = target.get("conv-00009");
+
+        ChatMemoryMigrator.MigrationReport report = migrator().run();
+
+        assertTrue(report.succeeded());
+        assertEquals(2, report.conflicts());
+        assertEquals(List.of("conv-00003", "conv-00009"),
+                report.conflictConversationIds().stream().sorted().toList());
+        assertEquals(longer, target.get("conv-00003"));
+        assertEquals(diverged, target.get("conv-00009"));
+    }
+
+    @Test
+    void targetReaderIsUsedForSkipAndVerification() {
+        // 模拟分层记忆：目标自身的读取有副作用，核对改读底层存储
+        InMemoryTarget cold = new InMemoryTarget();
+        ChatMemory tiered = new ChatMemory() {
+            @Override
+            public void add(String conversationId, List<Message> messages) {
+                cold.add(conversationId, messages);
+            }
+
+            @Override
+            public List<Message> get(String conversationId) {
+                throw new AssertionError("migration must not read through the tiered target");
+            }
+
+            @Override
+            public void clear(String conversationId) {
+                cold.clear(conversationId);
+            }
+        };
+
+        ChatMemoryMigrator.MigrationReport report = ChatMemoryMigrator.builder(source, source, tiered)
+                .targetReader(cold)
+                .pageSize(64)
+                .build()
+                .run();
+
+        assertTrue(report.succeeded());
+        assertEquals(CONVERSATIONS, report.migrated());
+        assertEquals(source.get("conv-00004").size(), cold.get("conv-00004").size());
+    }
+
+    private ChatMemoryMigrator migrator() {
+        return ChatMemoryMigrator.builder(source, source, target)
+                .threads(4)
+                .pageSize(50)
+                .checkpoint(tempDir.resolve("migration.checkpoint"))
+                .build();
+    }
+
+    /**
+     * 按会话ID有序枚举的源，游标为上一页最后一个ID
+     */
+    private static class SortedSource implements ChatMemory, ConversationIdSource {
+
+        final ConcurrentSkipListMap<String, List<Message>> conversations = new ConcurrentSkipListMap<>();
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public void add(String conversationId, List<Message> messages) {
+            conversations.computeIfAbsent(conversationId, k -> new ArrayList<>()).addAll(messages);
+        }
+
+        @Override
+        public List<Message> get(String conversationId) {
+            reads.incrementAndGet();
+            return List.copyOf(conversations.getOrDefault(conversationId, List.of()));
+        }
+
+        @Override
+        public void clear(String conversationId) {
+            conversations.remove(conversationId);
+        }
+
+        @Override
+        public Page conversationIds(String cursor, int limit) {
+            Set<String> tail = cursor == null ? conversations.keySet() : conversations.tailMap(cursor, false).keySet();
+            List<String> ids = tail.stream().limit(limit).toList();
+            return new Page(ids, ids.size() < limit ? null : ids.get(ids.size() - 1));
+        }
+    }
+
+    private static class InMemoryTarget implements ChatMemory {
+
+        final Map<String, List<Message>> conversations = new ConcurrentHashMap<>();
+        final Set<String> failOn = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void add(String conversationId, List<Message> messages) {
+            if (failOn.contains(conversationId)) {
+                throw new IllegalStateException("injected failure");
+            }
+            conversations.computeIfAbsent(conversationId, k -> new ArrayList<>()).addAll(messages);
+        }
+
+        @Override
+        public List<Message> get(String conversationId) {
+            return List.copyOf(conversations.getOrDefault(conversationId, List.of()));
+        }
+
+        @Override
+        public void clear(String conversationId) {
+            conversations.remove(conversationId);
+        }
+    }
+}
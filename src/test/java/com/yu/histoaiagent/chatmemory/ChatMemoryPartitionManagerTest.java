@@ -0,0 +1,121 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.yu.histoaiagent.mapper.ChatMemoryPartitionMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ChatMemoryPartitionManager 单元测试（使用内存中的假Mapper，不依赖数据库）
+ */
+class ChatMemoryPartitionManagerTest {
+
+    private final FakePartitionMapper mapper = new FakePartitionMapper();
+    private final ChatMemoryPartitionManager manager =
+            new ChatMemoryPartitionManager(mapper, null, "Asia/Shanghai", 3, 24, 2, Duration.ofHours(1));
+
+    @Test
+    void splitsMaxPartitionIntoFutureMonths() {
+        mapper.partitions.put("ai_chat_memory", new ArrayList<>(List.of("p202610", "pmax")));
+
+        manager.ensurePartitionsThrough("ai_chat_memory", YearMonth.of(2026, 10), YearMonth.of(2026, 12));
+
+        assertEquals(List.of("p202610", "p202611", "p202612", "pmax"), mapper.partitions.get("ai_chat_memory"));
+        // 2027-01-01 00:00 Asia/Shanghai
+        assertTrue(mapper.ddl.get(0).contains("PARTITION p202612 VALUES LESS THAN (1798732800)"));
+    }
+
+    @Test
+    void archivesColdPartitionsBeforeDroppingThem() {
+        mapper.partitions.put("ai_chat_memory", new ArrayList<>(List.of("p202606", "p202607", "p202608", "pmax")));
+        mapper.partitions.put("ai_chat_memory_archive", new ArrayList<>(List.of("pmax")));
+
+        manager.archiveBefore(YearMonth.of(2026, 8));
+
+        assertEquals(List.of("p202608", "pmax"), mapper.partitions.get("ai_chat_memory"));
+        assertEquals(List.of("p202606", "p202607", "pmax"), mapper.partitions.get("ai_chat_memory_archive"));
+        assertEquals(List.of(
+                "split ai_chat_memory_archive", "copy p202606", "sync p202606", "drop ai_chat_memory.p202606",
+                "split ai_chat_memory_archive", "copy p202607", "sync p202607", "drop ai_chat_memory.p202607"),
+                mapper.calls);
+    }
+
+    @Test
+    void keepsPartitionWhenArchiveIsIncomplete() {
+        mapper.partitions.put("ai_chat_memory", new ArrayList<>(List.of("p202606", "p202607", "p202608", "pmax")));
+        mapper.partitions.put("ai_chat_memory_archive", new ArrayList<>(List.of("pmax")));
+        mapper.missingInArchive = 1;
+
+        manager.archiveBefore(YearMonth.of(2026, 8));
+
+        // 第一个分区核对不一致：不删除，也不继续归档更新的分区
+        assertEquals(List.of("p202606", "p202607", "p202608", "pmax"), mapper.partitions.get("ai_chat_memory"));
+        assertFalse(mapper.calls.stream().anyMatch(call -> call.startsWith("drop")));
+        assertFalse(mapper.calls.contains("copy p202607"));
+    }
+
+    @Test
+    void skipsUnpartitionedTable() {
+        manager.ensurePartitionsThrough("ai_chat_memory", YearMonth.of(2026, 10), YearMonth.of(2026, 12));
+        assertTrue(mapper.calls.isEmpty());
+    }
+
+    private static class FakePartitionMapper implements ChatMemoryPartitionMapper {
+
+        final Map<String, List<String>> partitions = new HashMap<>();
+        final List<String> calls = new ArrayList<>();
+        final List<String> ddl = new ArrayList<>();
+        long missingInArchive;
+
+        @Override
+        public List<String> listPartitions(String table) {
+            return List.copyOf(partitions.getOrDefault(table, List.of()));
+        }
+
+        @Override
+        public void splitMaxPartition(String table, String definitions) {
+            calls.add("split " + table);
+            ddl.add(definitions);
+            List<String> list = partitions.get(table);
+            int max = list.indexOf("pmax");
+            for (String definition : definitions.split(", ")) {
+                list.add(max++, definition.split(" ")[1]);
+            }
+        }
+
+        @Override
+        public int copyToArchive(String partition) {
+            calls.add("copy " + partition);
+            return 0;
+        }
+
+        @Override
+        public int syncDeletedToArchive(String partition) {
+            calls.add("sync " + partition);
+            return 0;
+        }
+
+        @Override
+        public long countLive(String partition) {
+            return 10;
+        }
+
+        @Override
+        public long countLiveArchived(String partition) {
+            return 10 - missingInArchive;
+        }
+
+        @Override
+        public void dropPartition(String table, String partition) {
+            calls.add("drop " + table + "." + partition);
+            partitions.get(table).remove(partition);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FileBasedChatMemory 单元测试（不依赖Spring容器）
+ */
+class FileBasedChatMemoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FileBasedChatMemory chatMemory;
+    private ConversationLayout layout;
+
+    @BeforeEach
+    void setUp() {
+        chatMemory = new FileBasedChatMemory(tempDir.toString());
+        layout = new ConversationLayout(tempDir);
+    }
+
+    @AfterEach
+    void tearDown() {
+        chatMemory.close();
+    }
+
+    @Test
+    void appendAndRead() {
+        chatMemory.add("conv", new UserMessage("你好"));
+        chatMemory.add("conv", List.of(new AssistantMessage("你好，有什么可以帮你？"), new UserMessage("我很烦恼")));
+
+        List<Message> messages = chatMemory.get("conv");
+        assertEquals(3, messages.size());
+        assertEquals("你好", messages.get(0).getText());
+        assertEquals("你好，有什么可以帮你？", messages.get(1).getText());
+        assertInstanceOf(AssistantMessage.class, messages.get(1));
+        assertEquals("我很烦恼", messages.get(2).getText());
+
+        List<Message> lastTwo = chatMemory.get("conv", 2);
+        assertEquals(2, lastTwo.size());
+        assertEquals("我很烦恼", lastTwo.get(1).getText());
+    }
+
+    @Test
+    void lastNReadsTailThroughIndex() {
+        for (int i = 0; i < 50; i++) {
+            chatMemory.add("conv", new UserMessage("msg-" + i));
+        }
+
+        List<Message> tail = chatMemory.get("conv", 3);
+        assertEquals(List.of("msg-47", "msg-48", "msg-49"), tail.stream().map(Message::getText).toList());
+        assertEquals(50, chatMemory.get("conv", 100).size());
+    }
+
+    @Test
+    void missingIndexIsRebuiltOnNextAppend() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            chatMemory.add("conv", new UserMessage("msg-" + i));
+        }
+        Files.delete(layout.indexFile("conv"));
+
+        // 索引缺失时退回全量读取
+        assertEquals("msg-9", chatMemory.get("conv", 1).get(0).getText());
+
+        chatMemory.add("conv", new UserMessage("msg-10"));
+        assertEquals(11 * Long.BYTES, Files.size(layout.indexFile("conv")));
+        assertEquals(List.of("msg-8", "msg-9", "msg-10"),
+                chatMemory.get("conv", 3).stream().map(Message::getText).toList());
+    }
+
+    @Test
+    void uncommittedTailIsIgnoredAndOverwritten() throws Exception {
+        chatMemory.add("conv", new UserMessage("第一条"));
+        Path file = layout.logFile("conv");
+
+        // 模拟崩溃：在提交长度之后写入半截记录，但不更新文件头
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(1000);
+            raf.write(new byte[]{1, 2, 3});
+        }
+
+        assertEquals(1, chatMemory.get("conv").size());
+
+        chatMemory.add("conv", new UserMessage("第二条"));
+        List<Message> messages = chatMemory.get("conv");
+        assertEquals(2, messages.size());
+        assertEquals("第二条", messages.get(1).getText());
+    }
+
+    @Test
+    void committedRecordsSurviveCorruptHeader() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            chatMemory.add("conv", new UserMessage("msg-" + i));
+        }
+        chatMemory.close();
+        Path file = layout.logFile("conv");
+
+        // 模拟刷盘顺序被打乱：文件头中的提交长度超出物理长度，且末尾有半截记录
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(1000);
+            raf.write(new byte[]{1, 2, 3});
+            raf.seek(8);
+            raf.writeLong(raf.length() + 4096);
+        }
+
+        chatMemory = FileBasedChatMemory.builder(tempDir.toString()).build();
+        assertEquals(List.of("msg-0", "msg-1", "msg-2"),
+                chatMemory.get("conv").stream().map(Message::getText).toList());
+
+        chatMemory.add("conv", new UserMessage("msg-3"));
+        assertEquals(List.of("msg-2", "msg-3"),
+                chatMemory.get("conv", 2).stream().map(Message::getText).toList());
+        assertEquals(4, chatMemory.get("conv").size());
+    }
+
+    @Test
+    void compactionKeepsNewestMessages() {
+        chatMemory.close();
+        chatMemory = FileBasedChatMemory.builder(tempDir.toString())
+                .maxMessages(3)
+                .compactInterval(Duration.ofHours(1))
+                .build();
+        for (int i = 0; i < 10; i++) {
+            chatMemory.add("conv", new UserMessage("msg-" + i));
+        }
+
+        chatMemory.compact("conv");
+
+        List<Message> messages = chatMemory.get("conv");
+        assertEquals(3, messages.size());
+        assertEquals("msg-7", messages.get(0).getText());
+        assertEquals("msg-9", messages.get(2).getText());
+    }
+
+    @Test
+    void clearRemovesConversation() {
+        chatMemory.add("conv", new UserMessage("你好"));
+        chatMemory.clear("conv");
+
+        assertTrue(chatMemory.get("conv").isEmpty());
+        assertFalse(Files.exists(layout.logFile("conv")));
+        assertFalse(Files.exists(layout.indexFile("conv")));
+    }
+
+    @Test
+    void conversationsAreShardedIntoSubdirectories() {
+        chatMemory.add("conv", new UserMessage("你好"));
+
+        Path file = layout.logFile("conv");
+        assertTrue(Files.exists(file));
+        assertEquals(tempDir, file.getParent().getParent().getParent());
+        assertFalse(Files.exists(tempDir.resolve("conv.log")));
+    }
+
+    @Test
+    void conversationsNeverExpireByDefault() throws Exception {
+        chatMemory.add("idle", new UserMessage("很久以前"));
+        Files.setLastModifiedTime(layout.logFile("idle"),
+                FileTime.fromMillis(System.currentTimeMillis() - Duration.ofDays(365).toMillis()));
+
+        for (int i = 0; i < ConversationLayout.SHARD_COUNT; i++) {
+            assertEquals(0, chatMemory.sweepExpired());
+        }
+        assertEquals(1, chatMemory.get("idle").size());
+    }
+
+    @Test
+    void idleConversationsExpire() throws Exception {
+        chatMemory.close();
+        chatMemory = FileBasedChatMemory.builder(tempDir.toString())
+                .ttl(Duration.ofDays(1))
+                .sweepInterval(Duration.ofHours(1))
+                .build();
+        chatMemory.add("idle", new UserMessage("很久以前"));
+        chatMemory.add("active", new UserMessage("刚刚"));
+        Files.setLastModifiedTime(layout.logFile("idle"),
+                FileTime.fromMillis(System.currentTimeMillis() - Duration.ofDays(2).toMillis()));
+
+        // 每轮只扫描一个一级分片，扫完全部分片
+        int expired = 0;
+        for (int i = 0; i < ConversationLayout.SHARD_COUNT; i++) {
+            expired += chatMemory.sweepExpired();
+        }
+
+        assertEquals(1, expired);
+        assertTrue(chatMemory.get("idle").isEmpty());
+        assertFalse(Files.exists(layout.indexFile("idle")));
+        assertEquals(1, chatMemory.get("active").size());
+    }
+
+    @Test
+    void flatFilesAreMigratedOnAccess() throws Exception {
+        chatMemory.add("conv", List.of(new UserMessage("旧消息-1"), new AssistantMessage("旧消息-2")));
+        chatMemory.close();
+        // 模拟旧版本的平铺布局
+        Files.move(layout.logFile("conv"), tempDir.resolve("conv.log"));
+        Files.move(layout.indexFile("conv"), tempDir.resolve("conv.idx"));
+
+        chatMemory = new FileBasedChatMemory(tempDir.toString());
+        chatMemory.add("conv", new UserMessage("新消息"));
+
+        assertEquals(List.of("旧消息-1", "旧消息-2", "新消息"),
+                chatMemory.get("conv").stream().map(Message::getText).toList());
+        assertFalse(Files.exists(tempDir.resolve("conv.log")));
+        assertFalse(Files.exists(tempDir.resolve("conv.idx")));
+        assertEquals(3 * Long.BYTES, Files.size(layout.indexFile("conv")));
+    }
+
+    @Test
+    void enumeratesAllConversationsPageByPage() throws Exception {
+        Set<String> expected = new HashSet<>();
+        for (int c = 0; c < 50; c++) {
+            chatMemory.add("conv-" + c, new UserMessage("你好"));
+            expected.add("conv-" + c);
+        }
+        // 尚未迁移的平铺文件也会被枚举到
+        chatMemory.close();
+        Files.move(layout.logFile("conv-0"), tempDir.resolve("conv-0.log"));
+        Files.move(layout.indexFile("conv-0"), tempDir.resolve("conv-0.idx"));
+        chatMemory = new FileBasedChatMemory(tempDir.toString());
+
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            ConversationIdSource.Page page = chatMemory.conversationIds(cursor, 7);
+            seen.addAll(page.conversationIds());
+            cursor = page.nextCursor();
+        } while (cursor != null);
+
+        assertEquals(expected.size(), seen.size());
+        assertEquals(expected, new HashSet<>(seen));
+        // 从中间的游标继续得到相同的后续结果
+        ConversationIdSource.Page first = chatMemory.conversationIds(null, 7);
+        assertEquals(chatMemory.conversationIds(first.nextCursor(), 7).conversationIds(),
+                chatMemory.conversationIds(first.nextCursor(), 7).conversationIds());
+    }
+
+    @Test
+    void activeConversationIsServedFromCache() throws Exception {
+        chatMemory.add("conv", new UserMessage("你好"));
+        chatMemory.add("conv", new AssistantMessage("你好，有什么可以帮你？"));
+
+        // 写穿：追加后的内容直接可见，删除磁盘文件后仍从缓存读取
+        Files.delete(layout.indexFile("conv"));
+        Files.delete(layout.logFile("conv"));
+        assertEquals(2, chatMemory.get("conv").size());
+        assertEquals("你好，有什么可以帮你？", chatMemory.get("conv", 1).get(0).getText());
+
+        ChatMemoryCacheStats stats = chatMemory.cacheStats();
+        assertEquals(2, stats.hits());
+        assertEquals(0, stats.misses());
+        assertEquals(1, stats.entries());
+    }
+
+    @Test
+    void cacheEvictsLeastRecentlyUsedByWeight() {
+        chatMemory.close();
+        chatMemory = FileBasedChatMemory.builder(tempDir.toString())
+                .cacheMaxBytes(4 * 1024)
+                .build();
+        String text = "x".repeat(1000);
+        for (int c = 0; c < 10; c++) {
+            chatMemory.add("conv-" + c, new UserMessage(text));
+        }
+
+        ChatMemoryCacheStats stats = chatMemory.cacheStats();
+        assertTrue(stats.weightBytes() <= 4 * 1024);
+        assertTrue(stats.evictions() > 0);
+        // 被淘汰的会话从磁盘读取，结果不变
+        assertEquals(text, chatMemory.get("conv-0").get(0).getText());
+        assertEquals(1, chatMemory.cacheStats().misses());
+    }
+
+    @Test
+    void concurrentWritersDoNotLoseTurns() throws Exception {
+        int threads = 64;
+        int turnsPerThread = 100;
+        int conversations = 8;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int threadId = t;
+            futures.add(pool.submit(() -> {
+                start.await();
+                String conversationId = "conv-" + (threadId % conversations);
+                for (int i = 0; i < turnsPerThread; i++) {
+                    // 一轮对话：用户消息 + AI回复，同时穿插读取
+                    chatMemory.add(conversationId, List.of(
+                            new UserMessage(threadId + "-" + i + "-q"),
+                            new AssistantMessage(threadId + "-" + i + "-a")));
+                    chatMemory.get(conversationId, 4);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+
+        // 重新打开，断言读的是磁盘上的日志而不是堆内缓存
+        chatMemory.close();
+        chatMemory = new FileBasedChatMemory(tempDir.toString());
+
+        int expectedPerConversation = threads / conversations * turnsPerThread * 2;
+        for (int c = 0; c < conversations; c++) {
+            List<Message> messages = chatMemory.get("conv-" + c);
+            assertEquals(expectedPerConversation, messages.size());
+
+            // 每轮的问答成对相邻写入，且没有重复
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < messages.size(); i += 2) {
+                String question = messages.get(i).getText();
+                String answer = messages.get(i + 1).getText();
+                assertTrue(question.endsWith("-q"));
+                assertEquals(question.substring(0, question.length() - 2) + "-a", answer);
+                assertTrue(seen.add(question));
+            }
+            assertEquals((long) expectedPerConversation * Long.BYTES,
+                    Files.size(layout.indexFile("conv-" + c)));
+        }
+    }
+}
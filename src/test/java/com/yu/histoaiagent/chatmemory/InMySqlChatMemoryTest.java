@@ -0,0 +1,116 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.yu.histoaiagent.entity.MysqlChatMemory;
+import com.yu.histoaiagent.mapper.MysqlChatMemoryMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * InMySqlChatMemory 测试（需要本地MySQL）
+ */
+@SpringBootTest
+class InMySqlChatMemoryTest {
+
+    private static final int LARGE_CONVERSATION_SIZE = 10_000;
+    private static final int INSERT_CHUNK = 1_000;
+
+    @Autowired
+    private InMySqlChatMemory chatMemory;
+
+    @Autowired
+    private MysqlChatMemoryMapper mysqlChatMemoryMapper;
+
+    private String conversationId;
+
+    @BeforeEach
+    void setUp() {
+        conversationId = "bench-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        chatMemory.clear(conversationId);
+    }
+
+    @Test
+    void lastNReturnsNewestMessagesInOrder() {
+        for (int i = 0; i < 20; i++) {
+            chatMemory.add(conversationId, List.of(
+                    new UserMessage("q-" + i),
+                    new AssistantMessage("a-" + i)));
+        }
+
+        List<Message> tail = chatMemory.get(conversationId, 3);
+        assertEquals(List.of("a-18", "q-19", "a-19"), tail.stream().map(Message::getText).toList());
+        assertEquals(40, chatMemory.get(conversationId).size());
+    }
+
+    @Test
+    void activeConversationIsServedFromCache() {
+        chatMemory.add(conversationId, List.of(new UserMessage("你好"), new AssistantMessage("你好，有什么可以帮你？")));
+        chatMemory.get(conversationId);
+        long missesBefore = chatMemory.cacheStats().misses();
+
+        // 追加写入缓存，之后的读取不再查库
+        chatMemory.add(conversationId, List.of(new UserMessage("我很烦恼"), new AssistantMessage("愿意说说吗？")));
+        assertEquals(4, chatMemory.get(conversationId).size());
+        assertEquals("愿意说说吗？", chatMemory.get(conversationId, 1).get(0).getText());
+        assertEquals(missesBefore, chatMemory.cacheStats().misses());
+
+        chatMemory.clear(conversationId);
+        assertTrue(chatMemory.get(conversationId).isEmpty());
+    }
+
+    @Test
+    void tailQueryOnLargeConversation() {
+        List<MysqlChatMemory> chunk = new ArrayList<>(INSERT_CHUNK);
+        for (int i = 0; i < LARGE_CONVERSATION_SIZE; i++) {
+            MysqlChatMemory record = new MysqlChatMemory();
+            record.setChatId(conversationId);
+            record.setType(i % 2 == 0 ? "user" : "assistant");
+            record.setContent("msg-" + i);
+            chunk.add(record);
+            if (chunk.size() == INSERT_CHUNK) {
+                mysqlChatMemoryMapper.insertBatch(chunk);
+                chunk = new ArrayList<>(INSERT_CHUNK);
+            }
+        }
+
+        // 预热
+        for (int i = 0; i < 5; i++) {
+            chatMemory.get(conversationId, 20);
+        }
+
+        int rounds = 100;
+        long start = System.nanoTime();
+        List<Message> tail = null;
+        for (int i = 0; i < rounds; i++) {
+            tail = chatMemory.get(conversationId, 20);
+        }
+        long tailMicros = (System.nanoTime() - start) / 1000 / rounds;
+
+        start = System.nanoTime();
+        List<Message> all = chatMemory.get(conversationId);
+        long fullMicros = (System.nanoTime() - start) / 1000;
+
+        System.out.printf("%d rows: get(lastN=20) avg %d us, full get %d us%n",
+                LARGE_CONVERSATION_SIZE, tailMicros, fullMicros);
+
+        assertEquals(LARGE_CONVERSATION_SIZE, all.size());
+        assertEquals(20, tail.size());
+        assertEquals("msg-" + (LARGE_CONVERSATION_SIZE - 20), tail.get(0).getText());
+        assertEquals("msg-" + (LARGE_CONVERSATION_SIZE - 1), tail.get(19).getText());
+    }
+}
@@ -0,0 +1,49 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 异步写入队列已满、改为同步写入时的顺序测试（需要本地MySQL）
+ * 队列容量为1且不等待，刷盘间隔拉长，使大部分轮次入队失败
+ */
+@SpringBootTest(properties = {
+        "chat-memory.mysql.write-behind.enabled=true",
+        "chat-memory.mysql.write-behind.queue-capacity=1",
+        "chat-memory.mysql.write-behind.flush-interval-ms=200",
+        "chat-memory.mysql.write-behind.offer-timeout-ms=0",
+        "chat-memory.mysql.cache.max-bytes=0"
+})
+class MysqlChatMemoryWriteBehindOverflowTest {
+
+    @Autowired
+    private InMySqlChatMemory chatMemory;
+
+    @Test
+    void synchronousFallbackKeepsConversationOrder() throws Exception {
+        String conversationId = "write-behind-overflow-" + UUID.randomUUID();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            chatMemory.add(conversationId, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+            expected.add("q-" + i);
+            expected.add("a-" + i);
+        }
+
+        // 等队列中的副本刷盘（已同步写入的会被跳过），再按id顺序读库
+        Thread.sleep(1000);
+        List<String> actual = chatMemory.get(conversationId).stream().map(Message::getText).toList();
+        assertEquals(expected, actual);
+
+        chatMemory.clear(conversationId);
+    }
+}
@@ -0,0 +1,111 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.yu.histoaiagent.entity.MysqlChatMemory;
+import com.yu.histoaiagent.mapper.MysqlChatMemoryMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MySQL对话记忆异步写入测试（需要本地MySQL）
+ */
+@SpringBootTest(properties = "chat-memory.mysql.write-behind.enabled=true")
+class MysqlChatMemoryWriteBehindTest {
+
+    @Autowired
+    private InMySqlChatMemory chatMemory;
+
+    @Autowired
+    private MysqlChatMemoryMapper mysqlChatMemoryMapper;
+
+    @Test
+    void readsSeeQueuedMessagesAndFlushedRowsOnce() throws Exception {
+        String conversationId = "write-behind-" + UUID.randomUUID();
+        for (int i = 0; i < 50; i++) {
+            chatMemory.add(conversationId, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+            // 刚写入的消息无论是否已落库都能立即读到，且不重复
+            List<Message> tail = chatMemory.get(conversationId, 2);
+            assertEquals(List.of("q-" + i, "a-" + i), tail.stream().map(Message::getText).toList());
+        }
+        assertEquals(100, chatMemory.get(conversationId).size());
+
+        // 等待刷盘完成后结果不变
+        Thread.sleep(500);
+        List<Message> all = chatMemory.get(conversationId);
+        assertEquals(100, all.size());
+        assertEquals("a-49", all.get(99).getText());
+
+        chatMemory.clear(conversationId);
+        assertTrue(chatMemory.get(conversationId).isEmpty());
+    }
+
+    @Test
+    void failedFlushIsRetriedWithoutLosingTurns() throws Exception {
+        // 前5次insertBatch失败，超过单个周期的重试次数，模拟一次短暂的数据库故障
+        AtomicInteger failures = new AtomicInteger(5);
+        MysqlChatMemoryMapper flakyMapper = (MysqlChatMemoryMapper) Proxy.newProxyInstance(
+                MysqlChatMemoryMapper.class.getClassLoader(), new Class<?>[]{MysqlChatMemoryMapper.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("insertBatch") && failures.getAndDecrement() > 0) {
+                        throw new IllegalStateException("database unavailable");
+                    }
+                    try {
+                        return method.invoke(mysqlChatMemoryMapper, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        MysqlChatMemoryWriteBehind writeBehind = new MysqlChatMemoryWriteBehind(flakyMapper, 100, 5, 500, 1000);
+
+        String conversationId = "write-behind-retry-" + UUID.randomUUID();
+        List<String> expected = new ArrayList<>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(writeBehind.enqueue(conversationId, List.of(record(conversationId, "user", "q-" + i),
+                        record(conversationId, "assistant", "a-" + i))));
+                expected.add("q-" + i);
+                expected.add("a-" + i);
+            }
+
+            // 故障期间消息仍可读到
+            Thread.sleep(500);
+            assertEquals(expected, writeBehind.pendingSnapshot(conversationId).stream()
+                    .map(MysqlChatMemory::getContent).toList());
+
+            // 恢复后全部按顺序落库
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!writeBehind.pendingSnapshot(conversationId).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertTrue(writeBehind.pendingSnapshot(conversationId).isEmpty());
+            List<String> persisted = mysqlChatMemoryMapper.selectList(new QueryWrapper<MysqlChatMemory>()
+                            .eq("chat_id", conversationId).orderByAsc("id"))
+                    .stream().map(MysqlChatMemory::getContent).toList();
+            assertEquals(expected, persisted);
+        } finally {
+            writeBehind.shutdown();
+            mysqlChatMemoryMapper.delete(new QueryWrapper<MysqlChatMemory>().eq("chat_id", conversationId));
+        }
+    }
+
+    private static MysqlChatMemory record(String conversationId, String type, String content) {
+        MysqlChatMemory record = new MysqlChatMemory();
+        record.setChatId(conversationId);
+        record.setType(type);
+        record.setContent(content);
+        return record;
+    }
+}
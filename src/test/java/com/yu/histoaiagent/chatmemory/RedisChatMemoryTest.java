@@ -0,0 +1,60 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RedisChatMemory 测试（需要本地Redis）
+ */
+@SpringBootTest
+class RedisChatMemoryTest {
+
+    @Autowired
+    private RedisChatMemory chatMemory;
+
+    private String conversationId;
+
+    @BeforeEach
+    void setUp() {
+        conversationId = "test-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        chatMemory.clear(conversationId);
+    }
+
+    @Test
+    void appendKeepsNewestMessagesWithinLimit() {
+        for (int i = 0; i < 60; i++) {
+            chatMemory.add(conversationId, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+        }
+
+        // 上限100条，最早的20条被裁掉
+        assertEquals(100, chatMemory.size(conversationId));
+        List<Message> all = chatMemory.get(conversationId);
+        assertEquals("q-10", all.get(0).getText());
+        assertEquals("a-59", all.get(99).getText());
+    }
+
+    @Test
+    void lastNReadsTail() {
+        chatMemory.add(conversationId, List.of(new UserMessage("q-0"), new AssistantMessage("a-0")));
+        chatMemory.add(conversationId, List.of(new UserMessage("q-1"), new AssistantMessage("a-1")));
+
+        assertEquals(List.of("a-0", "q-1", "a-1"),
+                chatMemory.get(conversationId, 3).stream().map(Message::getText).toList());
+        assertEquals(4, chatMemory.get(conversationId, 10).size());
+    }
+}
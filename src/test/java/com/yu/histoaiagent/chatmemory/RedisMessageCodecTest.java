@@ -0,0 +1,111 @@
+package com.yu.histoaiagent.chatmemory;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.jsontype.impl.LaissezFaireSubTypeValidator;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RedisMessageCodec 单元测试（不依赖Redis）
+ */
+class RedisMessageCodecTest {
+
+    @Test
+    void roundTrip() {
+        for (Message message : List.of(new UserMessage("你好"), new AssistantMessage("有什么可以帮你？"),
+                new SystemMessage("你是一位心理咨询师"), new AssistantMessage(""))) {
+            Message decoded = RedisMessageCodec.decode(RedisMessageCodec.encode(message));
+            assertEquals(message.getMessageType(), decoded.getMessageType());
+            assertEquals(message.getText(), decoded.getText());
+        }
+    }
+
+    @Test
+    void keepsTokenCountInHeader() {
+        UserMessage message = new UserMessage("你好");
+        message.getMetadata().put(TokenBudgetWindow.TOKEN_COUNT_METADATA, 7);
+        Message decoded = RedisMessageCodec.decode(RedisMessageCodec.encode(message));
+        assertEquals(7, decoded.getMetadata().get(TokenBudgetWindow.TOKEN_COUNT_METADATA));
+
+        Message unknown = RedisMessageCodec.decode(RedisMessageCodec.encode(new AssistantMessage("好的")));
+        assertFalse(unknown.getMetadata().containsKey(TokenBudgetWindow.TOKEN_COUNT_METADATA));
+    }
+
+    @Test
+    void decodesVersion1() {
+        byte[] v1 = {RedisMessageCodec.MAGIC, 1, 1, 0, 'o', 'k'};
+        Message decoded = RedisMessageCodec.decode(v1);
+        assertInstanceOf(AssistantMessage.class, decoded);
+        assertEquals("ok", decoded.getText());
+    }
+
+    @Test
+    void distinguishesLegacyJson() {
+        byte[] legacy = legacySerializer().serialize(legacyMap(new UserMessage("你好")));
+        assertFalse(RedisMessageCodec.isEncoded(legacy));
+        assertTrue(RedisMessageCodec.isEncoded(RedisMessageCodec.encode(new UserMessage("你好"))));
+    }
+
+    @Test
+    void smallerAndFasterThanTypedJackson() {
+        Jackson2JsonRedisSerializer<Object> jackson = legacySerializer();
+        Message message = new UserMessage("最近工作压力很大，晚上总是睡不着，白天也没有精神，不知道该怎么办。");
+
+        int binarySize = RedisMessageCodec.encode(message).length;
+        int jsonSize = jackson.serialize(legacyMap(message)).length;
+        System.out.printf("bytes per message: binary %d, typed JSON %d%n", binarySize, jsonSize);
+        assertTrue(binarySize < jsonSize);
+
+        int rounds = 100_000;
+        for (int i = 0; i < rounds; i++) {
+            RedisMessageCodec.decode(RedisMessageCodec.encode(message));
+            jackson.deserialize(jackson.serialize(legacyMap(message)));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            RedisMessageCodec.decode(RedisMessageCodec.encode(message));
+        }
+        long binaryNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            jackson.deserialize(jackson.serialize(legacyMap(message)));
+        }
+        long jsonNanos = System.nanoTime() - start;
+        System.out.printf("encode+decode: binary %d ns/op, typed JSON %d ns/op%n",
+                binaryNanos / rounds, jsonNanos / rounds);
+    }
+
+    /**
+     * 与 RedisConfig 中 redisTemplate 相同的旧版值序列化器
+     */
+    private static Jackson2JsonRedisSerializer<Object> legacySerializer() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.activateDefaultTyping(
+                LaissezFaireSubTypeValidator.instance,
+                ObjectMapper.DefaultTyping.NON_FINAL,
+                JsonTypeInfo.As.PROPERTY
+        );
+        return new Jackson2JsonRedisSerializer<>(objectMapper, Object.class);
+    }
+
+    /**
+     * 旧版 RedisChatMemory 写入的消息结构
+     */
+    private static Map<String, Object> legacyMap(Message message) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("messageType", message.getMessageType().getValue());
+        map.put("content", message.getText());
+        return map;
+    }
+}
@@ -0,0 +1,222 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.MediaContent;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RollingSummaryCompactor 单元测试（使用桩模型和内存存储，不调用真实模型）
+ */
+class RollingSummaryCompactorTest {
+
+    private static final String ID = "conversation-1";
+
+    private final InMemoryChatMemory store = new InMemoryChatMemory();
+    private final List<Prompt> prompts = new ArrayList<>();
+    private Runnable duringModelCall = () -> { };
+
+    private final ChatModel stubModel = prompt -> {
+        prompts.add(prompt);
+        duringModelCall.run();
+        return new ChatResponse(List.of(new Generation(new AssistantMessage("来访者因工作压力失眠"))));
+    };
+
+    @Test
+    void replacesOlderTurnsWithSummary() {
+        RollingSummaryCompactor compactor = compactor(task -> { }, 100);
+        SummarizingChatMemory memory = (SummarizingChatMemory) compactor.wrap(store);
+        addTurns(memory, 0, 10);
+
+        Optional<RollingSummaryCompactor.CompactionResult> result = compactor.compact(memory, ID);
+
+        assertTrue(result.isPresent());
+        List<Message> messages = memory.get(ID);
+        assertEquals(5, messages.size());
+        assertTrue(RollingSummaryCompactor.isSummary(messages.get(0)));
+        assertEquals(List.of("问题8", "回答8", "问题9", "回答9"),
+                messages.subList(1, 5).stream().map(Message::getText).toList());
+        assertTrue(prompts.get(0).getContents().contains("来访者：问题0"));
+        assertEquals(20, result.get().messagesBefore());
+        assertTrue(result.get().tokensAfter() < result.get().tokensBefore());
+        assertEquals(1, compactor.compactions());
+    }
+
+    @Test
+    void previousSummaryIsFoldedIntoNextOne() {
+        RollingSummaryCompactor compactor = compactor(task -> { }, 100);
+        SummarizingChatMemory memory = (SummarizingChatMemory) compactor.wrap(store);
+        addTurns(memory, 0, 10);
+        compactor.compact(memory, ID);
+        addTurns(memory, 10, 20);
+
+        assertTrue(compactor.compact(memory, ID).isPresent());
+        assertTrue(prompts.get(1).getContents().contains("【此前的摘要】来访者因工作压力失眠"));
+        long systemMessages = memory.get(ID).stream()
+                .filter(m -> m.getMessageType() == MessageType.SYSTEM).count();
+        assertEquals(1, systemMessages);
+    }
+
+    @Test
+    void shortConversationIsNotSummarized() {
+        RollingSummaryCompactor compactor = compactor(Runnable::run, 10_000);
+        ChatMemory memory = compactor.wrap(store);
+        addTurns(memory, 0, 10);
+
+        assertTrue(prompts.isEmpty());
+        assertEquals(20, memory.get(ID).size());
+    }
+
+    @Test
+    void summaryIsDiscardedWhenConversationChanged() {
+        RollingSummaryCompactor compactor = compactor(task -> { }, 100);
+        SummarizingChatMemory memory = (SummarizingChatMemory) compactor.wrap(store);
+        addTurns(memory, 0, 10);
+        duringModelCall = () -> memory.clear(ID);
+
+        assertTrue(compactor.compact(memory, ID).isEmpty());
+        assertTrue(memory.get(ID).isEmpty());
+        assertEquals(0, compactor.compactions());
+    }
+
+    @Test
+    void compactsInBackgroundAfterAppend() {
+        RollingSummaryCompactor compactor = compactor(Runnable::run, 100);
+        ChatMemory memory = compactor.wrap(store);
+        addTurns(memory, 0, 10);
+
+        assertFalse(prompts.isEmpty());
+        assertTrue(RollingSummaryCompactor.isSummary(memory.get(ID).get(0)));
+        assertTrue(compactor.tokensSaved() > 0);
+    }
+
+    @Test
+    void appendsBelowThresholdDoNotReadHistory() {
+        RollingSummaryCompactor compactor = compactor(Runnable::run, 10_000);
+        ChatMemory memory = compactor.wrap(store);
+        addTurns(memory, 0, 10);
+
+        // 只有第一次写入时总token数未知，读取一次完整会话
+        assertEquals(1, store.reads);
+        assertTrue(prompts.isEmpty());
+    }
+
+    @Test
+    void summaryIsAppendedWithoutRewritingHistory() {
+        RollingSummaryCompactor compactor = compactor(task -> { }, 100);
+        SummarizingChatMemory memory = (SummarizingChatMemory) compactor.wrap(store);
+        addTurns(memory, 0, 10);
+
+        assertTrue(compactor.compact(memory, ID).isPresent());
+        // 底层存储只多了一条摘要记录，原始消息不变
+        List<Message> raw = store.conversations.get(ID);
+        assertEquals(21, raw.size());
+        assertEquals("问题0", raw.get(0).getText());
+
+        // 尾部包含摘要记录及其保留的消息时不读取完整会话
+        int reads = store.reads;
+        assertEquals(memory.get(ID).stream().map(Message::getText).toList(),
+                memory.get(ID, 8).stream().map(Message::getText).toList());
+        assertEquals(reads + 1, store.reads);
+    }
+
+    @Test
+    void failedSummaryWriteKeepsHistory() {
+        RollingSummaryCompactor compactor = compactor(task -> { }, 100);
+        SummarizingChatMemory memory = (SummarizingChatMemory) compactor.wrap(store);
+        addTurns(memory, 0, 10);
+        store.failWrites = true;
+
+        assertThrows(IllegalStateException.class, () -> compactor.compact(memory, ID));
+        assertEquals(20, memory.get(ID).size());
+        assertEquals("问题0", memory.get(ID).get(0).getText());
+    }
+
+    private RollingSummaryCompactor compactor(Executor executor, int triggerTokens) {
+        return new RollingSummaryCompactor(stubModel, new TokenBudgetWindow(new CharCountEstimator()), executor,
+                true, triggerTokens, 4);
+    }
+
+    /**
+     * 每轮：用户消息"问题i" + 助手消息"回答i"
+     */
+    private static void addTurns(ChatMemory memory, int from, int to) {
+        for (int i = from; i < to; i++) {
+            memory.add(ID, List.of(new UserMessage("问题" + i), new AssistantMessage("回答" + i)));
+        }
+    }
+
+    private static class InMemoryChatMemory implements ChatMemory, RecentMessagesSource {
+
+        private final Map<String, List<Message>> conversations = new HashMap<>();
+        private int reads;
+        private boolean failWrites;
+
+        @Override
+        public void add(String conversationId, List<Message> messages) {
+            if (failWrites) {
+                throw new IllegalStateException("storage unavailable");
+            }
+            conversations.computeIfAbsent(conversationId, k -> new ArrayList<>()).addAll(messages);
+        }
+
+        @Override
+        public List<Message> get(String conversationId) {
+            reads++;
+            return new ArrayList<>(conversations.getOrDefault(conversationId, List.of()));
+        }
+
+        @Override
+        public List<Message> get(String conversationId, int lastN) {
+            List<Message> all = conversations.getOrDefault(conversationId, List.of());
+            return new ArrayList<>(all.subList(Math.max(0, all.size() - lastN), all.size()));
+        }
+
+        @Override
+        public void clear(String conversationId) {
+            conversations.remove(conversationId);
+        }
+    }
+
+    /**
+     * 按字符数计token，每条消息另加8个token的固定开销
+     */
+    private static class CharCountEstimator implements TokenCountEstimator {
+
+        @Override
+        public int estimate(String text) {
+            return text.length() + 8;
+        }
+
+        @Override
+        public int estimate(MediaContent content) {
+            return estimate(content.getText());
+        }
+
+        @Override
+        public int estimate(Iterable<MediaContent> contents) {
+            int total = 0;
+            for (MediaContent content : contents) {
+                total += estimate(content);
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * TieredChatMemory 测试（需要本地Redis和MySQL）
+ */
+@SpringBootTest
+class TieredChatMemoryTest {
+
+    @Autowired
+    private TieredChatMemory chatMemory;
+
+    @Autowired
+    private RedisChatMemory redisChatMemory;
+
+    @Autowired
+    private InMySqlChatMemory inMySqlChatMemory;
+
+    private String conversationId;
+
+    @BeforeEach
+    void setUp() {
+        conversationId = "test-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        chatMemory.clear(conversationId);
+    }
+
+    @Test
+    void expiredHotTierIsRehydratedFromMySql() {
+        chatMemory.add(conversationId, List.of(new UserMessage("q-0"), new AssistantMessage("a-0")));
+        // 新会话首次读取后热层才有数据
+        chatMemory.get(conversationId);
+        chatMemory.add(conversationId, List.of(new UserMessage("q-1"), new AssistantMessage("a-1")));
+        assertEquals(4, redisChatMemory.size(conversationId));
+
+        // 模拟TTL过期
+        redisChatMemory.clear(conversationId);
+
+        assertEquals(List.of("q-0", "a-0", "q-1", "a-1"), texts(chatMemory.get(conversationId)));
+        assertEquals(4, redisChatMemory.size(conversationId));
+    }
+
+    @Test
+    void writeDoesNotCreatePartialHotTier() {
+        chatMemory.add(conversationId, List.of(new UserMessage("q-0"), new AssistantMessage("a-0")));
+        chatMemory.get(conversationId);
+        redisChatMemory.clear(conversationId);
+
+        chatMemory.add(conversationId, List.of(new UserMessage("q-1"), new AssistantMessage("a-1")));
+
+        assertFalse(redisChatMemory.exists(conversationId));
+        assertEquals(4, chatMemory.get(conversationId).size());
+        assertEquals(List.of("q-1", "a-1"), texts(chatMemory.get(conversationId, 2)));
+    }
+
+    @Test
+    void completeHotTierServesFullHistoryAtCapacity() {
+        chatMemory.add(conversationId, List.of(new UserMessage("q-0"), new AssistantMessage("a-0")));
+        chatMemory.get(conversationId);
+        // 恰好填满热层，没有发生裁剪
+        for (int i = 1; i < redisChatMemory.getMaxMessages() / 2; i++) {
+            chatMemory.add(conversationId, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+        }
+
+        RedisChatMemory.Tail tail = redisChatMemory.tail(conversationId, 0);
+        assertTrue(tail.complete());
+        assertEquals(redisChatMemory.getMaxMessages(), tail.messages().size());
+        assertEquals(tail.messages().size(), chatMemory.get(conversationId).size());
+
+        // 再追加一轮发生裁剪，标记被删除
+        chatMemory.add(conversationId, List.of(new UserMessage("q-x"), new AssistantMessage("a-x")));
+        assertFalse(redisChatMemory.tail(conversationId, 0).complete());
+        assertEquals(redisChatMemory.getMaxMessages() + 2, chatMemory.get(conversationId).size());
+    }
+
+    @Test
+    void fullHistoryComesFromColdTierOnceHotTierIsTrimmed() {
+        int turns = redisChatMemory.getMaxMessages() / 2 + 10;
+        chatMemory.add(conversationId, List.of(new UserMessage("q-0"), new AssistantMessage("a-0")));
+        chatMemory.get(conversationId);
+        for (int i = 1; i < turns; i++) {
+            chatMemory.add(conversationId, List.of(new UserMessage("q-" + i), new AssistantMessage("a-" + i)));
+        }
+
+        assertEquals(redisChatMemory.getMaxMessages(), redisChatMemory.size(conversationId));
+        List<Message> all = chatMemory.get(conversationId);
+        assertEquals(turns * 2, all.size());
+        assertEquals("q-0", all.get(0).getText());
+        assertEquals(inMySqlChatMemory.get(conversationId).size(), all.size());
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getText).toList();
+    }
+}
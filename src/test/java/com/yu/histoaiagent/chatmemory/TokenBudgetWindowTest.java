@@ -0,0 +1,82 @@
+package com.yu.histoaiagent.chatmemory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.model.MediaContent;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * TokenBudgetWindow 单元测试（按字符数计token，便于断言）
+ */
+class TokenBudgetWindowTest {
+
+    private final AtomicInteger estimations = new AtomicInteger();
+
+    private final TokenBudgetWindow window = new TokenBudgetWindow(new TokenCountEstimator() {
+        @Override
+        public int estimate(String text) {
+            estimations.incrementAndGet();
+            return text.length();
+        }
+
+        @Override
+        public int estimate(MediaContent content) {
+            return estimate(content.getText());
+        }
+
+        @Override
+        public int estimate(Iterable<MediaContent> contents) {
+            int total = 0;
+            for (MediaContent content : contents) {
+                total += estimate(content);
+            }
+            return total;
+        }
+    });
+
+    @Test
+    void selectsNewestMessagesWithinBudget() {
+        List<Message> history = List.of(new UserMessage("aaaa"), new AssistantMessage("bbb"),
+                new UserMessage("cc"), new AssistantMessage("d"));
+
+        assertEquals(List.of("cc", "d"), texts(window.select(history, 5)));
+        assertEquals(List.of("bbb", "cc", "d"), texts(window.select(history, 6)));
+        assertEquals(4, texts(window.select(history, 100)).size());
+        assertTrue(window.select(history, 0).isEmpty());
+    }
+
+    @Test
+    void stampedTokenCountIsReused() {
+        UserMessage message = new UserMessage("hello");
+        assertEquals(5, window.stamp(message));
+        assertEquals(1, estimations.get());
+
+        window.select(List.of(message), 10);
+        window.select(List.of(message), 10);
+        assertEquals(1, estimations.get());
+    }
+
+    @Test
+    void computedTokenCountIsReusedWithoutMutatingMessage() {
+        // 模拟从会话缓存读出、没有token数元数据的消息
+        UserMessage message = new UserMessage("hello");
+
+        assertEquals(5, window.tokenCount(message));
+        assertEquals(5, window.tokenCount(message));
+        // 同一内容再次从存储读出（新的消息对象）也复用计算结果
+        assertEquals(5, window.tokenCount(new UserMessage("hello")));
+        assertEquals(1, estimations.get());
+        assertFalse(message.getMetadata().containsKey(TokenBudgetWindow.TOKEN_COUNT_METADATA));
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getText).toList();
+    }
+}
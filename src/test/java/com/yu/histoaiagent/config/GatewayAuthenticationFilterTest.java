@@ -0,0 +1,58 @@
+package com.yu.histoaiagent.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 网关身份校验测试
+ */
+class GatewayAuthenticationFilterTest {
+
+    private final GatewayAuthenticationFilter filter =
+            new GatewayAuthenticationFilter("test-secret", 60_000, new ObjectMapper());
+
+    @Test
+    void signedUserIsAccepted() {
+        long now = System.currentTimeMillis();
+        String timestamp = String.valueOf(now);
+        assertEquals("vip_user", filter.authenticate("vip_user", timestamp, filter.sign("vip_user", timestamp), now));
+    }
+
+    @Test
+    void forgedOrExpiredSignaturesAreRejected() {
+        long now = System.currentTimeMillis();
+        String timestamp = String.valueOf(now);
+        // 没有签名、换了用户、签名过期
+        assertNull(filter.authenticate("vip_user", timestamp, null, now));
+        assertNull(filter.authenticate("enterprise_user", timestamp, filter.sign("vip_user", timestamp), now));
+        assertNull(filter.authenticate("vip_user", timestamp, filter.sign("vip_user", timestamp), now + 120_000));
+    }
+
+    @Test
+    void missingSecretRejectsEveryone() {
+        GatewayAuthenticationFilter unconfigured = new GatewayAuthenticationFilter("", 60_000, new ObjectMapper());
+        long now = System.currentTimeMillis();
+        String timestamp = String.valueOf(now);
+        assertNull(unconfigured.authenticate("vip_user", timestamp, filter.sign("vip_user", timestamp), now));
+    }
+
+    @Test
+    void clientSuppliedUserIdHeaderIsUnauthorized() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/ai/therapy/chat/sse");
+        request.setContextPath("/api");
+        request.addHeader(GatewayAuthenticationFilter.USER_ID_HEADER, "vip_user");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, response, chain);
+
+        assertEquals(401, response.getStatus());
+        assertNull(chain.getRequest());
+        assertNull(request.getAttribute(GatewayAuthenticationFilter.USER_ID_ATTRIBUTE));
+    }
+}
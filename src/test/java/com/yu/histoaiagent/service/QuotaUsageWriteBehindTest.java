@@ -0,0 +1,106 @@
+package com.yu.histoaiagent.service;
+
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.yu.histoaiagent.entity.UserQuotaUsage;
+import com.yu.histoaiagent.mapper.UserQuotaUsageMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 配额使用次数异步落库与对账测试（需要本地MySQL和Redis）
+ */
+@SpringBootTest
+class QuotaUsageWriteBehindTest {
+
+    /**
+     * 角色固定为免费用户（其他测试会修改 free_user 的角色），免费用户不走租约，对账不会跳过
+     */
+    private static final String USER_ID = "test_user_1";
+
+    @Autowired
+    private UserPermissionService userPermissionService;
+
+    @Autowired
+    private QuotaUsageWriteBehind quotaUsageWriteBehind;
+
+    @Autowired
+    private QuotaUsageReconciler quotaUsageReconciler;
+
+    @Autowired
+    private UserQuotaUsageMapper quotaUsageMapper;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @BeforeEach
+    void setUp() {
+        userPermissionService.resetQuota(USER_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        userPermissionService.resetQuota(USER_ID);
+    }
+
+    @Test
+    void usageIsReadableBeforeFlushAndPersistedOnce() {
+        for (int i = 0; i < 5; i++) {
+            userPermissionService.incrementUsage(USER_ID);
+        }
+        // 未落库前也能读到
+        assertEquals(5, quotaUsageWriteBehind.pendingUsage(USER_ID, LocalDate.now()));
+
+        quotaUsageWriteBehind.flush();
+        assertEquals(0, quotaUsageWriteBehind.pendingUsage(USER_ID, LocalDate.now()));
+        assertEquals(5, quotaUsageMapper.findTodayUsage(USER_ID, LocalDate.now()));
+
+        // 重复刷盘不会多计
+        quotaUsageWriteBehind.flush();
+        assertEquals(5, quotaUsageMapper.findTodayUsage(USER_ID, LocalDate.now()));
+    }
+
+    @Test
+    void resetDiscardsPendingUsage() {
+        userPermissionService.incrementUsage(USER_ID);
+        userPermissionService.resetQuota(USER_ID);
+
+        quotaUsageWriteBehind.flush();
+        assertNull(quotaUsageMapper.findTodayUsage(USER_ID, LocalDate.now()));
+    }
+
+    @Test
+    void reconcileRepairsRowsBehindRedis() {
+        for (int i = 0; i < 3; i++) {
+            userPermissionService.incrementUsage(USER_ID);
+        }
+        quotaUsageWriteBehind.flush();
+
+        // 模拟崩溃丢失了最近的落库
+        UpdateWrapper<UserQuotaUsage> wrapper = new UpdateWrapper<>();
+        wrapper.eq("user_id", USER_ID).eq("usage_date", LocalDate.now()).set("usage_count", 1);
+        quotaUsageMapper.update(null, wrapper);
+
+        assertTrue(quotaUsageReconciler.reconcile(LocalDate.now()) >= 1);
+        assertEquals(3, quotaUsageMapper.findTodayUsage(USER_ID, LocalDate.now()));
+    }
+
+    @Test
+    void reconcileSkipsLeasedUsers() {
+        // 企业用户走租约，Redis计数包含租出未用的次数，不能照抄到MySQL
+        String leasedUser = "enterprise_user";
+        userPermissionService.resetQuota(leasedUser);
+        redisTemplate.opsForValue().increment(UserPermissionService.USAGE_KEY_PREFIX + LocalDate.now() + ":" + leasedUser, 10);
+
+        quotaUsageReconciler.reconcile(LocalDate.now());
+        assertNull(quotaUsageMapper.findTodayUsage(leasedUser, LocalDate.now()));
+        userPermissionService.resetQuota(leasedUser);
+    }
+}
@@ -0,0 +1,109 @@
+package com.yu.histoaiagent.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分片计数器测试（需要本地Redis）
+ * 调低扩容阈值，让测试中的并发写入触发扩容
+ */
+@SpringBootTest(properties = {
+        "user.sharded-counter.enabled=true",
+        "user.sharded-counter.shard-ops-per-second=50"
+})
+class ShardedCounterTest {
+
+    private static final String PREFIX = "conversation:message:count:";
+
+    @Autowired
+    private ShardedCounter shardedCounter;
+
+    @Autowired
+    private UserPermissionService userPermissionService;
+
+    @Autowired
+    private RedisTemplate<String, Object> redisTemplate;
+
+    private final String conversationId = "sharded_" + UUID.randomUUID();
+
+    @AfterEach
+    void tearDown() {
+        shardedCounter.delete(PREFIX + conversationId);
+    }
+
+    @Test
+    void coldCounterUsesSingleKey() {
+        userPermissionService.incrementConversationMessageCount("free_user", conversationId, 2);
+        userPermissionService.incrementConversationMessageCount("free_user", conversationId, 2);
+
+        assertEquals(4, userPermissionService.getConversationMessageCount(conversationId));
+        // 分片数key + 第0个分片
+        assertEquals(2, shardedCounter.keysToRead(PREFIX + conversationId).size());
+    }
+
+    @Test
+    void hotCounterScalesOutWithoutLosingIncrements() throws Exception {
+        long written = writeHot(3000);
+
+        int shards = shardedCounter.keysToRead(PREFIX + conversationId).size() - 1;
+        System.out.printf("sharded counter: %d increments over %d shards%n", written / 2, shards);
+        assertTrue(shards > 1, "hot counter should have scaled out");
+        assertEquals(written, userPermissionService.getConversationMessageCount(conversationId));
+    }
+
+    @Test
+    void shardsExpireTogether() throws Exception {
+        userPermissionService.incrementConversationMessageCount("enterprise_user", conversationId, 2);
+        // 第0个分片创建之后再扩容，新分片的过期时刻仍与第0个分片相同
+        Thread.sleep(2000);
+        writeHot(3000);
+
+        List<String> keys = shardedCounter.keysToRead(PREFIX + conversationId);
+        assertTrue(keys.size() > 2, "hot counter should have scaled out");
+        long first = redisTemplate.getExpire(keys.get(1), TimeUnit.MILLISECONDS);
+        for (String key : keys) {
+            long ttl = redisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+            assertTrue(Math.abs(ttl - first) < 1000, key + " expires at a different time");
+        }
+    }
+
+    /**
+     * 16个线程并发写入同一个会话的消息数
+     *
+     * @return 写入的总数
+     */
+    private long writeHot(long durationMillis) throws Exception {
+        int threads = 16;
+        AtomicLong written = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long deadline = System.currentTimeMillis() + durationMillis;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    userPermissionService.incrementConversationMessageCount("enterprise_user", conversationId, 2);
+                    written.addAndGet(2);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        return written.get();
+    }
+}
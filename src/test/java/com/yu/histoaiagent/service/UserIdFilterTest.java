@@ -0,0 +1,44 @@
+package com.yu.histoaiagent.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * UserIdFilter 布隆过滤器单元测试
+ */
+class UserIdFilterTest {
+
+    private static final int USERS = 100_000;
+
+    @Test
+    void neverRejectsKnownIds() {
+        UserIdFilter.BloomFilter filter = new UserIdFilter.BloomFilter(USERS, 0.01);
+        for (int i = 0; i < USERS; i++) {
+            filter.put("user_" + i);
+        }
+        for (int i = 0; i < USERS; i++) {
+            assertTrue(filter.mightContain("user_" + i));
+        }
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTarget() {
+        UserIdFilter.BloomFilter filter = new UserIdFilter.BloomFilter(USERS, 0.01);
+        for (int i = 0; i < USERS; i++) {
+            filter.put("user_" + i);
+        }
+        int falsePositives = 0;
+        int probes = 200_000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("random_" + i)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        System.out.printf("bloom filter false positive rate: %.4f%n", rate);
+        assertTrue(rate < 0.02);
+        // 重复写入不计数
+        assertTrue(Math.abs(filter.size() - USERS) < USERS / 100);
+    }
+}
@@ -0,0 +1,104 @@
+package com.yu.histoaiagent.service;
+
+import com.yu.histoaiagent.entity.SysUser;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * UserProfileCache 单元测试（不连接Redis，只验证本节点缓存与失效）
+ */
+class UserProfileCacheTest {
+
+    private final StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+    private final UserProfileCache cache = new UserProfileCache(
+            beanFactory.getBeanProvider(StringRedisTemplate.class),
+            beanFactory.getBeanProvider(RedisMessageListenerContainer.class),
+            60_000, 1000);
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Function<String, SysUser> loader = userId -> {
+        loads.incrementAndGet();
+        return SysUser.builder().userId(userId).role("FREE").enabled(true).build();
+    };
+
+    @Test
+    void repeatedLookupsHitCache() {
+        cache.get("u1", loader);
+        cache.get("u1", loader);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void invalidationForcesReload() {
+        cache.get("u1", loader);
+        cache.invalidateAfterCommit("u1");
+        cache.get("u1", loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void invalidationDuringLoadIsNotOverwritten() {
+        cache.get("u1", userId -> {
+            // 加载期间其他线程修改了用户并使缓存失效
+            cache.invalidate(userId);
+            return loader.apply(userId);
+        });
+        cache.get("u1", loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void otherNodesInvalidationIsApplied() {
+        cache.get("u1", loader);
+        cache.onMessage(new DefaultMessage(UserProfileCache.INVALIDATION_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "other-node|u1".getBytes(StandardCharsets.UTF_8)), null);
+        cache.get("u1", loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void fullCacheAdmitsNewUsersAfterSweep() throws Exception {
+        UserProfileCache small = new UserProfileCache(
+                beanFactory.getBeanProvider(StringRedisTemplate.class),
+                beanFactory.getBeanProvider(RedisMessageListenerContainer.class),
+                50, 2);
+        try {
+            small.get("u1", loader);
+            small.get("u2", loader);
+            // 已满时不缓存，也不在请求线程中扫描
+            small.get("u3", loader);
+            small.get("u3", loader);
+            assertEquals(4, loads.get());
+
+            Thread.sleep(100);
+            assertEquals(2, small.sweepExpired());
+            small.get("u3", loader);
+            small.get("u3", loader);
+            assertEquals(5, loads.get());
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    @Test
+    void missingUserIsNotCached() {
+        cache.get("ghost", userId -> {
+            loads.incrementAndGet();
+            return null;
+        });
+        assertNull(cache.get("ghost", userId -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertEquals(2, loads.get());
+    }
+}